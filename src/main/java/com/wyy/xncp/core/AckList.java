@@ -0,0 +1,75 @@
+package com.wyy.xncp.core;
+
+/**
+ * AckList
+ * 待发送的ack，每一项是(sn, 时间戳)，两个值交替放在同一个long数组中：entries[2i]是sn，entries[2i+1]是时间戳
+ * 每收到一个数据包就要加一项，用基本类型数组可以避免装箱，按下标访问也是O(1)的
+ * clear只把size置0，数组只会变大不会释放，稳定之后收包路径上没有对象分配
+ * */
+class AckList {
+
+    private long[] entries;
+    private int size;
+
+    /**
+     * @param capacity 初始能放下的项数
+     * */
+    AckList(int capacity) {
+        this.entries = new long[Math.max(capacity, 1) * 2];
+    }
+
+    void add(long sn, long timeStamp) {
+        int index = size << 1;
+        if (index == entries.length) {
+            long[] newEntries = new long[entries.length << 1];
+            System.arraycopy(entries, 0, newEntries, 0, index);
+            entries = newEntries;
+        }
+        entries[index] = sn;
+        entries[index + 1] = timeStamp;
+        size++;
+    }
+
+    long getSn(int i) {
+        return entries[i << 1];
+    }
+
+    long getTimeStamp(int i) {
+        return entries[(i << 1) + 1];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * 删除sn小于unAckID的项，剩下的项保持原来的顺序
+     * */
+    void removeBelow(long unAckID) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            long sn = entries[i << 1];
+            if (sn >= unAckID) {
+                entries[kept << 1] = sn;
+                entries[(kept << 1) + 1] = entries[(i << 1) + 1];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * 数组能放下的项数
+     * */
+    int capacity() {
+        return entries.length >> 1;
+    }
+}
@@ -0,0 +1,274 @@
+package com.wyy.xncp.core;
+
+/**
+ * BbrCongestionController
+ * 参考BBR的基于模型的拥塞控制，不把丢包当作拥塞信号
+ * 用最近10轮的最大交付速率估计瓶颈带宽(btlBw)，用最近10秒的最小rtt估计传播延迟(minRtt)
+ * 拥塞窗口是 cwndGain * btlBw * minRtt，发送速率是 pacingGain * btlBw，丢包和快重传时窗口不减半
+ * 在长肥管道上随机丢包不会让吞吐量掉下去，和reno相比更适合有随机丢包的链路
+ *
+ * 状态和BBR一样：
+ * STARTUP 速率翻倍地探测带宽，连续3轮带宽增长不到25%说明管道已经填满
+ * DRAIN 把STARTUP时多发出去的包排空
+ * PROBE_BW 按照增益序列周期性地探测更多的带宽
+ * PROBE_RTT minRtt超过10秒没有更新时，把在途的包降到4个左右并维持200ms，重新测量minRtt
+ *
+ * 这里的交付速率按轮来采样：一轮从开始时的在途包全部被确认为止，速率是这一轮确认的包数除以用掉的时间
+ * 速率只通过getPacingRate给出，需要由发送端的pacer来使用，没有pacer时只有拥塞窗口生效
+ * */
+public class BbrCongestionController implements CongestionController {
+
+    public static final int STATE_STARTUP = 0;
+    public static final int STATE_DRAIN = 1;
+    public static final int STATE_PROBE_BW = 2;
+    public static final int STATE_PROBE_RTT = 3;
+
+    private static final double HIGH_GAIN = 2.885;//2/ln2
+    private static final double CWND_GAIN = 2;
+    private static final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int BANDWIDTH_WINDOW_ROUNDS = 10;
+    private static final long MIN_RTT_WINDOW = 10000;//ms
+    private static final long PROBE_RTT_DURATION = 200;//ms
+    private static final long MIN_CONGESTION_WINDOW = 4;
+    private static final int FULL_BANDWIDTH_ROUNDS = 3;
+
+    private int state = STATE_STARTUP;
+    private double pacingGain = HIGH_GAIN;
+    private double cwndGain = HIGH_GAIN;
+    private long congestionWindow = MIN_CONGESTION_WINDOW;
+
+    //交付速率采样
+    private long delivered;//一共被确认的包数
+    private long roundCount;
+    private long roundStartDelivered;
+    private long roundStartTime = -1;
+    private long nextRoundDelivered;//delivered到达这个值时这一轮结束
+    private final long[] bandwidthSamples = new long[BANDWIDTH_WINDOW_ROUNDS];//单位 包/秒
+    private final long[] bandwidthRounds = new long[BANDWIDTH_WINDOW_ROUNDS];
+    private long maxBandwidth;
+
+    //最小rtt
+    private long minRtt = -1;
+    private long minRttTimeStamp;
+    private long probeRttDoneTimeStamp;
+    private boolean minRttExpired;//minRtt超过窗口没有更新，需要进入PROBE_RTT
+
+    //判断管道是否已经填满
+    private boolean fullBandwidthReached;
+    private long fullBandwidth;
+    private int fullBandwidthCount;
+
+    private int cycleIndex;
+    private long cycleTimeStamp;
+
+    public BbrCongestionController() {
+        for (int i = 0; i < BANDWIDTH_WINDOW_ROUNDS; i++) {
+            bandwidthRounds[i] = -1;
+        }
+    }
+
+    @Override
+    public void onAck(Xncp xncp, long ackedCount, boolean unAckAdvanced, long currentTime) {
+        if (ackedCount <= 0) {
+            return;
+        }
+        delivered += ackedCount;
+        long inFlight = xncp.getInFlightCount();
+        boolean roundEnd = updateRound(inFlight, currentTime);
+        if (roundEnd) {
+            checkFullBandwidth();
+        }
+        updateState(inFlight, currentTime);
+        updateCongestionWindow(ackedCount);
+    }
+
+    /**
+     * 一轮结束时计算这一轮的交付速率
+     * @return 是否开始了新的一轮
+     * */
+    private boolean updateRound(long inFlight, long currentTime) {
+        if (roundStartTime < 0) {
+            startRound(inFlight, currentTime);
+            return false;
+        }
+        if (delivered < nextRoundDelivered) {
+            return false;
+        }
+        long elapsed = currentTime - roundStartTime;
+        if (elapsed > 0) {
+            long bandwidth = (delivered - roundStartDelivered) * 1000 / elapsed;
+            addBandwidthSample(bandwidth);
+        }
+        roundCount++;
+        startRound(inFlight, currentTime);
+        return true;
+    }
+
+    private void startRound(long inFlight, long currentTime) {
+        roundStartDelivered = delivered;
+        roundStartTime = currentTime;
+        nextRoundDelivered = delivered + Math.max(inFlight, 1);
+    }
+
+    /**
+     * 最近BANDWIDTH_WINDOW_ROUNDS轮中的最大值，每轮一个槽位
+     * */
+    private void addBandwidthSample(long bandwidth) {
+        int slot = (int) (roundCount % BANDWIDTH_WINDOW_ROUNDS);
+        if (bandwidthRounds[slot] != roundCount || bandwidthSamples[slot] < bandwidth) {
+            bandwidthSamples[slot] = bandwidth;
+            bandwidthRounds[slot] = roundCount;
+        }
+        long max = 0;
+        for (int i = 0; i < BANDWIDTH_WINDOW_ROUNDS; i++) {
+            if (bandwidthRounds[i] > roundCount - BANDWIDTH_WINDOW_ROUNDS && bandwidthSamples[i] > max) {
+                max = bandwidthSamples[i];
+            }
+        }
+        maxBandwidth = max;
+    }
+
+    private void checkFullBandwidth() {
+        if (fullBandwidthReached || maxBandwidth == 0) {
+            return;
+        }
+        if (maxBandwidth >= fullBandwidth * 5 / 4) {//还在增长
+            fullBandwidth = maxBandwidth;
+            fullBandwidthCount = 0;
+            return;
+        }
+        fullBandwidthCount++;
+        if (fullBandwidthCount >= FULL_BANDWIDTH_ROUNDS) {
+            fullBandwidthReached = true;
+        }
+    }
+
+    private void updateState(long inFlight, long currentTime) {
+        if (state == STATE_STARTUP && fullBandwidthReached) {
+            enterState(STATE_DRAIN, currentTime);
+        }
+        if (state == STATE_DRAIN && inFlight <= getBdp()) {
+            enterState(STATE_PROBE_BW, currentTime);
+        }
+        if (state == STATE_PROBE_BW && minRtt > 0 && currentTime - cycleTimeStamp > minRtt) {
+            cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+            cycleTimeStamp = currentTime;
+            pacingGain = PROBE_BW_GAINS[cycleIndex];
+        }
+        if (state != STATE_PROBE_RTT && minRttExpired) {
+            minRttExpired = false;
+            enterState(STATE_PROBE_RTT, currentTime);
+        }
+        if (state == STATE_PROBE_RTT && currentTime >= probeRttDoneTimeStamp) {
+            minRttTimeStamp = currentTime;//在PROBE_RTT中得到的最小值就是新的minRtt
+            enterState(fullBandwidthReached ? STATE_PROBE_BW : STATE_STARTUP, currentTime);
+        }
+    }
+
+    private void enterState(int state, long currentTime) {
+        this.state = state;
+        if (state == STATE_STARTUP) {
+            pacingGain = HIGH_GAIN;
+            cwndGain = HIGH_GAIN;
+        } else if (state == STATE_DRAIN) {
+            pacingGain = 1 / HIGH_GAIN;
+            cwndGain = HIGH_GAIN;
+        } else if (state == STATE_PROBE_BW) {
+            cycleIndex = 0;
+            cycleTimeStamp = currentTime;
+            pacingGain = PROBE_BW_GAINS[cycleIndex];
+            cwndGain = CWND_GAIN;
+        } else {
+            pacingGain = 1;
+            cwndGain = 1;
+            probeRttDoneTimeStamp = currentTime + Math.max(PROBE_RTT_DURATION, minRtt);
+        }
+    }
+
+    private void updateCongestionWindow(long ackedCount) {
+        long bdp = getBdp();
+        if (bdp == 0 || !fullBandwidthReached) {
+            //还没有填满管道之前和慢启动一样按ack增长，同时不超过模型给出的上限
+            congestionWindow += ackedCount;
+            if (bdp > 0) {
+                congestionWindow = Math.min(congestionWindow, Math.max((long) Math.ceil(cwndGain * bdp), MIN_CONGESTION_WINDOW));
+            }
+        } else {
+            long target = Math.max((long) Math.ceil(cwndGain * bdp), MIN_CONGESTION_WINDOW);
+            congestionWindow = Math.min(congestionWindow + ackedCount, target);
+        }
+        if (congestionWindow < MIN_CONGESTION_WINDOW) {
+            congestionWindow = MIN_CONGESTION_WINDOW;
+        }
+    }
+
+    /**
+     * 带宽时延积，单位 包
+     * */
+    private long getBdp() {
+        if (minRtt < 0 || maxBandwidth == 0) {
+            return 0;
+        }
+        return (maxBandwidth * Math.max(minRtt, 1) + 999) / 1000;
+    }
+
+    @Override
+    public void onRttSample(Xncp xncp, long rtt, long currentTime) {
+        if (rtt < 0) {
+            return;
+        }
+        boolean expired = minRtt >= 0 && state != STATE_PROBE_RTT && currentTime - minRttTimeStamp > MIN_RTT_WINDOW;
+        if (minRtt < 0 || rtt <= minRtt || expired) {
+            minRtt = rtt;
+            minRttTimeStamp = currentTime;
+        }
+        if (expired) {
+            minRttExpired = true;
+        }
+    }
+
+    /**
+     * 快重传不改变模型，丢包不作为拥塞信号
+     * */
+    @Override
+    public void onFastResend(Xncp xncp, long currentTime) {
+    }
+
+    /**
+     * 超时重传也不减小窗口，带宽样本会随着轮次过期，链路真的变差时窗口会自然变小
+     * */
+    @Override
+    public void onTimeout(Xncp xncp, long currentTime) {
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        if (state == STATE_PROBE_RTT) {
+            return Math.min(congestionWindow, MIN_CONGESTION_WINDOW);
+        }
+        return congestionWindow;
+    }
+
+    @Override
+    public long getPacingRate() {
+        return (long) (pacingGain * maxBandwidth);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * 估计的瓶颈带宽，单位 包/秒
+     * */
+    public long getBottleneckBandwidth() {
+        return maxBandwidth;
+    }
+
+    /**
+     * 估计的最小rtt，没有样本时为-1
+     * */
+    public long getMinRtt() {
+        return minRtt;
+    }
+}
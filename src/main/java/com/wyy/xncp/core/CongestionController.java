@@ -0,0 +1,45 @@
+package com.wyy.xncp.core;
+
+/**
+ * CongestionController
+ * 拥塞控制算法，决定开启拥塞控制(setNeedControl)之后同时可以在途的包的个数
+ * Xncp在收到ack、得到rtt样本、快重传、超时重传时通知算法，发送时使用getCongestionWindow的结果限制发送窗口
+ * 窗口的单位是包，时间的单位是ms
+ *
+ * 实现中保存的是单个会话的状态，不能在多个会话之间共用同一个对象
+ * 和Xncp一样不是线程安全的
+ * */
+public interface CongestionController {
+
+    /**
+     * 一次input处理完之后调用
+     * @param ackedCount 这次input中被确认(包括una和选择确认)而从发送窗口中删除的包的个数
+     * @param unAckAdvanced sendUnAckID是否向前推进了
+     * */
+    void onAck(Xncp xncp, long ackedCount, boolean unAckAdvanced, long currentTime);
+
+    /**
+     * 每得到一个rtt样本时调用，rtt是原始的样本而不是平滑之后的值
+     * */
+    void onRttSample(Xncp xncp, long rtt, long currentTime);
+
+    /**
+     * 一次flush中有包被快重传
+     * */
+    void onFastResend(Xncp xncp, long currentTime);
+
+    /**
+     * 一次flush中有包超时重传
+     * */
+    void onTimeout(Xncp xncp, long currentTime);
+
+    /**
+     * 拥塞窗口，单位 包，至少为1
+     * */
+    long getCongestionWindow();
+
+    /**
+     * 算法建议的发送速率，单位 包/秒，0表示算法本身不限制速率，只使用拥塞窗口
+     * */
+    long getPacingRate();
+}
@@ -1,5 +1,6 @@
 package com.wyy.xncp.core;
 
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -14,12 +15,13 @@ public class DataSegment {
     private long timeStamp;//本消息发送的时候的时间戳 实际大小UInt32
     private long sn;//包序号 实际大小UInt32
     private long unAckID;//una，没有接收到的包id 一般指滑动窗口的左值 实际大小UInt32
-    private long resendTimeStamp;//下次超时重传的时间戳 实际大小UInt32
-    private long rto;//这个分片的超时重传等待时间 实际大小UInt32
-    private long sendCount;//这个分片被发送的次数 实际大小UInt32
-    private long jumpCount;//收到ack时，这个分片被跳过的次数 实际大小UInt32
     private long dataLength;//data 的长度
     private byte[] data;//数据
+    private int dataOffset;//数据在data中的起始位置，从对象池中取出的包共用一块slab，所以不一定是0
+    private DataSegmentPool pool;//所属的对象池，为null时说明不是从池中取出的
+    private boolean pooled;//当前是否在池的空闲列表中，用来防止重复归还
+    private ByteBuffer payloadView;//不复制时直接引用的调用者数据(position为0，limit为长度)，不为null时数据不在data中
+    private ByteBuffer block;//从XncpPayloadArena中取出的直接内存，不为null时数据从block的0位置开始，不在data中
 
 
     /**
@@ -52,49 +54,202 @@ public class DataSegment {
      * */
     public DataSegment(byte[] data,int startLoc,int len){
         this.data = new byte[len];
-        this.dataLength  = (long)data.length;
+        this.dataLength  = (long)len;
         System.arraycopy(data,startLoc,this.data,0,len);
     }
 
 
 
     /**
-     * 将datasegment头部信息从loc位置开始写入buffer中
-     * 返回的是整体的长度
+     * 对象池使用的构造函数
+     * 数据部分是slab中从dataOffset开始的一段，长度上限为pool.getSegmentCapacity()
      * */
-    public int encodeDataSegmentToBuffer(byte [] buffer ,int loc){
+    DataSegment(DataSegmentPool pool, byte[] slab, int dataOffset) {
+        this.pool = pool;
+        this.data = slab;
+        this.dataOffset = dataOffset;
+        this.dataLength = 0;
+    }
 
-        int begin = loc;
+    /**
+     * 堆外内存池使用的构造函数，数据部分在取出时由池设置(setBlock)
+     * */
+    DataSegment(DataSegmentPool pool) {
+        this.pool = pool;
+        this.dataLength = 0;
+    }
 
-        XncpTools.encodeUInt32(buffer,loc,conversationID);
-        loc+=4;
+    /**
+     * 将src中从startLoc开始的len个字节复制到本包的数据部分
+     * 调用者需要保证len不超过本包数据部分的容量
+     * */
+    public void writeData(byte[] src, int startLoc, int len) {
+        this.dataLength = 0;
+        appendData(src, startLoc, len);
+    }
 
-        XncpTools.encodeByte(buffer,loc,command);
-        loc+=1;
+    /**
+     * 将src中从startLoc开始的len个字节复制到本包的数据部分，src可以是直接内存
+     * 调用者需要保证len不超过本包数据部分的容量
+     * */
+    public void writeData(ByteBuffer src, int startLoc, int len) {
+        this.dataLength = 0;
+        appendData(src, startLoc, len);
+    }
 
-        XncpTools.encodeByte(buffer,loc,fragmentID);
-        loc+=1;
+    /**
+     * 将src中从startLoc开始的len个字节追加到本包数据部分的末尾，流模式下合并小的写入时使用
+     * 调用者需要保证追加之后不超过getDataCapacity()
+     * */
+    public void appendData(byte[] src, int startLoc, int len) {
+        if (block != null) {
+            XncpTools.putBytes(block, (int) dataLength, src, startLoc, len);
+        } else {
+            System.arraycopy(src, startLoc, this.data, this.dataOffset + (int) dataLength, len);
+        }
+        this.dataLength += len;
+    }
 
-        XncpTools.encodeUInt16(buffer,loc,(int)receiveWindowSize);
-        loc+=2;
+    /**
+     * 同appendData(byte[],int,int)，src可以是直接内存
+     * */
+    public void appendData(ByteBuffer src, int startLoc, int len) {
+        if (block != null) {
+            XncpTools.copyBytes(src, startLoc, block, (int) dataLength, len);
+        } else {
+            XncpTools.getBytes(src, startLoc, this.data, this.dataOffset + (int) dataLength, len);
+        }
+        this.dataLength += len;
+    }
 
-        XncpTools.encodeUInt32(buffer,loc,timeStamp);
-        loc+=4;
+    /**
+     * 数据部分最多能存放的字节数
+     * 从池中取出的包是池的容量，否则是data数组剩余的长度
+     * */
+    public int getDataCapacity() {
+        if (payloadView != null) {//引用调用者的数据，不能再追加
+            return (int) dataLength;
+        }
+        if (block != null) {
+            return block.capacity();
+        }
+        if (pool != null) {
+            return pool.getSegmentCapacity();
+        }
+        return data == null ? 0 : data.length - dataOffset;
+    }
 
-        XncpTools.encodeUInt32(buffer,loc,sn);
-        loc+=4;
+    /**
+     * 将本包数据部分中从from开始的len个字节复制到dst的loc位置，流模式下部分读取时使用
+     * */
+    public void copyDataTo(byte[] dst, int loc, int from, int len) {
+        if (block != null) {
+            XncpTools.getBytes(block, from, dst, loc, len);
+            return;
+        }
+        System.arraycopy(this.data, this.dataOffset + from, dst, loc, len);
+    }
 
-        XncpTools.encodeUInt32(buffer,loc,unAckID);
-        loc+=4;
+    /**
+     * 同copyDataTo(byte[],int,int,int)，dst可以是直接内存
+     * */
+    public void copyDataTo(ByteBuffer dst, int loc, int from, int len) {
+        if (block != null) {
+            XncpTools.copyBytes(block, from, dst, loc, len);
+            return;
+        }
+        XncpTools.putBytes(dst, loc, this.data, this.dataOffset + from, len);
+    }
 
-        XncpTools.encodeUInt32(buffer,loc,data.length);//这里原版的实现是转化成了long，暂时不知道为什么
-        loc+=4;
+    /**
+     * 将本包的数据部分复制到dst的loc位置，dst可以是直接内存
+     * @return 复制的字节数
+     * */
+    public int copyDataTo(ByteBuffer dst, int loc) {
+        if (payloadView != null) {
+            XncpTools.copyBytes(payloadView, 0, dst, loc, (int) dataLength);
+            return (int) dataLength;
+        }
+        if (block != null) {
+            XncpTools.copyBytes(block, 0, dst, loc, (int) dataLength);
+            return (int) dataLength;
+        }
+        if (data == null || dataLength == 0) {
+            return 0;
+        }
+        XncpTools.putBytes(dst, loc, this.data, this.dataOffset, (int) dataLength);
+        return (int) dataLength;
+    }
 
-        return loc-begin;
+    /**
+     * 将本包的数据部分复制到dst的loc位置
+     * @return 复制的字节数
+     * */
+    public int copyDataTo(byte[] dst, int loc) {
+        if (payloadView != null) {
+            XncpTools.getBytes(payloadView, 0, dst, loc, (int) dataLength);
+            return (int) dataLength;
+        }
+        if (block != null) {
+            XncpTools.getBytes(block, 0, dst, loc, (int) dataLength);
+            return (int) dataLength;
+        }
+        if (data == null || dataLength == 0) {
+            return 0;
+        }
+        System.arraycopy(this.data, this.dataOffset, dst, loc, (int) dataLength);
+        return (int) dataLength;
     }
 
+    /**
+     * 清空头部信息，数据部分的存储保留，长度置为0
+     * 堆外内存中的块由池在归还时单独处理
+     * */
+    void reset() {
+        conversationID = 0;
+        command = 0;
+        fragmentID = 0;
+        receiveWindowSize = 0;
+        timeStamp = 0;
+        sn = 0;
+        unAckID = 0;
+        dataLength = 0;
+        payloadView = null;
+    }
+
+    /**
+     * 将datasegment头部信息从loc位置开始写入buffer中
+     * 返回的是整体的长度
+     * */
+    public int encodeDataSegmentToBuffer(byte [] buffer ,int loc){
+        //data可能是共用的slab，所以长度不能用data.length
+        XncpTools.encodeHeader(buffer,loc,conversationID,command,fragmentID,receiveWindowSize,
+                timeStamp,sn,unAckID,dataLength);
+        return XncpConsts.DATASEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * 将datasegment头部信息从loc位置开始写入ByteBuffer中，使用绝对位置，不改变position
+     * 返回的是整体的长度
+     * */
+    public int encodeDataSegmentToBuffer(ByteBuffer buffer ,int loc){
+        XncpTools.encodeHeader(buffer,loc,conversationID,command,fragmentID,receiveWindowSize,
+                timeStamp,sn,unAckID,dataLength);
+        return XncpConsts.DATASEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * 释放这个包
+     * 从对象池中取出的包会被归还到池中重复使用，否则只是断开对数据的引用
+     * 释放之后调用者就不能再使用这个包了
+     * */
     public void release(){
-        this.data = null;//为了通用，留出一个release方法，这个方法在java中的应用不是很大(基本没用)
+        if(pool != null){
+            pool.recycle(this);
+            return;
+        }
+        this.data = null;
+        this.payloadView = null;
         this.dataLength = 0 ;
     }
 
@@ -154,59 +309,67 @@ public class DataSegment {
         this.unAckID = unAckID;
     }
 
-    public long getResendTimeStamp() {
-        return resendTimeStamp;
-    }
-
-    public void setResendTimeStamp(long resendTimeStamp) {
-        this.resendTimeStamp = resendTimeStamp;
-    }
-
-    public long getRto() {
-        return rto;
+    public long getDataLength() {
+        return dataLength;
     }
 
-    public void setRto(long rto) {
-        this.rto = rto;
+    public void setDataLength(long dataLength) {
+        this.dataLength = dataLength;
     }
 
-    public long getSendCount() {
-        return sendCount;
+    public byte[] getData() {
+        return data;
     }
 
-    public void setSendCount(long sendCount) {
-        this.sendCount = sendCount;
+    public void setData(byte[] data) {
+        this.data = data;
+        this.dataOffset = 0;
     }
 
-    public long getJumpCount() {
-        return jumpCount;
+    /**
+     * 让本包直接引用view中position到limit之间的数据，不做复制
+     * view会被保存下来，调用者在本包被释放之前不能修改其中的数据，也不能再移动view的position和limit
+     * */
+    public void setPayloadView(ByteBuffer view) {
+        this.payloadView = view;
+        this.dataLength = view.remaining();
     }
 
-    public void setJumpCount(long jumpCount) {
-        this.jumpCount = jumpCount;
+    /**
+     * 获取引用的调用者数据，用于gather写，每次获取时position重置为0
+     * @return 数据在data中时返回null
+     * */
+    public ByteBuffer getPayloadView() {
+        if (payloadView != null) {
+            payloadView.position(0);
+        }
+        return payloadView;
     }
 
-    public long getDataLength() {
-        return dataLength;
+    public int getDataOffset() {
+        return dataOffset;
     }
 
-    public void setDataLength(long dataLength) {
-        this.dataLength = dataLength;
+    /**
+     * 数据是否在XncpPayloadArena的直接内存中，此时getData()返回null
+     * */
+    public boolean isOffHeap() {
+        return block != null;
     }
 
-    public byte[] getData() {
-        return data;
+    ByteBuffer getBlock() {
+        return block;
     }
 
-    public void setData(byte[] data) {
-        this.data = data;
+    void setBlock(ByteBuffer block) {
+        this.block = block;
     }
 
-    public void increaseJumpCount(){
-        this.jumpCount++;
+    boolean isPooled() {
+        return pooled;
     }
 
-    public void increaseSendCount(){
-        this.sendCount++;
+    void setPooled(boolean pooled) {
+        this.pooled = pooled;
     }
 }
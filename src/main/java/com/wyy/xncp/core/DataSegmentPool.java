@@ -0,0 +1,170 @@
+package com.wyy.xncp.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * DataSegmentPool
+ * DataSegment的对象池，每个会话一个，和Xncp一样不是线程安全的
+ * 数据部分不是每个包单独new出来的，而是一次申请一整块slab，每个包占用其中固定大小的一段
+ * 包通过DataSegment.release()归还到池中，之后会被重复使用
+ * 在稳定状态下，收发数据都不会再产生新的对象
+ *
+ * 给出XncpPayloadArena时不再申请slab，池中只保留DataSegment对象，
+ * 取出时按数据长度从arena中取一块直接内存，归还时立即把块还给arena；arena已满时退回到堆上单独申请
+ * */
+public class DataSegmentPool {
+
+    public static final int DEFAULT_SLAB_SEGMENT_COUNT = 64;
+
+    private final int segmentCapacity;//每个包的数据部分最多能放的字节数，一般就是mss
+    private final int slabSegmentCount;//每块slab能切出来的包的个数
+    private final XncpPayloadArena arena;//不为null时数据放在arena的直接内存中
+    private final ArrayDeque<DataSegment> freeSegments = new ArrayDeque<DataSegment>();
+    private int totalCount;//这个池一共创建了多少个包
+
+    public DataSegmentPool(int segmentCapacity) {
+        this(segmentCapacity, DEFAULT_SLAB_SEGMENT_COUNT);
+    }
+
+    public DataSegmentPool(int segmentCapacity, int slabSegmentCount) {
+        this(segmentCapacity, slabSegmentCount, null);
+    }
+
+    /**
+     * 数据放在arena的直接内存中的池，arena为null时和上面的一样
+     * */
+    public DataSegmentPool(int segmentCapacity, XncpPayloadArena arena) {
+        this(segmentCapacity, DEFAULT_SLAB_SEGMENT_COUNT, arena);
+    }
+
+    private DataSegmentPool(int segmentCapacity, int slabSegmentCount, XncpPayloadArena arena) {
+        this.segmentCapacity = segmentCapacity;
+        this.slabSegmentCount = slabSegmentCount > 0 ? slabSegmentCount : 1;
+        this.arena = arena;
+    }
+
+    /**
+     * 取出一个空的包，数据长度为0，头部字段全部清零，数据部分的容量是segmentCapacity
+     * 池中没有空闲的包时会新申请一块slab
+     * */
+    public DataSegment acquire() {
+        return acquire(segmentCapacity);
+    }
+
+    /**
+     * 取出一个直接引用view中数据的包，见DataSegment.setPayloadView
+     * 使用arena时这个包不占用直接内存
+     * */
+    public DataSegment acquireView(ByteBuffer view) {
+        DataSegment dataSegment = arena != null ? pollSegment() : acquire();
+        dataSegment.setPayloadView(view);
+        return dataSegment;
+    }
+
+    /**
+     * 取出一个包，并将data中从startLoc开始的len个字节复制进来
+     * len超过segmentCapacity时这个包不能放进池里，直接单独申请
+     * */
+    public DataSegment acquire(byte[] data, int startLoc, int len) {
+        if (len > segmentCapacity) {
+            return new DataSegment(data, startLoc, len);
+        }
+        DataSegment dataSegment = acquire(len);
+        dataSegment.writeData(data, startLoc, len);
+        return dataSegment;
+    }
+
+    /**
+     * 和上面的一样，数据来源是ByteBuffer，可以是直接内存
+     * */
+    public DataSegment acquire(ByteBuffer data, int startLoc, int len) {
+        DataSegment dataSegment = len > segmentCapacity ? new DataSegment(len) : acquire(len);
+        dataSegment.writeData(data, startLoc, len);
+        return dataSegment;
+    }
+
+    /**
+     * 取出一个至少能放下size个字节的包，size不超过segmentCapacity
+     * 使用arena时按size取块，arena已满时单独申请一个堆上的包，这个包释放时不会回到池中
+     * */
+    private DataSegment acquire(int size) {
+        if (arena == null) {
+            if (freeSegments.isEmpty()) {
+                allocateSlab();
+            }
+            return pollSegment();
+        }
+        ByteBuffer block = arena.allocate(size);
+        if (block == null) {
+            DataSegment dataSegment = new DataSegment(size);
+            dataSegment.setDataLength(0);
+            return dataSegment;
+        }
+        DataSegment dataSegment = pollSegment();
+        dataSegment.setBlock(block);
+        return dataSegment;
+    }
+
+    /**
+     * 从空闲列表中取出一个包，使用arena时空闲列表为空就新建一个没有数据部分的包
+     * */
+    private DataSegment pollSegment() {
+        DataSegment dataSegment = freeSegments.pollLast();
+        if (dataSegment == null) {
+            dataSegment = new DataSegment(this);
+            totalCount++;
+        }
+        dataSegment.setPooled(false);
+        return dataSegment;
+    }
+
+    /**
+     * 由DataSegment.release()调用，重复归还的包会被忽略
+     * */
+    void recycle(DataSegment dataSegment) {
+        if (dataSegment.isPooled()) {
+            return;
+        }
+        dataSegment.reset();
+        ByteBuffer block = dataSegment.getBlock();
+        if (block != null) {
+            dataSegment.setBlock(null);
+            arena.free(block);
+        }
+        dataSegment.setPooled(true);
+        freeSegments.addLast(dataSegment);
+    }
+
+    private void allocateSlab() {
+        byte[] slab = new byte[segmentCapacity * slabSegmentCount];
+        for (int i = 0; i < slabSegmentCount; i++) {
+            DataSegment dataSegment = new DataSegment(this, slab, i * segmentCapacity);
+            dataSegment.setPooled(true);
+            freeSegments.addLast(dataSegment);
+        }
+        totalCount += slabSegmentCount;
+    }
+
+    public int getSegmentCapacity() {
+        return segmentCapacity;
+    }
+
+    public XncpPayloadArena getArena() {
+        return arena;
+    }
+
+    /**
+     * 池中空闲的包的个数
+     * */
+    public int getFreeCount() {
+        return freeSegments.size();
+    }
+
+    /**
+     * 池一共创建过的包的个数
+     * */
+    public int getTotalCount() {
+        return totalCount;
+    }
+}
@@ -0,0 +1,92 @@
+package com.wyy.xncp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GatherBuffer
+ * 把一个数据报描述成若干段ByteBuffer，用于gather写
+ * 包头以及已经复制进flushBuffer的数据是flushBuffer中的一段，不复制的包的数据是调用者的buffer
+ * 描述flushBuffer各段用的ByteBuffer是flushBuffer的duplicate，创建之后一直复用，flush时不会分配对象
+ * */
+class GatherBuffer {
+
+    private final ByteBuffer backing;
+    private final ByteBuffer[] chunks;//backing的duplicate，按需创建
+    private final ByteBuffer[] buffers;//当前数据报的各段
+    private int count;
+    private int chunkCount;
+    private int lastBackingEnd = -1;//最后一段是backing中以这里结尾的一段时，紧接着的一段可以合并进去
+    private int payloadCount;//当前数据报中调用者buffer的段数
+
+    /**
+     * @param backing flushBuffer
+     * @param maxSegments 一个数据报中最多的包的个数，每个包最多占两段
+     * */
+    GatherBuffer(ByteBuffer backing, int maxSegments) {
+        this.backing = backing;
+        this.chunks = new ByteBuffer[maxSegments + 1];
+        this.buffers = new ByteBuffer[maxSegments * 2 + 1];
+    }
+
+    ByteBuffer getBacking() {
+        return backing;
+    }
+
+    /**
+     * 加入backing中[from,to)这一段
+     * */
+    void addBacking(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        if (lastBackingEnd == from) {//和上一段连续，直接延长
+            buffers[count - 1].limit(to);
+            lastBackingEnd = to;
+            return;
+        }
+        ByteBuffer chunk = chunks[chunkCount];
+        if (chunk == null) {
+            chunk = backing.duplicate();
+            chunks[chunkCount] = chunk;
+        }
+        chunkCount++;
+        chunk.limit(to);
+        chunk.position(from);
+        buffers[count++] = chunk;
+        lastBackingEnd = to;
+    }
+
+    /**
+     * 加入一段调用者的数据
+     * */
+    void addPayload(ByteBuffer payload) {
+        buffers[count++] = payload;
+        payloadCount++;
+        lastBackingEnd = -1;
+    }
+
+    /**
+     * 当前数据报是否引用了调用者的数据，没有的话直接输出flushBuffer就可以了
+     * */
+    boolean hasPayload() {
+        return payloadCount > 0;
+    }
+
+    ByteBuffer[] getBuffers() {
+        return buffers;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            buffers[i] = null;
+        }
+        count = 0;
+        chunkCount = 0;
+        payloadCount = 0;
+        lastBackingEnd = -1;
+    }
+}
@@ -0,0 +1,191 @@
+package com.wyy.xncp.core;
+
+/**
+ * ReedSolomon
+ * GF(256)上的系统Reed-Solomon编码，FEC用来从校验分片中恢复丢掉的数据分片
+ * 生成矩阵是单位矩阵下面接上校验矩阵，校验矩阵第0行全为1(就是异或校验)，之后各行是Cauchy矩阵 1/(x_i+y_j)
+ * x_i = dataCount+i-1，y_j = j，两两不同，所以任意dataCount个分片组成的方阵都可逆
+ * 只有1个校验分片时编码和恢复都只是异或
+ *
+ * 所有分片都是byte[]中从offset开始的size个字节
+ * */
+class ReedSolomon {
+
+    static final int MAX_SHARDS = 255;//分片编号是UInt8
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11d;//x^8+x^4+x^3+x^2+1
+            }
+        }
+        for (int i = 255; i < 512; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private ReedSolomon() {
+    }
+
+    static int multiply(int a, int b) {
+        return MUL[a & 0xff][b & 0xff] & 0xff;
+    }
+
+    static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse in GF(256)");
+        }
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * 第parityIndex个校验分片中第dataIndex个数据分片的系数
+     * */
+    static int coefficient(int parityIndex, int dataIndex, int dataCount) {
+        if (parityIndex == 0) {
+            return 1;
+        }
+        return inverse((dataCount + parityIndex - 1) ^ dataIndex);
+    }
+
+    /**
+     * 根据shards[0,dataCount)计算shards[dataCount,dataCount+parityCount)
+     * */
+    static void encode(byte[][] shards, int dataCount, int parityCount, int offset, int size) {
+        for (int i = 0; i < parityCount; i++) {
+            byte[] parity = shards[dataCount + i];
+            for (int k = offset; k < offset + size; k++) {
+                parity[k] = 0;
+            }
+            for (int j = 0; j < dataCount; j++) {
+                addMultiplied(parity, shards[j], coefficient(i, j, dataCount), offset, size);
+            }
+        }
+    }
+
+    /**
+     * dst += c*src
+     * */
+    private static void addMultiplied(byte[] dst, byte[] src, int c, int offset, int size) {
+        if (c == 0) {
+            return;
+        }
+        int end = offset + size;
+        if (c == 1) {
+            for (int k = offset; k < end; k++) {
+                dst[k] ^= src[k];
+            }
+            return;
+        }
+        byte[] row = MUL[c];
+        for (int k = offset; k < end; k++) {
+            dst[k] ^= row[src[k] & 0xff];
+        }
+    }
+
+    /**
+     * 用收到的分片恢复丢掉的数据分片，恢复出来的数据写进shards中对应的数组
+     * present[i]表示第i个分片(数据分片在前，校验分片在后)是否收到，丢掉的数据分片对应的数组也必须已经分配好
+     * @return 收到的分片不够时返回false
+     * */
+    static boolean reconstruct(byte[][] shards, boolean[] present, int dataCount, int parityCount, int offset, int size) {
+        int missingCount = 0;
+        for (int j = 0; j < dataCount; j++) {
+            if (!present[j]) {
+                missingCount++;
+            }
+        }
+        if (missingCount == 0) {
+            return true;
+        }
+        int[] missing = new int[missingCount];
+        int[] parityRows = new int[missingCount];
+        int m = 0;
+        for (int j = 0; j < dataCount; j++) {
+            if (!present[j]) {
+                missing[m++] = j;
+            }
+        }
+        int p = 0;
+        for (int i = 0; i < parityCount && p < missingCount; i++) {
+            if (present[dataCount + i]) {
+                parityRows[p++] = i;
+            }
+        }
+        if (p < missingCount) {
+            return false;
+        }
+
+        //右边：每个选中的校验分片减去已经收到的数据分片的贡献，恢复只在丢包时发生，这里直接分配临时数组
+        byte[][] rhs = new byte[missingCount][];
+        for (int a = 0; a < missingCount; a++) {
+            int row = parityRows[a];
+            byte[] value = new byte[offset + size];
+            System.arraycopy(shards[dataCount + row], offset, value, offset, size);
+            for (int j = 0; j < dataCount; j++) {
+                if (present[j]) {
+                    addMultiplied(value, shards[j], coefficient(row, j, dataCount), offset, size);
+                }
+            }
+            rhs[a] = value;
+        }
+
+        //左边的方阵求逆，高斯消元
+        int[][] matrix = new int[missingCount][missingCount * 2];
+        for (int a = 0; a < missingCount; a++) {
+            for (int b = 0; b < missingCount; b++) {
+                matrix[a][b] = coefficient(parityRows[a], missing[b], dataCount);
+            }
+            matrix[a][missingCount + a] = 1;
+        }
+        for (int col = 0; col < missingCount; col++) {
+            int pivot = col;
+            while (pivot < missingCount && matrix[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == missingCount) {
+                return false;
+            }
+            int[] tmp = matrix[pivot];
+            matrix[pivot] = matrix[col];
+            matrix[col] = tmp;
+            int scale = inverse(matrix[col][col]);
+            for (int k = 0; k < missingCount * 2; k++) {
+                matrix[col][k] = multiply(matrix[col][k], scale);
+            }
+            for (int r = 0; r < missingCount; r++) {
+                int factor = matrix[r][col];
+                if (r == col || factor == 0) {
+                    continue;
+                }
+                for (int k = 0; k < missingCount * 2; k++) {
+                    matrix[r][k] ^= multiply(factor, matrix[col][k]);
+                }
+            }
+        }
+
+        for (int b = 0; b < missingCount; b++) {
+            byte[] shard = shards[missing[b]];
+            for (int k = offset; k < offset + size; k++) {
+                shard[k] = 0;
+            }
+            for (int a = 0; a < missingCount; a++) {
+                addMultiplied(shard, rhs[a], matrix[b][missingCount + a], offset, size);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.wyy.xncp.core;
+
+/**
+ * RenoCongestionController
+ * 默认的拥塞控制，和tcp reno的做法一样
+ * 慢启动阶段每个ack窗口加1，超过ssthresh之后按字节数线性增长
+ * 快重传时ssthresh变为在途包数的一半，窗口变为ssthresh加上快重传阈值
+ * 超时重传时ssthresh变为窗口的一半，窗口回到1重新慢启动
+ * */
+public class RenoCongestionController implements CongestionController {
+
+    private long congestionWindow = 1;
+    private long ssthresh = XncpConsts.SSTHRESH_MIN;//拥塞避免阈值
+    private long increase;//拥塞窗口的增长量，单位 字节
+
+    @Override
+    public void onAck(Xncp xncp, long ackedCount, boolean unAckAdvanced, long currentTime) {
+        long remoteWindowSize = xncp.getRemoteWindowSize();
+        if (!unAckAdvanced || congestionWindow >= remoteWindowSize) {
+            return;
+        }
+        long mss = xncp.getMss();
+        if (congestionWindow < ssthresh) {
+            congestionWindow++;
+            increase += mss;
+        } else {
+            if (increase < mss) {
+                increase = mss;
+            }
+            increase += (mss * mss) / increase + (mss / 16);
+            if ((congestionWindow + 1) * mss <= increase) {
+                congestionWindow++;
+            }
+        }
+        if (congestionWindow > remoteWindowSize) {
+            congestionWindow = remoteWindowSize;
+            increase = remoteWindowSize * mss;
+        }
+    }
+
+    @Override
+    public void onRttSample(Xncp xncp, long rtt, long currentTime) {
+    }
+
+    @Override
+    public void onFastResend(Xncp xncp, long currentTime) {//进入拥塞避免阶段
+        ssthresh = xncp.getInFlightCount() >> 1;
+        if (ssthresh < XncpConsts.SSTHRESH_MIN) {
+            ssthresh = XncpConsts.SSTHRESH_MIN;
+        }
+        congestionWindow = ssthresh + xncp.getFastResendCount();//同tcp的实现
+        increase = congestionWindow * xncp.getMss();
+    }
+
+    @Override
+    public void onTimeout(Xncp xncp, long currentTime) {//发生了丢包,慢启动
+        ssthresh = congestionWindow >> 1;
+        if (ssthresh < XncpConsts.SSTHRESH_MIN) {
+            ssthresh = XncpConsts.SSTHRESH_MIN;
+        }
+        congestionWindow = 1;
+        increase = xncp.getMss();
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    @Override
+    public long getPacingRate() {
+        return 0;
+    }
+
+    public long getSsthresh() {
+        return ssthresh;
+    }
+}
@@ -0,0 +1,87 @@
+package com.wyy.xncp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SegmentHeader
+ * 解码出来的24字节包头，可以反复使用：每次decode覆盖上一次的内容，不分配对象
+ * 整个包头按三个64位整数读出来再拆成字段，布局见XncpTools.encodeHeader
+ * 包头中的序号和时间戳都是原始的32位值，还没有按本端的序号还原
+ * */
+public class SegmentHeader {
+
+    private long conversationID;
+    private byte command;
+    private byte fragmentID;
+    private int receiveWindowSize;
+    private long timeStamp;
+    private long sn;
+    private long unAckID;
+    private long dataLength;
+
+    /**
+     * 从buffer的loc位置解码一个包头，使用绝对位置，不改变position
+     * 调用之前需要保证loc之后至少有DATASEGMENT_HEADER_SIZE个字节
+     * */
+    public void decode(ByteBuffer buffer, int loc) {
+        unpack(XncpTools.decodeInt64(buffer, loc), XncpTools.decodeInt64(buffer, loc + 8),
+                XncpTools.decodeInt64(buffer, loc + 16));
+    }
+
+    /**
+     * 数组没有大端序的64位读取，合并再拆开反而更慢，所以直接按字段读
+     * */
+    public void decode(byte[] buffer, int loc) {
+        conversationID = XncpTools.decodeUint32(buffer, loc);
+        command = buffer[loc + 4];
+        fragmentID = buffer[loc + 5];
+        receiveWindowSize = XncpTools.decodeUInt16(buffer, loc + 6);
+        timeStamp = XncpTools.decodeUint32(buffer, loc + 8);
+        sn = XncpTools.decodeUint32(buffer, loc + 12);
+        unAckID = XncpTools.decodeUint32(buffer, loc + 16);
+        dataLength = XncpTools.decodeUint32(buffer, loc + 20);
+    }
+
+    private void unpack(long word0, long word1, long word2) {
+        conversationID = word0 >>> 32;
+        command = (byte) (word0 >>> 24);
+        fragmentID = (byte) (word0 >>> 16);
+        receiveWindowSize = (int) (word0 & 0xFFFF);
+        timeStamp = word1 >>> 32;
+        sn = word1 & 0xFFFFFFFFL;
+        unAckID = word2 >>> 32;
+        dataLength = word2 & 0xFFFFFFFFL;
+    }
+
+    public long getConversationID() {
+        return conversationID;
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public byte getFragmentID() {
+        return fragmentID;
+    }
+
+    public int getReceiveWindowSize() {
+        return receiveWindowSize;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public long getSn() {
+        return sn;
+    }
+
+    public long getUnAckID() {
+        return unAckID;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+}
@@ -0,0 +1,119 @@
+package com.wyy.xncp.core;
+
+/**
+ * SegmentWindow
+ * 以包序号sn为下标的环形缓冲区，用来实现发送窗口(sendBuff)和接收窗口(receiveBuff)
+ * 容量始终是2的幂，槽位下标为 sn & mask
+ * 只要窗口中同时存在的sn的跨度不超过容量，就不会出现冲突，
+ * 所以按sn查找、插入、删除都是O(1)的
+ * */
+public class SegmentWindow {
+
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private DataSegment[] slots;
+    private int mask;
+    private int size;//窗口中实际存在的包的个数
+
+    /**
+     * @param capacity 期望的容量，会向上取成2的幂
+     * */
+    public SegmentWindow(long capacity) {
+        int realCapacity = roundToPowerOfTwo(capacity);
+        this.slots = new DataSegment[realCapacity];
+        this.mask = realCapacity - 1;
+    }
+
+    /**
+     * 将capacity向上取到2的幂，最小为1，最大为MAX_CAPACITY
+     * */
+    static int roundToPowerOfTwo(long capacity) {
+        if (capacity >= MAX_CAPACITY) {
+            return MAX_CAPACITY;
+        }
+        int res = 1;
+        while (res < capacity) {
+            res <<= 1;
+        }
+        return res;
+    }
+
+    /**
+     * 获取序号为sn的包，不存在时返回null
+     * */
+    public DataSegment get(long sn) {
+        DataSegment dataSegment = slots[(int) sn & mask];
+        if (dataSegment == null || dataSegment.getSn() != sn) {
+            return null;
+        }
+        return dataSegment;
+    }
+
+    /**
+     * 判断序号为sn的包是否存在
+     * */
+    public boolean contains(long sn) {
+        return get(sn) != null;
+    }
+
+    /**
+     * 按照dataSegment自身的sn放入窗口
+     * @return false 对应的槽位已经被占用(重复包)，此时不会覆盖
+     * @return true 放入成功
+     * */
+    public boolean put(DataSegment dataSegment) {
+        int index = (int) dataSegment.getSn() & mask;
+        if (slots[index] != null) {
+            return false;
+        }
+        slots[index] = dataSegment;
+        size++;
+        return true;
+    }
+
+    /**
+     * 移除序号为sn的包并返回，不存在时返回null
+     * */
+    public DataSegment remove(long sn) {
+        int index = (int) sn & mask;
+        DataSegment dataSegment = slots[index];
+        if (dataSegment == null || dataSegment.getSn() != sn) {
+            return null;
+        }
+        slots[index] = null;
+        size--;
+        return dataSegment;
+    }
+
+    /**
+     * 保证容量不小于capacity
+     * 扩容时每个包按照自己的sn重新放置，只有窗口变大时才会发生
+     * */
+    public void ensureCapacity(long capacity) {
+        if (capacity <= slots.length) {
+            return;
+        }
+        int newCapacity = roundToPowerOfTwo(capacity);
+        DataSegment[] newSlots = new DataSegment[newCapacity];
+        int newMask = newCapacity - 1;
+        for (DataSegment dataSegment : slots) {
+            if (dataSegment != null) {
+                newSlots[(int) dataSegment.getSn() & newMask] = dataSegment;
+            }
+        }
+        this.slots = newSlots;
+        this.mask = newMask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,323 @@
+package com.wyy.xncp.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SendWindow
+ * 发送窗口(sendBuff)，和SegmentWindow一样是以sn & mask为下标的环形缓冲区，容量始终是2的幂
+ * 和SegmentWindow不同的是每个槽位的发送状态不放在DataSegment中，而是按槽位下标放在几个基本类型数组中：
+ * sn、下次超时重传时间、rto、发送次数、被跳过次数、分片编号和数据长度
+ * flushSendBuffer每次从sendUnAckID扫到sendNextID时只是顺序读这几个数组，只有真正要发出去的包才会去读数据
+ *
+ * 数据有两种存放方式：
+ * 默认直接引用DataSegment，数据在DataSegmentPool的slab中，放进窗口时不复制
+ * slab模式下放进窗口时把数据复制到窗口自己的连续内存中，DataSegment马上还给池，
+ * 每个在途的包只剩下数组中的几十个字节，而不是一个DataSegment对象；
+ * 不复制的send(payloadView)只保存引用的那一段，不会复制；比slab槽位大的包(mtu变大之后)
+ * 和数据在堆外内存(XncpPayloadArena)中的包仍然引用DataSegment
+ * slab按页分配，每页是PAGE_SLOTS个连续的槽位，第一次用到时才分配，之后一直保留
+ * */
+public class SendWindow {
+
+    static final int PAGE_SHIFT = 6;
+    static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+
+    private long[] sns;//槽位上的包的sn，-1表示空槽位
+    private long[] resendTimeStamps;//下次超时重传的时间戳
+    private int[] rtos;//这个包的超时重传等待时间
+    private int[] sendCounts;//这个包被发送的次数
+    private int[] jumpCounts;//收到ack时，这个包被跳过的次数
+    private byte[] fragmentIDs;
+    private int[] dataLengths;
+    private DataSegment[] segments;//数据还在DataSegment中的包
+    private ByteBuffer[] views;//slab模式下不复制的包引用的数据
+    private byte[][] pages;//slab模式下的数据，槽位slot在pages[slot>>PAGE_SHIFT]中的(slot&(PAGE_SLOTS-1))*stride处
+    private int mask;
+    private int size;
+
+    private boolean slabMode;
+    private int stride;//slab中每个槽位的字节数
+    private int pendingStride;//窗口不为空时改变的stride，等窗口空了再生效
+
+    /**
+     * @param capacity 期望的容量，会向上取成2的幂
+     * @param stride slab模式下每个槽位的字节数，一般是mss
+     * */
+    public SendWindow(long capacity, int stride) {
+        allocate(SegmentWindow.roundToPowerOfTwo(capacity));
+        this.stride = stride;
+        this.pendingStride = stride;
+    }
+
+    private void allocate(int capacity) {
+        sns = new long[capacity];
+        Arrays.fill(sns, -1);
+        resendTimeStamps = new long[capacity];
+        rtos = new int[capacity];
+        sendCounts = new int[capacity];
+        jumpCounts = new int[capacity];
+        fragmentIDs = new byte[capacity];
+        dataLengths = new int[capacity];
+        segments = new DataSegment[capacity];
+        views = new ByteBuffer[capacity];
+        pages = new byte[(capacity + PAGE_SLOTS - 1) >> PAGE_SHIFT][];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 设置是否把数据复制到窗口自己的slab中，只能在窗口为空时设置
+     * @return false 窗口中还有包，没有设置
+     * */
+    public boolean setSlabMode(boolean slabMode) {
+        if (size != 0) {
+            return false;
+        }
+        this.slabMode = slabMode;
+        if (!slabMode) {
+            pages = new byte[pages.length][];//释放slab
+        }
+        return true;
+    }
+
+    public boolean isSlabMode() {
+        return slabMode;
+    }
+
+    /**
+     * mss变化时调用，已经在slab中的包不受影响，窗口空了之后才按新的stride重新分配slab
+     * */
+    public void setStride(int stride) {
+        this.pendingStride = stride;
+        applyStride();
+    }
+
+    private void applyStride() {
+        if (size == 0 && stride != pendingStride) {
+            stride = pendingStride;
+            pages = new byte[pages.length][];
+        }
+    }
+
+    /**
+     * 把序号为sn的包放进窗口，发送状态清零
+     * slab模式下数据被复制之后dataSegment会被释放，调用者之后不能再使用它
+     * @return false 对应的槽位已经被占用，此时不会覆盖
+     * */
+    public boolean put(long sn, DataSegment dataSegment, long rto) {
+        int slot = (int) sn & mask;
+        if (sns[slot] != -1) {
+            return false;
+        }
+        applyStride();
+        sns[slot] = sn;
+        resendTimeStamps[slot] = 0;
+        rtos[slot] = (int) rto;
+        sendCounts[slot] = 0;
+        jumpCounts[slot] = 0;
+        fragmentIDs[slot] = dataSegment.getFragmentID();
+        int length = (int) dataSegment.getDataLength();
+        dataLengths[slot] = length;
+        size++;
+        if (!slabMode || length > stride || dataSegment.isOffHeap()) {
+            segments[slot] = dataSegment;
+            return true;
+        }
+        ByteBuffer view = dataSegment.getPayloadView();
+        if (view != null) {
+            views[slot] = view;
+        } else {
+            dataSegment.copyDataTo(getPage(slot), slotOffset(slot));
+        }
+        dataSegment.release();
+        return true;
+    }
+
+    private byte[] getPage(int slot) {
+        byte[] page = pages[slot >> PAGE_SHIFT];
+        if (page == null) {
+            page = new byte[stride * PAGE_SLOTS];
+            pages[slot >> PAGE_SHIFT] = page;
+        }
+        return page;
+    }
+
+    private int slotOffset(int slot) {
+        return (slot & (PAGE_SLOTS - 1)) * stride;
+    }
+
+    /**
+     * 序号为sn的包所在的槽位
+     * @return 不存在时返回-1
+     * */
+    public int slotOf(long sn) {
+        int slot = (int) sn & mask;
+        return sns[slot] == sn ? slot : -1;
+    }
+
+    public boolean contains(long sn) {
+        return sns[(int) sn & mask] == sn;
+    }
+
+    /**
+     * 移除序号为sn的包，引用的DataSegment会被释放
+     * @return 不存在时返回false
+     * */
+    public boolean remove(long sn) {
+        int slot = (int) sn & mask;
+        if (sns[slot] != sn) {
+            return false;
+        }
+        sns[slot] = -1;
+        DataSegment dataSegment = segments[slot];
+        if (dataSegment != null) {
+            segments[slot] = null;
+            dataSegment.release();
+        }
+        views[slot] = null;
+        size--;
+        return true;
+    }
+
+    public long getResendTimeStamp(int slot) {
+        return resendTimeStamps[slot];
+    }
+
+    public void setResendTimeStamp(int slot, long resendTimeStamp) {
+        resendTimeStamps[slot] = resendTimeStamp;
+    }
+
+    public long getRto(int slot) {
+        return rtos[slot];
+    }
+
+    public void setRto(int slot, long rto) {
+        rtos[slot] = (int) XncpTools.min(rto, Integer.MAX_VALUE);//一直超时重传时rto会一直变大
+    }
+
+    public int getSendCount(int slot) {
+        return sendCounts[slot];
+    }
+
+    /**
+     * @return 增加之后的发送次数
+     * */
+    public int increaseSendCount(int slot) {
+        return ++sendCounts[slot];
+    }
+
+    public int getJumpCount(int slot) {
+        return jumpCounts[slot];
+    }
+
+    public void setJumpCount(int slot, int jumpCount) {
+        jumpCounts[slot] = jumpCount;
+    }
+
+    /**
+     * 序号为sn的包被跳过一次
+     * @return 增加之后的被跳过次数，包不存在时返回-1
+     * */
+    public int increaseJumpCount(long sn) {
+        int slot = (int) sn & mask;
+        if (sns[slot] != sn) {
+            return -1;
+        }
+        return ++jumpCounts[slot];
+    }
+
+    public byte getFragmentID(int slot) {
+        return fragmentIDs[slot];
+    }
+
+    public int getDataLength(int slot) {
+        return dataLengths[slot];
+    }
+
+    /**
+     * 不复制的包引用的数据，用于gather写，每次获取时position重置为0
+     * @return 数据在DataSegment或者slab中时返回null
+     * */
+    public ByteBuffer getPayloadView(int slot) {
+        DataSegment dataSegment = segments[slot];
+        if (dataSegment != null) {
+            return dataSegment.getPayloadView();
+        }
+        ByteBuffer view = views[slot];
+        if (view != null) {
+            view.position(0);
+        }
+        return view;
+    }
+
+    /**
+     * 把槽位上的数据复制到dst的loc位置
+     * @return 复制的字节数
+     * */
+    public int copyDataTo(int slot, ByteBuffer dst, int loc) {
+        DataSegment dataSegment = segments[slot];
+        if (dataSegment != null) {
+            return dataSegment.copyDataTo(dst, loc);
+        }
+        int length = dataLengths[slot];
+        ByteBuffer view = views[slot];
+        if (view != null) {
+            XncpTools.copyBytes(view, 0, dst, loc, length);
+        } else {
+            XncpTools.putBytes(dst, loc, pages[slot >> PAGE_SHIFT], slotOffset(slot), length);
+        }
+        return length;
+    }
+
+    /**
+     * 保证容量不小于capacity
+     * 扩容时每个包按照自己的sn重新放置，只有窗口变大时才会发生
+     * */
+    public void ensureCapacity(long capacity) {
+        if (capacity <= sns.length) {
+            return;
+        }
+        long[] oldSns = sns;
+        long[] oldResendTimeStamps = resendTimeStamps;
+        int[] oldRtos = rtos;
+        int[] oldSendCounts = sendCounts;
+        int[] oldJumpCounts = jumpCounts;
+        byte[] oldFragmentIDs = fragmentIDs;
+        int[] oldDataLengths = dataLengths;
+        DataSegment[] oldSegments = segments;
+        ByteBuffer[] oldViews = views;
+        byte[][] oldPages = pages;
+        allocate(SegmentWindow.roundToPowerOfTwo(capacity));
+        for (int i = 0; i < oldSns.length; i++) {
+            if (oldSns[i] == -1) {
+                continue;
+            }
+            int slot = (int) oldSns[i] & mask;
+            sns[slot] = oldSns[i];
+            resendTimeStamps[slot] = oldResendTimeStamps[i];
+            rtos[slot] = oldRtos[i];
+            sendCounts[slot] = oldSendCounts[i];
+            jumpCounts[slot] = oldJumpCounts[i];
+            fragmentIDs[slot] = oldFragmentIDs[i];
+            dataLengths[slot] = oldDataLengths[i];
+            segments[slot] = oldSegments[i];
+            views[slot] = oldViews[i];
+            if (oldSegments[i] == null && oldViews[i] == null) {//数据在slab中
+                System.arraycopy(oldPages[i >> PAGE_SHIFT], slotOffset(i),
+                        getPage(slot), slotOffset(slot), oldDataLengths[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return sns.length;
+    }
+}
@@ -1,6 +1,8 @@
 package com.wyy.xncp.core;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Xncp 抽象类 没有给出具体的output实现，需要由使用者来实现
@@ -21,7 +23,7 @@ public abstract class Xncp {
     private long sendNextID;//下一个待发送的包的序号、
     private long remoteWindowSize;
     private boolean neendControl;//需要拥塞控制
-    private long congestionWindow; //拥塞控制时的窗口大小
+    private CongestionController congestionController;//拥塞控制算法，决定拥塞控制时的窗口大小
     private long currentTime;//现在时间
     private long rto ;//超时重传时间
     private long minRto;//最小超时重传时间
@@ -31,26 +33,120 @@ public abstract class Xncp {
     private boolean noDelay;//无延迟模式
     private int xncpState;//整体状态标识
     private int maxSendCount;//最多发送次数，当一个包发送次数大于这个值时，说明连接不通
-    private long ssthresh;//拥塞避免阈值
-    private long increase;//拥塞窗口的增长量
     private long askWindowSizeTimeStamp;//要询问对面接收窗口大小的时间戳
     private long askWindowSizeInterval;//时间间隔
     private boolean needAskWindowSize;//需要去询问对面的接收窗口大小
+    private long nextResendTimeStamp = Long.MAX_VALUE;//发送窗口中最早的超时重传时间，上一次flushSendBuffer时算出来的
+    private boolean hasUnsentSegment;//发送窗口中有还没发送过的包
+    private boolean fastResendPending;//发送窗口中有被跳过次数达到快速重传阈值的包
+    private boolean ackRangeMode;//使用COMMAND_ACK_RANGE批量发送ack，需要对端也支持
+    private long ackDelay;//延迟ack模式下ack最多等待的时间，为0时关闭延迟ack，每次update都发送
+    private int ackFrequency;//延迟ack模式下攒够这么多个ack就立即发送
+    private boolean streamMode;//流模式，不保留消息边界
+    private int receiveHeadOffset;//流模式下接收队列第一个包中已经被读走的字节数
+    private long receiveQueueBytes;//接收队列中还没有被读走的字节数
+    private int readableMessageCount;//接收队列中完整的消息个数，就是fragmentID为0的包的个数，移进和读走时增量维护
+    private XncpReceiveListener receiveListener;//有新的完整消息可读时回调
+    private CompletableFuture<Xncp> readableFuture;//whenReadable返回的还没有完成的future
+    private long ackDeadline;//延迟ack模式下，待发送的ack最晚的发送时间
+    private boolean pacing;//按速率把数据包分散到各次flush中发送，而不是一次发出整个窗口
+    private double pacingTokens = XncpConsts.PACING_MIN_BURST;//pacing时现在还可以发送的包数
+    private long pacingTimeStamp = -1;//上一次补充pacingTokens的时间
+    private XncpFec fec;//前向纠错层，开启FEC或者收到FEC包时才创建
+    private XncpMetrics metrics;//统计，为null时不统计
+    private XncpTracer tracer;//事件记录，为null时不记录
+    private long tracedCongestionWindow = -1;//上一次记录的拥塞窗口，用来只在变化时记录
+    private long tracedSsthresh = -1;
+
+
+
+
+    //两个队列只在头尾操作，使用基于数组的环形队列ArrayDeque
+    //两个窗口使用以sn为下标的环形缓冲区，ack删除和乱序插入都是O(1)的
+    private ArrayDeque<DataSegment>sendQueue = new ArrayDeque<DataSegment>();//发送队列
+    private SendWindow sendBuff;//发送缓存，一般指发送窗口，存放sn在[sendUnAckID,sendNextID)中还没被确认的包
+
+    private ArrayDeque<DataSegment>receiveQueue = new ArrayDeque<DataSegment>();//接收队列
+    private SegmentWindow receiveBuff;//接收缓存，一般指接收窗口，存放sn在[receiveNextID,receiveNextID+receiveWindowSize)中的乱序包
+
+    private DataSegmentPool segmentPool;//收发数据包的对象池，容量和mss一致，在setMtu中创建
+    private XncpPayloadArena payloadArena;//包数据的堆外内存池，为null时数据在堆上的slab中
+    private final DataSegment controlSegment = new DataSegment(0);//发送ack和窗口相关控制包时复用的包头
+    private ByteBuffer flushBuffer;//各个flush阶段共用的输出缓冲区，第一次真正需要发送时才创建，mtu变化后重新创建
+    private boolean outputDirectBuffer;//flushBuffer是否使用直接内存
+    private byte[] outputCopyBuffer;//flushBuffer是直接内存而使用者没有重写output(ByteBuffer)时，用来中转的数组
+    private ByteBuffer inputWrapper;//input(byte[])时对数组的包装，同一个数组重复使用时不需要重新包装
+    private final SegmentHeader inputHeader = new SegmentHeader();//input时解码包头用，反复使用
+    private boolean gatherOutput;//数据报中有不复制的包时，用output(ByteBuffer[],int,int)输出
+    private GatherBuffer gatherBuffer;//gather输出时描述当前数据报的各段，和flushBuffer一起重新创建
+    private ByteBuffer gatherCopyBuffer;//没有重写output(ByteBuffer[],int,int)时，用来把各段拼起来的缓冲区
+
+    private AckList ackList = new AckList((int)XncpConsts.DEFAULT_RECEIVE_WINDOW_SIZE);//接收到的包的sn和时间戳，等待发送ack
 
 
+    /**
+     * 构造函数
+     * 各项参数先给出默认值，使用者可以再通过set方法来修改
+     * @param conversationID 会话id，通信双方需要一致
+     * */
+    public Xncp(long conversationID){
+        this.conversationID = conversationID;
+        setMtu(XncpConsts.DEFAULT_MTU);
+        this.sendWindowSize = XncpConsts.DEFAULT_SEND_WINDOW_SIZE;
+        this.receiveWindowSize = XncpConsts.DEFAULT_RECEIVE_WINDOW_SIZE;
+        this.remoteWindowSize = XncpConsts.DEFAULT_RECEIVE_WINDOW_SIZE;
+        this.rto = XncpConsts.RTO_DEFAULT;
+        this.minRto = XncpConsts.RTO_MIN;
+        this.congestionController = new RenoCongestionController();
+        this.maxSendCount = XncpConsts.DEFAULT_MAX_SEND_COUNT;
+        this.sendBuff = new SendWindow(sendWindowSize,(int)mss);
+        this.receiveBuff = new SegmentWindow(receiveWindowSize);
+    }
 
+    public abstract void output(byte[]buffer,int st,int ed);//这个是整个Xncp协议中唯一不实现的地方，在发送时交给用户自己来实现
 
-    private LinkedList<DataSegment>sendQueue = new LinkedList<DataSegment>();//发送队列
-    private LinkedList<DataSegment>sendBuff = new LinkedList<DataSegment>();//发送缓存，一般指发送窗口
-
-    private LinkedList<DataSegment>receiveQueue = new LinkedList<DataSegment>();//接收队列
-    private LinkedList<DataSegment>receiveBuff = new LinkedList<DataSegment>();//接收缓存，一般指接收窗口
-
-    private LinkedList<Long>ackList = new LinkedList<Long>();//接收到的ack，这里暂时先使用链表来实现，缺点是下标访问时的时间复杂度为O（n）
-    private LinkedList<Long>timeStampList = new LinkedList<Long>();//接收到的包的时间序列，同上
+    /**
+     * 输出一个数据包，内容是buffer中position到limit之间的部分
+     * 默认实现会转交给output(byte[],int,int)，直接内存需要先复制一次
+     * 使用者可以重写这个方法，把buffer直接交给DatagramChannel之类的通道，这样直接内存也不需要复制
+     * 方法返回之后buffer会被继续复用，所以不能把它保存下来
+     * */
+    public void output(ByteBuffer buffer){
+        int len = buffer.remaining();
+        if(buffer.hasArray()){
+            int st = buffer.arrayOffset()+buffer.position();
+            output(buffer.array(),st,st+len);
+            return;
+        }
+        if(outputCopyBuffer == null || outputCopyBuffer.length<len){
+            outputCopyBuffer = new byte[(int)getMtu()*3];
+        }
+        buffer.get(outputCopyBuffer,0,len);
+        output(outputCopyBuffer,0,len);
+    }
 
+    /**
+     * 以gather的方式输出一个数据报，内容是buffers[offset,offset+length)各段position到limit之间的部分依次拼起来
+     * 只有开启了setGatherOutput并且数据报中有不复制发送(sendWithoutCopy)的包时才会调用
+     * 默认实现把各段复制到一起之后交给output(ByteBuffer)，使用者可以重写这个方法，
+     * 把buffers直接交给GatheringByteChannel(比如connect过的DatagramChannel)，这样数据一次也不用复制
+     * 和output(ByteBuffer)一样，方法返回之后这些buffer不能被保存下来
+     * */
+    public void output(ByteBuffer[] buffers,int offset,int length){
+        if(gatherCopyBuffer == null || gatherCopyBuffer.capacity()<getMtu()){
+            gatherCopyBuffer = ByteBuffer.allocate((int)getMtu());
+        }
+        gatherCopyBuffer.clear();
+        for(int i = offset;i<offset+length;i++){
+            gatherCopyBuffer.put(buffers[i]);
+        }
+        gatherCopyBuffer.flip();
+        output(gatherCopyBuffer);
+    }
 
-    public abstract void output(byte[]buffer,int st,int ed);//这个是整个Xncp协议中唯一不实现的地方，在发送时交给用户自己来实现
+    public long getConversationID() {
+        return conversationID;
+    }
 
     /**
      * getReadableBytesSize
@@ -59,13 +155,17 @@ public abstract class Xncp {
      * @return -1 不可读
      * @return len(long) 具体的字节数
      * 注意使用long作为返回值而不是int（先这样，待完善）
+     * 没有完整的消息时(getReadableMessageCount为0)直接返回-1，不会遍历接收队列
      */
 
     public long getReadableBytesSize(){
-        if(receiveQueue.isEmpty()){
+        if(readableMessageCount == 0){//没有完整的消息时不遍历接收队列
             return -1;
         }
-        int frg = receiveQueue.getFirst().getFragmentID();
+        if(streamMode){//流模式下接收队列中的数据都是可读的
+            return receiveQueueBytes;
+        }
+        int frg = receiveQueue.getFirst().getFragmentID()&0xff;//最多有255片，不能按有符号数来比较
         //fragmentId是按照倒序存的
         //ex：一个消息根据mtu分成了3条，那么就会有3个DataSegment 在队列中的顺序是 2 1 0
 
@@ -89,7 +189,8 @@ public abstract class Xncp {
     /**
      * 这个给上层调用，当上层想发送数据时调用
      * send方法会根据mss自动分片并加进队列
-     * 初步的实现是不加流模式的，都是按照包模式来实现，最后考虑加上流模式的实现
+     * 默认是包模式，一次send对应对端的一次receive，一条消息最多255片
+     * 流模式下(setStreamMode)不保留消息边界，也没有大小限制
      * @return -1 数据不可读
      * @return -2 发送数据太大
      * @return 0 发送成功 正常
@@ -98,29 +199,115 @@ public abstract class Xncp {
        if(XncpTools.isEmpty(buffer)){
            return -1;//返回不可读
        }
-       int cnt = 0 ;//要被分片的个数
-       int len = buffer.length ;
-       if(len>=mss){
-           cnt = 1;
-       }else{
-           //写到这脑子有点晕，先循环求一下，后期优化
-           int tmp = len ;
-           while(tmp>0){
-               tmp-=mss;
-               cnt++;
+       return send(buffer,0,buffer.length);
+    }
+
+    /**
+     * 发送buffer中从offset开始的length个字节
+     * 返回值同send(byte[])
+     * */
+    public int send(byte[] buffer,int offset,int length){
+       if(buffer == null || length<=0){
+           return -1;
+       }
+       return send(buffer,null,offset,length);
+    }
+
+    /**
+     * 发送ByteBuffer中从offset开始的length个字节，offset是绝对位置，不会改变buffer的position
+     * 堆上的buffer直接按数组处理，直接内存从buffer中直接复制到包里，不经过中间数组
+     * 返回值同send(byte[])
+     * */
+    public int send(ByteBuffer buffer,int offset,int length){
+       if(buffer == null || length<=0){
+           return -1;
+       }
+       if(buffer.hasArray()){
+           return send(buffer.array(),null,buffer.arrayOffset()+offset,length);
+       }
+       return send(null,buffer,offset,length);
+    }
+
+    /**
+     * 不复制数据的send，分片直接引用buffer中的数据，flush时从buffer中复制到输出缓冲区，
+     * 开启了setGatherOutput时连这一次复制也没有
+     * 调用者在这些分片都被对端确认之前(getPendingSendPacketCount变为0)不能修改buffer中的这段数据
+     * offset是绝对位置，不会改变buffer的position，流模式下也不会和前后的写入合并
+     * 返回值同send(byte[])
+     * */
+    public int sendWithoutCopy(ByteBuffer buffer,int offset,int length){
+       if(buffer == null || length<=0){
+           return -1;
+       }
+       int cnt = getFragmentCount(length);
+       if(!streamMode&&cnt>255) {
+           return -2;
+       }
+       ByteBuffer view = buffer.duplicate();
+       int loc = offset ;
+       int len = length ;
+       for(int i = cnt-1 ;i>=0 ;i--){
+           int size = (int)XncpTools.min(len,mss);
+           view.limit(view.capacity());
+           view.position(loc);
+           view.limit(loc+size);
+           DataSegment dataSegment = segmentPool.acquireView(view.slice());
+           dataSegment.setFragmentID(streamMode?0:(byte)i);
+           loc+=size;
+           len-=size;
+           this.sendQueue.add(dataSegment);
+       }
+       return 0 ;
+    }
+
+    /**
+     * 同sendWithoutCopy(ByteBuffer,int,int)，直接引用数组中的数据
+     * */
+    public int sendWithoutCopy(byte[] buffer,int offset,int length){
+       if(buffer == null || length<=0){
+           return -1;
+       }
+       return sendWithoutCopy(ByteBuffer.wrap(buffer),offset,length);
+    }
+
+    /**
+     * send的具体实现，array和byteBuffer只有一个不为null
+     * */
+    private int send(byte[] array,ByteBuffer byteBuffer,int offset,int length){
+       int loc = offset ;
+       int len = length ;
+       if(streamMode){
+           //先尽量填满发送队列中最后一个包，这个包还没有进入发送窗口，可以继续追加
+           DataSegment last = sendQueue.peekLast();
+           if(last != null){
+               int free = (int)XncpTools.min(last.getDataCapacity(),mss)-(int)last.getDataLength();
+               if(free>0){
+                   int size = (int)XncpTools.min(len,free);
+                   if(array != null){
+                       last.appendData(array,loc,size);
+                   }else {
+                       last.appendData(byteBuffer,loc,size);
+                   }
+                   loc+=size;
+                   len-=size;
+               }
            }
+           while(len>0){//剩下的按mss切分，不需要分片编号
+               int size = (int)XncpTools.min(len,mss);
+               sendQueue.add(acquireSegment(array,byteBuffer,loc,size));
+               loc+=size;
+               len-=size;
+           }
+           return 0;
        }
+
+       int cnt = getFragmentCount(length);//要被分片的个数
        if(cnt>255) {//比byte能存的最大大小还要大
            return -2;//返回数据太大
        }
-
-       int loc = 0 ;
        for(int i = cnt-1 ;i>=0 ;i--){
-           long size = len;
-           if(size>=mss){
-               size = mss;
-           }
-           DataSegment dataSegment = new DataSegment(buffer,loc,(int)size);//这里可能会有溢出问题，暂时先不考虑
+           int size = (int)XncpTools.min(len,mss);
+           DataSegment dataSegment = acquireSegment(array,byteBuffer,loc,size);
            dataSegment.setFragmentID((byte)i);
            loc+=size;
            len-=size;
@@ -129,6 +316,23 @@ public abstract class Xncp {
        return 0 ;//正常结束
     }
 
+    private DataSegment acquireSegment(byte[] array,ByteBuffer byteBuffer,int loc,int size){
+       if(array != null){
+           return segmentPool.acquire(array,loc,size);
+       }
+       return segmentPool.acquire(byteBuffer,loc,size);
+    }
+
+    /**
+     * 长度为len的数据按照mss需要被分成的片数
+     * */
+    private int getFragmentCount(int len){
+        if(len<=mss){
+            return 1;
+        }
+        return (int)((len+mss-1)/mss);
+    }
+
     /**
      * 获取还没发送的包的个数
      * */
@@ -139,6 +343,19 @@ public abstract class Xncp {
     }
 
 
+    /**
+     * 获取整体状态
+     * @return 0 正常
+     * @return -1 有包的发送次数超过了maxSendCount，说明连接已经不通了
+     * */
+    public int getXncpState() {
+        return xncpState;
+    }
+
+    DataSegmentPool getSegmentPool() {
+        return segmentPool;
+    }
+
     public long getMtu() {
         return mtu;
     }
@@ -151,16 +368,31 @@ public abstract class Xncp {
      * 设置mtu和mss
      * mss由mtu推导出的
      * mss = mtu - dataSegment包头大小，由于不知道下层所使用的协议，在实际使用的过程中需要减去实际的部分
+     * 开启了FEC时还要再减去FEC_OVERHEAD
      * @return -1 参数不合法
      * @return 0 设置成功
      * */
     public int setMtu(long mtu) {
-        if(mtu<XncpConsts.DATASEGMENT_HEADER_SIZE){
+        if(mtu<=XncpConsts.DATASEGMENT_HEADER_SIZE){
+            return -1;
+        }
+
+        if(isFecEncoding()&&mtu<=XncpConsts.DATASEGMENT_HEADER_SIZE+XncpConsts.FEC_OVERHEAD){
             return -1;
         }
 
         this.mtu = mtu;
-        this.mss = mtu - XncpConsts.DATASEGMENT_HEADER_SIZE;
+        this.mss = mtu - XncpConsts.DATASEGMENT_HEADER_SIZE - (isFecEncoding()?XncpConsts.FEC_OVERHEAD:0);
+        if(flushBuffer != null && flushBuffer.capacity() != mtu*3){
+            flushBuffer = null;//下次使用时按新的mtu重新创建
+        }
+        //mss变了之后池中的包大小不再合适，换一个新的池，旧池中的包被释放时还会回到旧池，随后被回收
+        if(segmentPool == null || segmentPool.getSegmentCapacity() != mss){
+            segmentPool = new DataSegmentPool((int)mss,payloadArena);
+        }
+        if(sendBuff != null){
+            sendBuff.setStride((int)mss);
+        }
         return 0;
     }
 
@@ -179,7 +411,8 @@ public abstract class Xncp {
      * */
     public void setSendWindowSize(long sendWindowSize) {
         if(sendWindowSize>0){//这里的单位指的是包的个数
-            this.sendWindowSize = sendWindowSize;
+            this.sendWindowSize = XncpTools.min(sendWindowSize,SegmentWindow.MAX_CAPACITY);
+            this.sendBuff.ensureCapacity(this.sendWindowSize);//窗口只会变大，已经在途的包不受影响
         }
 
     }
@@ -200,10 +433,293 @@ public abstract class Xncp {
     public void setReceiveWindowSize(long receiveWindowSize) {
 
         if(receiveWindowSize>0){
-            this.receiveWindowSize = receiveWindowSize;
+            this.receiveWindowSize = XncpTools.min(receiveWindowSize,SegmentWindow.MAX_CAPACITY);
+            this.receiveBuff.ensureCapacity(this.receiveWindowSize);
+        }
+
+    }
+
+    /**
+     * 设置初始序号，两端要约定好：本端的sendSn就是对端的receiveSn
+     * 包头中的序号只有32位，内部序号是long，所以参数只取低32位，之后序号越过2^32时包头中的序号会回绕，
+     * input时按照本端的序号还原
+     * 只能在还没有收发数据之前设置
+     * @return -1 已经有数据在收发
+     * @return 0 设置成功
+     * */
+    public int setInitialSequenceNumbers(long sendSn,long receiveSn){
+        if(sendNextID != sendUnAckID || !sendQueue.isEmpty() || !sendBuff.isEmpty() || !receiveBuff.isEmpty()
+                || !receiveQueue.isEmpty() || !ackList.isEmpty()){
+            return -1;
+        }
+        this.sendNextID = sendSn&0xFFFFFFFFL;
+        this.sendUnAckID = this.sendNextID;
+        this.receiveNextID = receiveSn&0xFFFFFFFFL;
+        return 0;
+    }
+
+    public boolean isNoDelay() {
+        return noDelay;
+    }
+
+    /**
+     * 设置无延迟模式
+     * 开启后第一次发送的超时时间不再额外加上rto/8，超时重传时rto每次只增加一半而不是翻倍
+     * */
+    public void setNoDelay(boolean noDelay) {
+        this.noDelay = noDelay;
+    }
+
+    public int getFastResendCount() {
+        return fastResendCount;
+    }
+
+    /**
+     * 设置快速重传阈值，一个包被之后的ack跳过这么多次时不等超时直接重传
+     * 不大于0时关闭快速重传
+     * */
+    public void setFastResendCount(int fastResendCount) {
+        this.fastResendCount = fastResendCount>0?fastResendCount:0;
+    }
+
+    public boolean isNeedControl() {
+        return neendControl;
+    }
+
+    /**
+     * 设置是否开启拥塞控制，开启后可以发送的包数还要受拥塞窗口限制
+     * */
+    public void setNeedControl(boolean needControl) {
+        this.neendControl = needControl;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    /**
+     * 设置这个会话使用的拥塞控制算法，默认是RenoCongestionController
+     * 只有开启了拥塞控制(setNeedControl)时才会限制发送窗口
+     * 算法对象保存的是单个会话的状态，每个会话需要使用自己的对象
+     * */
+    public void setCongestionController(CongestionController congestionController) {
+        if(congestionController == null){
+            throw new IllegalArgumentException("congestionController can not be null");
         }
+        this.congestionController = congestionController;
+    }
+
+    /**
+     * 对端的接收窗口大小，单位 包
+     * */
+    public long getRemoteWindowSize() {
+        return remoteWindowSize;
+    }
 
+    /**
+     * 已经进入发送窗口还没有被全部确认的包的sn跨度，即sendNextID-sendUnAckID
+     * */
+    public long getInFlightCount() {
+        return sendNextID-sendUnAckID;
     }
+
+    /**
+     * 当前的超时重传时间，单位ms
+     * */
+    public long getRto() {
+        return rto;
+    }
+
+    /**
+     * 平滑rtt(RFC6298中的SRTT)，还没有rtt样本时为0，单位ms
+     * */
+    public long getSmoothedRtt() {
+        return staticRtt;
+    }
+
+    /**
+     * rtt的平均偏差(RFC6298中的RTTVAR)，单位ms
+     * */
+    public long getRttVariance() {
+        return rtt;
+    }
+
+    /**
+     * 拥塞控制算法当前给出的拥塞窗口，单位 包，没有开启拥塞控制时不生效
+     * */
+    public long getCongestionWindow() {
+        return congestionController.getCongestionWindow();
+    }
+
+    /**
+     * 慢启动阈值，只有RenoCongestionController有，其他算法返回-1
+     * */
+    public long getSsthresh() {
+        if(congestionController instanceof RenoCongestionController){
+            return ((RenoCongestionController)congestionController).getSsthresh();
+        }
+        return -1;
+    }
+
+    public XncpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置统计，为null时关闭统计，多个会话可以共用一个XncpMetrics
+     * */
+    public void setMetrics(XncpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public XncpPayloadArena getPayloadArena() {
+        return payloadArena;
+    }
+
+    /**
+     * 设置包数据的堆外内存池，为null时数据放回堆上，多个会话可以共用一个XncpPayloadArena
+     * 之后新产生的包从arena中取直接内存，已经在队列和窗口中的包不受影响，释放时回到原来的地方
+     * 使用arena的会话不再使用时需要调用release，否则还没被确认和读走的包占用的块不会还给arena
+     * */
+    public void setPayloadArena(XncpPayloadArena payloadArena) {
+        if(this.payloadArena == payloadArena){
+            return;
+        }
+        this.payloadArena = payloadArena;
+        segmentPool = new DataSegmentPool((int)mss,payloadArena);
+    }
+
+    /**
+     * 释放会话中所有还没被确认、还没被读走的包，会话不再使用时调用，之后不能再使用这个会话
+     * */
+    public void release(){
+        for(DataSegment dataSegment:sendQueue){
+            dataSegment.release();
+        }
+        sendQueue.clear();
+        for(long sn = sendUnAckID;sn<sendNextID;sn++){
+            sendBuff.remove(sn);
+        }
+        sendUnAckID = sendNextID;
+        for(long sn = receiveNextID;!receiveBuff.isEmpty();sn++){
+            DataSegment dataSegment = receiveBuff.remove(sn);
+            if(dataSegment != null){
+                dataSegment.release();
+            }
+        }
+        for(DataSegment dataSegment:receiveQueue){
+            dataSegment.release();
+        }
+        receiveQueue.clear();
+        receiveQueueBytes = 0;
+        receiveHeadOffset = 0;
+        readableMessageCount = 0;
+    }
+
+    public XncpTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * 设置事件记录，为null时关闭，多个会话可以共用一个XncpTracer
+     * */
+    public void setTracer(XncpTracer tracer) {
+        this.tracer = tracer;
+        if(tracer != null){
+            tracedCongestionWindow = -1;
+            tracedSsthresh = -1;
+            traceCongestionWindow();
+        }
+    }
+
+    /**
+     * 拥塞窗口或者慢启动阈值和上一次记录的不一样时记录一次
+     * */
+    private void traceCongestionWindow(){
+        long congestionWindow = getCongestionWindow();
+        long ssthresh = getSsthresh();
+        if(congestionWindow != tracedCongestionWindow||ssthresh != tracedSsthresh){
+            tracedCongestionWindow = congestionWindow;
+            tracedSsthresh = ssthresh;
+            tracer.record(currentTime,conversationID,XncpTracer.EVENT_CONGESTION_WINDOW,congestionWindow,ssthresh);
+        }
+    }
+
+    private boolean isFecEncoding(){
+        return fec != null&&fec.isEncoding();
+    }
+
+    /**
+     * 开启前向纠错
+     * 每dataShards个数据报为一组，每组加上parityShards个校验分片，一组中丢掉的数据报不超过收到的校验分片数时可以直接恢复
+     * 开启后mss会减少FEC_OVERHEAD个字节，需要在send之前设置，双方都需要开启
+     * @param dataShards 为0时关闭
+     * @param adaptive 是否按照对端反馈的丢包率调整校验分片数，为true时parityShards是上限
+     * @return -1 参数不合法
+     * @return 0 设置成功
+     * */
+    public int setFec(int dataShards,int parityShards,boolean adaptive){
+        if(dataShards<0||parityShards<0||dataShards+parityShards>ReedSolomon.MAX_SHARDS
+                ||mtu<=XncpConsts.DATASEGMENT_HEADER_SIZE+XncpConsts.FEC_OVERHEAD){
+            return -1;
+        }
+        if(fec == null){
+            fec = new XncpFec(this);
+        }
+        fec.configure(dataShards,parityShards,adaptive);
+        setMtu(mtu);//重新计算mss
+        return 0;
+    }
+
+    public int getFecDataShards() {
+        return fec == null?0:fec.getDataShards();
+    }
+
+    public int getFecParityShards() {
+        return fec == null?0:fec.getParityShards();
+    }
+
+    /**
+     * 通过FEC恢复出来的数据报个数
+     * */
+    public long getFecRecoveredCount() {
+        return fec == null?0:fec.getRecoveredCount();
+    }
+
+    /**
+     * 本端在收到的FEC分片中观测到的丢包率，千分比
+     * */
+    public int getFecLossPermille() {
+        return fec == null?0:fec.getLossPermille();
+    }
+
+    public boolean isPacing() {
+        return pacing;
+    }
+
+    /**
+     * 设置是否开启pacing
+     * 开启后每次flush只发送按速率(getPacingRate)积累的额度内的包，剩下的包留到之后的flush，
+     * check返回的时间会提前到额度足够的时候，用XncpTimerWheel之类的方式按check驱动时包会被均匀地发出去
+     * 发出去的包仍然通过output，不需要修改output的实现
+     * */
+    public void setPacing(boolean pacing) {
+        this.pacing = pacing;
+    }
+
+    public long getMinRto() {
+        return minRto;
+    }
+
+    /**
+     * 设置最小超时重传时间，单位ms
+     * */
+    public void setMinRto(long minRto) {
+        if(minRto>0){
+            this.minRto = minRto;
+        }
+    }
+
     /**
      * 上层接收数据时调用
      *
@@ -213,12 +729,38 @@ public abstract class Xncp {
      * @return -4 读取的数据长度和getReadableBytesSize中估计的不一样，原因未知
      * */
     public int receive(byte []buffer){
+        return receive(buffer,null,0,buffer.length);
+    }
+
+    /**
+     * 上层接收数据时调用，数据从buffer的position开始写入，写完之后position后移
+     * buffer可以是直接内存
+     * 返回值同receive(byte[])
+     * */
+    public int receive(ByteBuffer buffer){
+        int position = buffer.position();
+        int res = receive(null,buffer,position,buffer.remaining());
+        if(res>0){
+            buffer.position(position+res);
+        }
+        return res;
+    }
+
+    /**
+     * receive的具体实现，array和byteBuffer只有一个不为null
+     * @param begin 写入的起始位置
+     * @param capacity 最多可以写入的字节数
+     * */
+    private int receive(byte[] array,ByteBuffer byteBuffer,int begin,int capacity){
         if(receiveQueue.isEmpty()){
             return -1;
         }
+        if(streamMode){
+            return receiveStream(array,byteBuffer,begin,capacity);
+        }
         long readableBytesSize = getReadableBytesSize();//len指的是可读的字节数
         int cnt = 0 ;//指的是包的个数
-        int loc = 0 ;//位移量
+        int loc = begin ;//位移量
         long len = 0 ;//用来记录读了多少字节 主要功能是用来校验 和上面的loc功能上不同，但是实际上保持一致，主要为了保证代码的可读性
 
         boolean needRecover = receiveQueue.size()>=receiveWindowSize;//这里如果出现这种情况，那么对端就不会再发送数据过来，在给上层传递过数据包后视情况给对端传递恢复包
@@ -226,13 +768,17 @@ public abstract class Xncp {
         if(readableBytesSize<0){
             return -2;
         }
-        if(readableBytesSize<buffer.length){
+        if(readableBytesSize>capacity){
             return -3;
         }
         for(DataSegment dataSegment:this.receiveQueue){
             len += dataSegment.getDataLength();
 
-            System.arraycopy(dataSegment.getData(),0,buffer,loc,(int) dataSegment.getDataLength());
+            if(array != null){
+                dataSegment.copyDataTo(array,loc);
+            }else {
+                dataSegment.copyDataTo(byteBuffer,loc);
+            }
 
             loc += dataSegment.getDataLength();
 
@@ -254,36 +800,169 @@ public abstract class Xncp {
             dataSegment.release();//显式的调用一下析构函数，虽然这在这里没有什么用
             this.receiveQueue.removeFirst();//从队列中移除
         }
+        receiveQueueBytes-=len;
+        readableMessageCount--;
         updateReceive(needRecover);
 
-        return (int)len;
+        return (int)len;
+    }
+
+    /**
+     * 流模式下的receive，接收队列中有多少读多少，最多读capacity个字节
+     * 一个包只读了一部分时记录下读到的位置，下次从这里继续
+     * */
+    private int receiveStream(byte[] array,ByteBuffer byteBuffer,int begin,int capacity){
+        if(capacity<=0){
+            return -3;
+        }
+        boolean needRecover = receiveQueue.size()>=receiveWindowSize;
+        int loc = begin;
+        int read = 0;
+        while(read<capacity&&!receiveQueue.isEmpty()){
+            DataSegment dataSegment = receiveQueue.getFirst();
+            int size = (int)XncpTools.min(dataSegment.getDataLength()-receiveHeadOffset,capacity-read);
+            if(array != null){
+                dataSegment.copyDataTo(array,loc,receiveHeadOffset,size);
+            }else {
+                dataSegment.copyDataTo(byteBuffer,loc,receiveHeadOffset,size);
+            }
+            loc+=size;
+            read+=size;
+            receiveHeadOffset+=size;
+            if(receiveHeadOffset == dataSegment.getDataLength()){//这个包读完了
+                receiveQueue.removeFirst();
+                if(dataSegment.getFragmentID() == 0){
+                    readableMessageCount--;
+                }
+                dataSegment.release();
+                receiveHeadOffset = 0;
+            }
+        }
+        receiveQueueBytes-=read;
+        updateReceive(needRecover);
+        return read;
+    }
+
+    /**
+     * 设置流模式，需要在开始收发数据之前设置，通信双方需要一致
+     * 流模式下send不保留消息边界，连续的小写入会被合并成mss大小的包，也没有255片的限制；
+     * receive返回接收队列中当前所有可读的字节，buffer放不下时只读一部分，剩下的下次再读
+     * */
+    public void setStreamMode(boolean streamMode) {
+        this.streamMode = streamMode;
+    }
+
+    public boolean isStreamMode() {
+        return streamMode;
+    }
+
+    /**
+     * 将receiveBuff中的符合要求的数据包放到receiveQueue中
+     * 符合要求是指dataSegment.sn == receiveNextID
+     * @param needRecover 是否需要恢复
+     * 具体恢复是和实际情况有关
+     * */
+    private void updateReceive(boolean needRecover){
+        moveToReceiveQueue();
+        if(receiveQueue.size()<receiveWindowSize&&needRecover){
+
+            needSendReceiveWindowSize = true;
+        }
+
+    }
+
+    /**
+     * 将receiveBuff中从receiveNextID开始连续的包按顺序移到receiveQueue中
+     * 直接按sn取槽位，不需要遍历整个接收窗口
+     * */
+    private void moveToReceiveQueue(){
+        int moved = 0;
+        int completed = 0;
+        while(this.receiveQueue.size()<receiveWindowSize){
+            DataSegment dataSegment = receiveBuff.remove(receiveNextID);
+            if(dataSegment == null){
+                break;
+            }
+            this.receiveQueue.add(dataSegment);
+            receiveQueueBytes+=dataSegment.getDataLength();
+            receiveNextID++;//内部序号是long，不会回绕，包头中的32位序号在input时还原
+            moved++;
+            if(dataSegment.getFragmentID() == 0){//一条消息的最后一片到了，流模式下每个包都是0
+                completed++;
+            }
+        }
+        if(moved>0){
+            onReceiveQueueReady();
+        }
+        if(completed>0){
+            readableMessageCount+=completed;
+            notifyReadable();
+        }
+    }
+
+    /**
+     * 有新的完整消息可读时通知listener，并完成whenReadable返回的future
+     * future在listener之后完成，两者都在input的调用线程中执行
+     * */
+    private void notifyReadable(){
+        if(receiveListener != null){
+            receiveListener.onReadable(this);
+        }
+        CompletableFuture<Xncp> future = readableFuture;
+        if(future != null&&readableMessageCount>0){//listener中可能已经把消息读走了
+            readableFuture = null;
+            future.complete(this);
+        }
+    }
+
+    /**
+     * 接收队列中完整的消息个数，增量维护，不遍历接收队列
+     * 流模式下没有消息边界，是接收队列中的包的个数，大于0时就有数据可读
+     * */
+    public int getReadableMessageCount(){
+        return readableMessageCount;
+    }
+
+    /**
+     * 设置有新的完整消息可读时的回调，为null时取消
+     * */
+    public void setReceiveListener(XncpReceiveListener receiveListener){
+        this.receiveListener = receiveListener;
+    }
+
+    public XncpReceiveListener getReceiveListener(){
+        return receiveListener;
     }
 
     /**
-     * 将receiveBuff中的符合要求的数据包放到receiveQueue中
-     * 符合要求是指dataSegment.sn == receiveNextID
-     * @param needRecover 是否需要恢复
-     * 具体恢复是和实际情况有关
+     * 返回一个在有完整消息可读时完成的future，现在就有消息可读时返回已经完成的future
+     * 还没有完成之前再次调用返回同一个future，future在input的调用线程中完成，
+     * 后续的回调如果不是async的也会在这个线程中执行，不能在其他线程中访问这个会话
      * */
-    private void updateReceive(boolean needRecover){
-        int cnt  = 0 ;
-        for(DataSegment dataSegment:receiveBuff){// todo 这有一个坑点，以后填,现在想的是底层来解决
-            if(dataSegment.getSn() == receiveNextID&&this.receiveQueue.size()< receiveWindowSize){
-                cnt++;
-                this.receiveQueue.add(dataSegment);
-                receiveNextID++;// todo 这有一个序号回绕溢出问题，待填
-            }else {
-                break;
-            }
+    public CompletableFuture<Xncp> whenReadable(){
+        if(readableMessageCount>0){
+            return CompletableFuture.<Xncp>completedFuture(this);
         }
-        for(int i = 0 ;i<cnt;i++){
-            this.receiveBuff.removeFirst();
+        if(readableFuture == null){
+            readableFuture = new CompletableFuture<Xncp>();
         }
-        if(receiveQueue.size()<receiveWindowSize&&needRecover){
+        return readableFuture;
+    }
 
-            needSendReceiveWindowSize = true;
-        }
+    /**
+     * 有新的包被移进接收队列之后调用，默认什么都不做
+     * 调用时接收队列中不一定有完整的消息，需要再用getReadableBytesSize判断
+     * 在input或者receive的调用线程中执行，子类可以在这里唤醒等待数据的线程，而不用轮询getReadableBytesSize
+     * */
+    protected void onReceiveQueueReady(){
+    }
 
+    /**
+     * input中有发送缓存中的包被确认之后调用，默认什么都不做
+     * 这时getPendingSendPacketCount已经变小，子类可以在这里唤醒因为发送窗口满了而等待的线程
+     * @param ackedCount 这一次被确认的包的个数
+     * */
+    protected void onSendBufferAcked(long ackedCount){
     }
 
     /**
@@ -302,18 +981,21 @@ public abstract class Xncp {
      * */
     private void updateSendUnAckID(){
 
-        sendUnAckID = sendNextID;//默认情况
-
-        if(!sendBuff.isEmpty()){//如果发送缓存不为空，那么就更新成发送缓存中的第一个包的序号
-
-            sendUnAckID = sendBuff.getFirst().getSn();
-
+        if(sendBuff.isEmpty()){//默认情况
+            sendUnAckID = sendNextID;
+            return;
+        }
+        //发送缓存不为空时，跳过已经被确认的槽位，第一个还存在的包的序号就是sendUnAckID
+        //每个sn只会被跳过一次，所以均摊下来是O(1)的
+        while(sendUnAckID<sendNextID&&!sendBuff.contains(sendUnAckID)){
+            sendUnAckID++;
         }
     }
 
     /**
      * 根据对端传回来的Ack包序号来删除对应本地包，类似选择确认
-     * 同时将被跳过的包增加被跳过的次数
+     * 直接按sn定位槽位，O(1)
+     * 被跳过的包的计数放在updateByMaxAckID中统一处理
      * */
     private void updateByAckID(long sn){
 
@@ -324,69 +1006,79 @@ public abstract class Xncp {
             return;
         }
 
-        int loc = 0 ;
-        for(DataSegment dataSegment:this.sendBuff){
-            if(dataSegment.getSn() == sn){
-                this.sendBuff.remove(loc);
-                break;
-            }
-
-            loc++;
+        this.sendBuff.remove(sn);
 
-            if(sn < dataSegment.getSn()){//特殊情况考虑一下
-
-                break;
+    }
 
+    /**
+     * 处理COMMAND_ACK_RANGE的数据部分，buffer中从loc开始的len个字节是若干个区间
+     * 每个区间用自己的时间戳更新一次rtt，区间内的包按sn直接从发送窗口中删除
+     * 所有区间加起来只会访问发送窗口中被确认的槽位，不需要逐个ack去查找
+     * @return 这些区间中最大的sn，没有有效区间时返回-1
+     * */
+    private long updateByAckRanges(ByteBuffer buffer,int loc,int len){
+        long maxAckID = -1;
+        int end = loc+len;
+        for(;loc+XncpConsts.ACK_RANGE_SIZE<=end;loc+=XncpConsts.ACK_RANGE_SIZE){
+            long startSn = XncpTools.unwrapUint32(XncpTools.decodeUint32(buffer,loc),this.sendUnAckID);
+            long endSn = XncpTools.unwrapUint32(XncpTools.decodeUint32(buffer,loc+4),this.sendUnAckID);
+            long timeStamp = XncpTools.decodeUint32(buffer,loc+8);
+            if(endSn<startSn){
+                continue;
+            }
+            updateRttAndRto(XncpTools.serialDiff(currentTime,timeStamp));
+            long first = XncpTools.max(startSn,this.sendUnAckID);
+            long last = XncpTools.min(endSn,this.sendNextID-1);
+            for(long sn = first;sn<=last;sn++){
+                this.sendBuff.remove(sn);
             }
+            if(endSn>maxAckID){
+                maxAckID = endSn;
+            }
+        }
+        updateSendUnAckID();
+        return maxAckID;
+    }
 
-            dataSegment.increaseJumpCount();//被跳过
+    /**
+     * 一次input中收到的最大ack为maxAckID时，将它之前还没有被确认的包增加被跳过的次数
+     * 每次input只扫描一遍，而不是每个ack都扫描一遍
+     * */
+    private void updateByMaxAckID(long maxAckID){
 
+        if(maxAckID<this.sendUnAckID||maxAckID>=this.sendNextID){
+            return;
         }
 
-
+        for(long sn = this.sendUnAckID;sn<maxAckID;sn++){
+            int jumpCount = this.sendBuff.increaseJumpCount(sn);//被跳过，已经被确认的包返回-1
+            if(fastResendCount>0&&jumpCount>=fastResendCount){
+                fastResendPending = true;
+            }
+        }
 
     }
 
     /**
      * 根据对端传来的una来批量删除本地的包
      * 当调用此方法时，会将发送缓存中所有sn小于unAckID的包全部删除
+     * sendUnAckID之前的包都已经被删除了，所以只需要从sendUnAckID开始
      * */
     private void updateByUnAckID(long unAckID){
 
-        int cnt = 0 ;
-
-        for(DataSegment dataSegment:this.sendBuff){
-
-            if(dataSegment.getSn()<unAckID){
-
-                cnt++;
-
-            }else {
-
-                break;
-            }
-        }
-
-        for(int i = 0;i < cnt ; i++){
-
-            this.sendBuff.removeFirst();
+        long end = XncpTools.min(unAckID,this.sendNextID);
 
+        for(long sn = this.sendUnAckID;sn<end;sn++){
+            this.sendBuff.remove(sn);
         }
 
     }
 
     /**
-     * 接收到了一个包，将对应的ack放入ackList中
-     * */
-    private void addAck(long sn){
-        this.ackList.add(sn);
-    }
-
-    /**
-     * 接收到了一个包，将对应的时间放入timeStampList中
+     * 接收到了一个包，将对应的sn和时间戳放入ackList中
      * */
-    private void addTimeStamp(long timeStamp){
-        this.timeStampList.add(timeStamp);
+    private void addAck(long sn,long timeStamp){
+        this.ackList.add(sn,timeStamp);
     }
 
 
@@ -399,79 +1091,120 @@ public abstract class Xncp {
      * @return -4 command无法识别
      * */
     public int input(byte [] buffer){
+        return input(buffer,0,buffer.length);
+    }
+
+    /**
+     * 底层接收到的包放在buffer中从offset开始的length个字节时调用
+     * 返回值同input(byte[])
+     * */
+    public int input(byte [] buffer,int offset,int length){
+        if(inputWrapper == null || inputWrapper.array() != buffer){
+            inputWrapper = ByteBuffer.wrap(buffer);
+        }
+        return input(inputWrapper,offset,length);
+    }
 
-        if(buffer.length<XncpConsts.DATASEGMENT_HEADER_SIZE){
+    /**
+     * 底层接收到的包放在ByteBuffer中从offset开始的length个字节时调用
+     * offset是绝对位置，不会改变buffer的position，buffer可以是直接内存
+     * 包头直接在buffer中解析，只有数据部分会被复制一次到包中
+     * 返回值同input(byte[])
+     * */
+    public int input(ByteBuffer buffer,int offset,int length){
+
+        if(length<XncpConsts.DATASEGMENT_HEADER_SIZE||offset<0||offset+length>buffer.limit()){
             return -1;
         }
-        int loc = 0 ;
+        if(XncpTools.decodeByte(buffer,offset+4) == XncpConsts.COMMAND_FEC){//整个数据报是一个FEC分片
+            if(XncpTools.decodeUint32(buffer,offset) != conversationID){
+                return -2;
+            }
+            if(fec == null){
+                fec = new XncpFec(this);
+            }
+            return fec.input(buffer,offset,length);
+        }
+        if(metrics != null){
+            metrics.onDatagramIn(length);
+        }
+        int end = offset+length;
+        int loc = offset ;
         long sUnAckId = sendUnAckID;
-        long remoteTimeStamp,remoteSn,remoteLength,remoteUnAckId,remoteConversationId;
-        int remoteWindowSize;
-        byte remoteCommand,remoteFragmentId;
+        int sendBuffSize = sendBuff.size();
+        long oldRemoteWindowSize = this.remoteWindowSize;
+        long maxAckID = -1;//本次收到的最大的ack
+        SegmentHeader header = inputHeader;
         while(true){
 
-            if(loc+XncpConsts.DATASEGMENT_HEADER_SIZE<buffer.length){
+            if(loc+XncpConsts.DATASEGMENT_HEADER_SIZE>end){
                 break;
             }
 
-            //decode
-            remoteConversationId = XncpTools.decodeUint32(buffer,loc);
-            loc+=4;
-
-            remoteCommand = XncpTools.decodeByte(buffer,loc);
-            loc+=1;
-
-            remoteFragmentId = XncpTools.decodeByte(buffer,loc);
-            loc+=1;
-
-            remoteWindowSize = XncpTools.decodeUInt16(buffer,loc);
-            loc+=2;
+            //decode 整个包头一次读出来
+            header.decode(buffer,loc);
+            loc+=XncpConsts.DATASEGMENT_HEADER_SIZE;
+            byte remoteCommand = header.getCommand();
+            long remoteLength = header.getDataLength();//handleDataSegment中可能回调到使用者，先把长度取出来
 
-            remoteTimeStamp = XncpTools.decodeUint32(buffer,loc);
-            loc+=4;
-
-            remoteSn = XncpTools.decodeUint32(buffer,loc);
-            loc+=4;
-
-            remoteUnAckId = XncpTools.decodeUint32(buffer,loc);
-            loc+=4;
-
-            remoteLength = XncpTools.decodeUint32(buffer,loc);
-            loc+=4;
-
-            if(remoteConversationId != conversationID){
+            if(header.getConversationID() != conversationID){
                 return -2;
             }
-            if(buffer.length-loc<remoteLength){
+            if(end-loc<remoteLength){
                 return -3;
             }
-            if(remoteCommand!=XncpConsts.COMMAND_ACK&&remoteCommand!=XncpConsts.COMMAND_ASK_WINDOW_SIZE&&remoteCommand!=XncpConsts.COMMAND_DATA&&remoteCommand!=XncpConsts.COMMAND_TELL_WINDOW_SIZE){
+            if(remoteCommand!=XncpConsts.COMMAND_ACK&&remoteCommand!=XncpConsts.COMMAND_ASK_WINDOW_SIZE&&remoteCommand!=XncpConsts.COMMAND_DATA&&remoteCommand!=XncpConsts.COMMAND_TELL_WINDOW_SIZE
+                    &&remoteCommand!=XncpConsts.COMMAND_ACK_RANGE){
                 return -4;
             }
+            if(remoteCommand == XncpConsts.COMMAND_ACK_RANGE&&remoteLength%XncpConsts.ACK_RANGE_SIZE!=0){
+                return -3;
+            }
 
-            this.remoteWindowSize = remoteWindowSize;//这重名了
+            this.remoteWindowSize = header.getReceiveWindowSize();
 
-            updateByUnAckID(remoteUnAckId);
+            //包头中的序号只有32位，按照本端的序号还原成不回绕的64位序号
+            updateByUnAckID(XncpTools.unwrapUint32(header.getUnAckID(),sendUnAckID));
             updateSendUnAckID();
             if(remoteCommand == XncpConsts.COMMAND_ACK){
-                updateRttAndRto(currentTime-remoteTimeStamp);
+                long remoteSn = XncpTools.unwrapUint32(header.getSn(),sendUnAckID);
+                updateRttAndRto(XncpTools.serialDiff(currentTime,header.getTimeStamp()));
                 updateByAckID(remoteSn);
                 updateSendUnAckID();
+                if(remoteSn>maxAckID){
+                    maxAckID = remoteSn;
+                }
+            }else if(remoteCommand == XncpConsts.COMMAND_ACK_RANGE){
+                long rangeMaxAckID = updateByAckRanges(buffer,loc,(int)remoteLength);
+                if(rangeMaxAckID>maxAckID){
+                    maxAckID = rangeMaxAckID;
+                }
             }else if(remoteCommand == XncpConsts.COMMAND_DATA){
-                if(remoteSn<receiveNextID+receiveWindowSize&&remoteSn>=receiveNextID){
-                    addAck(remoteSn);
-                    addTimeStamp(remoteTimeStamp);
-                    DataSegment dataSegment = new DataSegment(buffer,loc,(int)remoteLength);
-                    dataSegment.setConversationID(remoteConversationId);
-                    dataSegment.setCommand(remoteCommand);
-                    dataSegment.setFragmentID(remoteFragmentId);
-                    dataSegment.setReceiveWindowSize(remoteWindowSize);
-                    dataSegment.setTimeStamp(remoteTimeStamp);
-                    dataSegment.setSn(remoteSn);
-
-                    handleDataSegment(dataSegment);
-
-
+                long remoteSn = XncpTools.unwrapUint32(header.getSn(),receiveNextID);
+                if(remoteSn<receiveNextID+receiveWindowSize){
+                    //已经收到过的包也要ack，否则对应的ack丢了之后对端会一直重传这个包
+                    if(ackList.isEmpty()){
+                        ackDeadline = currentTime+ackDelay;
+                    }
+                    if(remoteSn!=receiveNextID){
+                        //乱序或者重复到达说明中间可能丢了包，ack需要尽快发回去，对端才能及时快重传
+                        ackDeadline = currentTime;
+                    }
+                    addAck(remoteSn,header.getTimeStamp());
+                    if(remoteSn<receiveNextID&&metrics != null){
+                        metrics.onDuplicateSegment();
+                    }
+                    if(remoteSn>=receiveNextID){
+                        DataSegment dataSegment = segmentPool.acquire(buffer,loc,(int)remoteLength);
+                        dataSegment.setConversationID(header.getConversationID());
+                        dataSegment.setCommand(remoteCommand);
+                        dataSegment.setFragmentID(header.getFragmentID());
+                        dataSegment.setReceiveWindowSize(header.getReceiveWindowSize());
+                        dataSegment.setTimeStamp(header.getTimeStamp());
+                        dataSegment.setSn(remoteSn);
+
+                        handleDataSegment(dataSegment);
+                    }
                 }
 
             }else if(remoteCommand == XncpConsts.COMMAND_ASK_WINDOW_SIZE){
@@ -481,28 +1214,26 @@ public abstract class Xncp {
             loc+=remoteLength;
         }
 
+        if(maxAckID>=0){
+            updateByMaxAckID(maxAckID);
+        }
 
-        if(sUnAckId<sendUnAckID){//说明接收到了包
-            if(congestionWindow <this.remoteWindowSize){
-                    long mss_ = mss;
-                    if (congestionWindow < ssthresh) {
-                        congestionWindow++;
-                        increase += mss_;
-                    } else {
-                        if (increase < mss_) {
-                            increase = mss_;
-                        }
-                        increase += (mss_ * mss_) / increase + (mss_ / 16);
-                        if ((congestionWindow + 1) * mss_ <= increase) {
-                            congestionWindow++;
-                        }
-                    }
-                    if (congestionWindow > this.remoteWindowSize) {
-                        congestionWindow = this.remoteWindowSize;
-                        increase = this.remoteWindowSize * mss_;
-                    }
+        long ackedCount = sendBuffSize-sendBuff.size();
+        if(ackedCount>0||sUnAckId<sendUnAckID){//说明接收到了包
+            congestionController.onAck(this,ackedCount,sUnAckId<sendUnAckID,currentTime);
+        }
+        if(tracer != null){
+            if(ackedCount>0||sUnAckId<sendUnAckID){
+                tracer.record(currentTime,conversationID,XncpTracer.EVENT_ACK,ackedCount,sendUnAckID);
+                traceCongestionWindow();
+            }
+            if((oldRemoteWindowSize == 0) != (this.remoteWindowSize == 0)){
+                tracer.record(currentTime,conversationID,XncpTracer.EVENT_REMOTE_WINDOW,this.remoteWindowSize,oldRemoteWindowSize);
             }
         }
+        if(ackedCount>0){
+            onSendBufferAcked(ackedCount);
+        }
         return 0;
     }
 
@@ -512,90 +1243,280 @@ public abstract class Xncp {
 
     private void handleDataSegment(DataSegment dataSegment){
 
-        if(dataSegment.getSn()>receiveNextID+receiveWindowSize){//超出滑动窗口的右边
+        if(dataSegment.getSn()>=receiveNextID+receiveWindowSize){//超出滑动窗口的右边
+            dataSegment.release();
             return;
         }
         if(dataSegment.getSn()<receiveNextID){//超出滑动窗口的左区间
+            dataSegment.release();
             return;
         }
-        boolean flag = false;//这个flag是判读这个包是否已经有了
-
-        int loc = -1 ;//计算插入位置
-        for(int i = 0 ;i<sendBuff.size();i++){//将包插进对应的地方，写到这里逻辑有点混乱
-            DataSegment tmp = sendBuff.get(i);
 
-            if(tmp.getSn() == dataSegment.getSn()){//重复了
-                flag = true;
-                break;
-            }
-            else if(dataSegment.getSn()>tmp.getSn()){
-                //说明该包可以插到tmp包后面
-                loc++;
-            }else {
-                break;
+        //乱序的包直接按sn放进对应的槽位，槽位已经被占用说明是重复包
+        if(!receiveBuff.put(dataSegment)){
+            dataSegment.release();
+            if(metrics != null){
+                metrics.onDuplicateSegment();
             }
+            return;
+        }
+
+        moveToReceiveQueue();
+
+    }
+
+    /**
+     * 获取复用的控制包，头部信息已经清空
+     * */
+    private DataSegment getControlSegment(){
+        controlSegment.reset();
+        return controlSegment;
+    }
+
+    /**
+     * 获取输出用的byte buffer[]
+     * 大小为3*mtu，整个会话共用一个，只有确实有数据要发送时才调用
+     * 每个flush阶段在返回之前都会把写进去的数据output出去，所以各阶段之间可以直接复用
+     * */
+    private ByteBuffer getBuffer(){
+        if(flushBuffer == null){
+            int size = (int)getMtu()*3;
+            flushBuffer = outputDirectBuffer?ByteBuffer.allocateDirect(size):ByteBuffer.allocate(size);
+        }
+        return flushBuffer;
+    }
+
+    /**
+     * 获取和当前flushBuffer对应的GatherBuffer
+     * */
+    private GatherBuffer getGatherBuffer(){
+        ByteBuffer buffer = getBuffer();
+        if(gatherBuffer == null || gatherBuffer.getBacking() != buffer){
+            gatherBuffer = new GatherBuffer(buffer,(int)(getMtu()/XncpConsts.DATASEGMENT_HEADER_SIZE)+1);
         }
-        if(!flag){//包不是重复的
+        return gatherBuffer;
+    }
 
-            if(loc == sendBuff.size()){
-                sendBuff.add(dataSegment);
+    /**
+     * 输出flushSendBuffer中攒好的一个数据报
+     * 引用了调用者数据时用gather的方式输出，否则和其他flush阶段一样输出flushBuffer中[0,len)的数据
+     * */
+    private void outputDatagram(ByteBuffer buffer,int len,GatherBuffer gather){
+        if(gather != null&&gather.hasPayload()){
+            if(metrics != null){
+                int bytes = 0;
+                ByteBuffer[] buffers = gather.getBuffers();
+                for(int i = 0;i<gather.getCount();i++){
+                    bytes+=buffers[i].remaining();
+                }
+                metrics.onDatagramOut(bytes);
+            }
+            if(isFecEncoding()){
+                fec.encode(gather.getBuffers(),0,gather.getCount());
             }else {
-                sendBuff.add(loc+1,dataSegment);
+                output(gather.getBuffers(),0,gather.getCount());
             }
+            buffer.clear();
+        }else {
+            outputFlushBuffer(buffer,len);
+        }
+        if(gather != null){
+            gather.clear();
         }
+    }
 
-        int cnt = 0 ;
-        for(DataSegment tmp : sendBuff){
-            if(receiveQueue.size()<receiveWindowSize&&tmp.getSn() == receiveNextID){
-                receiveQueue.add(tmp);
-                receiveNextID++;
-                //receiveWindowSize--;
-                cnt++;
-            }
+    /**
+     * 将flushBuffer中[0,len)的数据交给output
+     * output返回之后重置flushBuffer，下一次继续从头写
+     * */
+    private void outputFlushBuffer(ByteBuffer buffer,int len){
+        if(metrics != null){
+            metrics.onDatagramOut(len);
         }
-        for(int i = 0 ;i<cnt;i++){
-            receiveBuff.removeFirst();
+        if(isFecEncoding()){
+            fec.encode(buffer,len);
+            return;
         }
+        buffer.limit(len);
+        buffer.position(0);
+        output(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * 设置输出缓冲区是否使用直接内存
+     * 使用直接内存时，重写output(ByteBuffer)并把buffer直接写进DatagramChannel可以省掉一次复制
+     * */
+    public void setOutputDirectBuffer(boolean outputDirectBuffer) {
+        if(this.outputDirectBuffer != outputDirectBuffer){
+            this.outputDirectBuffer = outputDirectBuffer;
+            this.flushBuffer = null;
+        }
+    }
+
+    public boolean isOutputDirectBuffer() {
+        return outputDirectBuffer;
+    }
+
+    /**
+     * 设置是否使用gather的方式输出数据报
+     * 开启之后sendWithoutCopy发送的包在flush时不再复制到输出缓冲区，包头和数据作为不同的段交给output(ByteBuffer[],int,int)
+     * 其他的包仍然和原来一样复制到输出缓冲区
+     * */
+    public void setGatherOutput(boolean gatherOutput) {
+        this.gatherOutput = gatherOutput;
+    }
+
+    public boolean isGatherOutput() {
+        return gatherOutput;
+    }
+
+    /**
+     * 设置发送窗口是否把数据复制到自己的连续内存(slab)中，见SendWindow
+     * 开启之后在途的包不再占用DataSegment对象，每个包只剩发送窗口数组中的几十个字节，
+     * 代价是包进入发送窗口时要多复制一次数据，slab按页分配之后一直保留
+     * @return -1 发送窗口中还有包，只能在窗口为空时设置
+     * @return 0 设置成功
+     * */
+    public int setSendWindowSlab(boolean sendWindowSlab){
+        return sendBuff.setSlabMode(sendWindowSlab)?0:-1;
+    }
+
+    public boolean isSendWindowSlab(){
+        return sendBuff.isSlabMode();
+    }
+    /**
+     * 设置延迟ack模式
+     * 开启之后ack不再每次update都发送，而是攒够ackFrequency个或者等待了maxDelay之后才发送，
+     * 乱序到达的包仍然会让ack在下一次update时立即发送
+     * 同时发送数据包时，数据包包头中的una已经确认了receiveNextID之前的包，这部分ack会直接丢掉不再单独发送，
+     * 双向都有数据时ack基本都搭在数据包上了，代价是对端从ack中得到的rtt样本变少
+     * @param maxDelay ack最多等待的时间，单位ms，不大于0时关闭延迟ack
+     * @param ackFrequency 攒够多少个ack时立即发送
+     * */
+    public void setDelayedAck(long maxDelay,int ackFrequency){
+        this.ackDelay = maxDelay>0?maxDelay:0;
+        this.ackFrequency = ackFrequency>0?ackFrequency:1;
+    }
 
+    public long getAckDelay() {
+        return ackDelay;
+    }
+
+    public int getAckFrequency() {
+        return ackFrequency;
+    }
 
+    /**
+     * 待发送的ack是否已经到了发送的时候
+     * */
+    private boolean isAckDue(){
+        return ackDelay == 0||ackList.size()>=ackFrequency||currentTime>=ackDeadline;
     }
 
     /**
-     * 获取一个临时可使用的byte buffer[]
-     * 大小为2*mtu
+     * 数据包已经带上了una = receiveNextID，sn小于receiveNextID的ack不需要再单独发送
      * */
-    private byte[] getBuffer(){
-        byte [] buffer = new byte[(int)getMtu()*3];
-        return buffer;
+    private void removeAcksCoveredByUnAck(){
+        ackList.removeBelow(receiveNextID);
     }
+
     /**
      * 将本地已经接受到的包发送ack给对面
      * */
-    private void flushAck() throws Exception{
-        if(ackList.size()!=timeStampList.size()){
-            //能出现这一步的问题说明代码有bug，在后期会考虑把这一步去掉
-            throw new Exception("ackListSize is not equal to timeStampList");
+    private void flushAck(){
+        if(ackList.isEmpty()){//没有要发送的ack
+            return;
+        }
+        if(ackRangeMode){
+            flushAckRanges();
+            ackList.clear();
+            return;
         }
 
-        byte [] buffer = getBuffer();//这里可能也会报错,其实也应该抛异常的
-        DataSegment dataSegment = new DataSegment(0);
+        ByteBuffer buffer = getBuffer();//这里可能也会报错,其实也应该抛异常的
+        DataSegment dataSegment = getControlSegment();
         dataSegment.setConversationID(conversationID);
         dataSegment.setCommand(XncpConsts.COMMAND_ACK);
         dataSegment.setUnAckID(this.receiveNextID);
         dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
         int loc = 0 ;
         for(int i = 0 ;i<ackList.size();i++){
-            dataSegment.setSn(ackList.get(i));
-            dataSegment.setTimeStamp(timeStampList.get(i));
+            dataSegment.setSn(ackList.getSn(i));
+            dataSegment.setTimeStamp(ackList.getTimeStamp(i));
             loc+=dataSegment.encodeDataSegmentToBuffer(buffer,loc);
             if(loc+XncpConsts.DATASEGMENT_HEADER_SIZE>getMss()){
-                output(buffer,0,loc);
+                outputFlushBuffer(buffer,loc);
                 loc = 0 ;
             }
         }
-        //如果能走到这里应该是没有什么问题的
+        if(loc!=0){//剩下的ack也要发出去
+            outputFlushBuffer(buffer,loc);
+        }
         ackList.clear();
-        timeStampList.clear();
+    }
+
+    /**
+     * 把ackList合并成连续的sn区间，用COMMAND_ACK_RANGE发送
+     * 按照收包的顺序合并，顺序到达时一大批包只需要一个区间
+     * 一个包中放不下时分成多个包，每个包都不超过mtu
+     * */
+    private void flushAckRanges(){
+        ByteBuffer buffer = getBuffer();
+        DataSegment dataSegment = getControlSegment();
+        dataSegment.setConversationID(conversationID);
+        dataSegment.setCommand(XncpConsts.COMMAND_ACK_RANGE);
+        dataSegment.setUnAckID(this.receiveNextID);
+        dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
+
+        int maxRangeCount = (int)(getMss()/XncpConsts.ACK_RANGE_SIZE);
+        int rangeCount = 0 ;
+        int loc = XncpConsts.DATASEGMENT_HEADER_SIZE;//先空出包头的位置，区间个数确定之后再写包头
+        int count = ackList.size();
+        long startSn = ackList.getSn(0);
+        long endSn = startSn;
+        long timeStamp = ackList.getTimeStamp(0);
+        for(int i = 1;;i++){
+            boolean hasNext = i<count;
+            long sn = hasNext?ackList.getSn(i):-1;
+            long snTimeStamp = hasNext?ackList.getTimeStamp(i):0;
+            if(hasNext&&sn == endSn+1){//和当前区间连续
+                endSn = sn;
+                timeStamp = snTimeStamp;
+                continue;
+            }
+            XncpTools.encodeUInt32(buffer,loc,startSn);
+            XncpTools.encodeUInt32(buffer,loc+4,endSn);
+            XncpTools.encodeUInt32(buffer,loc+8,timeStamp);
+            loc+=XncpConsts.ACK_RANGE_SIZE;
+            rangeCount++;
+            if(rangeCount == maxRangeCount||!hasNext){
+                dataSegment.setDataLength(rangeCount*XncpConsts.ACK_RANGE_SIZE);
+                dataSegment.encodeDataSegmentToBuffer(buffer,0);
+                outputFlushBuffer(buffer,loc);
+                rangeCount = 0 ;
+                loc = XncpConsts.DATASEGMENT_HEADER_SIZE;
+            }
+            if(!hasNext){
+                break;
+            }
+            startSn = sn;
+            endSn = sn;
+            timeStamp = snTimeStamp;
+        }
+    }
+
+    /**
+     * 设置是否使用COMMAND_ACK_RANGE批量发送ack
+     * 大批量顺序到达的包只需要一个12字节的区间，而不是每个包一个24字节的包头
+     * 收到COMMAND_ACK_RANGE总是可以处理的，但是旧版本的对端不认识这个命令，所以默认关闭
+     * */
+    public void setAckRangeMode(boolean ackRangeMode) {
+        this.ackRangeMode = ackRangeMode;
+    }
+
+    public boolean isAckRangeMode() {
+        return ackRangeMode;
     }
 
     /**
@@ -604,16 +1525,19 @@ public abstract class Xncp {
      * */
     private void sendWindowSize(){
         if(needSendReceiveWindowSize){
-            byte []buffer = getBuffer();
-            DataSegment dataSegment = new DataSegment(0);
+            ByteBuffer buffer = getBuffer();
+            DataSegment dataSegment = getControlSegment();
             dataSegment.setConversationID(conversationID);
             dataSegment.setCommand(XncpConsts.COMMAND_TELL_WINDOW_SIZE);
             dataSegment.setUnAckID(receiveNextID);
             dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
             dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
             int ed = dataSegment.encodeDataSegmentToBuffer(buffer,0);
-            output(buffer,0,ed);
+            outputFlushBuffer(buffer,ed);
             needSendReceiveWindowSize = false;
+            if(tracer != null){
+                tracer.record(currentTime,conversationID,XncpTracer.EVENT_WINDOW_TELL,getAvaliableReceiveWindowSize(),0);
+            }
         }
 
 
@@ -632,7 +1556,7 @@ public abstract class Xncp {
                 //如果到时间了
                 if(currentTime>=askWindowSizeTimeStamp){
                     askWindowSizeInterval = askWindowSizeInterval/2;//这点可能会导致爆炸
-                    askWindowSizeTimeStamp = currentTime + askWindowSizeTimeStamp;
+                    askWindowSizeTimeStamp = currentTime + askWindowSizeInterval;
                     needAskWindowSize = true ;
                 }
             }
@@ -646,15 +1570,18 @@ public abstract class Xncp {
         }
 
         if(needAskWindowSize){//需要发送
-            byte []buffer = getBuffer();
-            DataSegment dataSegment = new DataSegment(0);
+            ByteBuffer buffer = getBuffer();
+            DataSegment dataSegment = getControlSegment();
             dataSegment.setConversationID(conversationID);
             dataSegment.setCommand(XncpConsts.COMMAND_ASK_WINDOW_SIZE);
             dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
             dataSegment.setUnAckID(receiveNextID);
             int loc = dataSegment.encodeDataSegmentToBuffer(buffer,0);
-            output(buffer,0,loc);
+            outputFlushBuffer(buffer,loc);
             needAskWindowSize = false;
+            if(tracer != null){
+                tracer.record(currentTime,conversationID,XncpTracer.EVENT_WINDOW_ASK,remoteWindowSize,askWindowSizeInterval);
+            }
         }
 
     }
@@ -663,119 +1590,212 @@ public abstract class Xncp {
      * 将发送队列中的数据放到发送缓存中
      * */
     private void updateSend(){
-        long size  = Math.min(sendWindowSize,remoteWindowSize);
-        if(neendControl){
-            size = Math.min(size, congestionWindow);
-        }
-        int cnt = 0 ;
-        for(DataSegment dataSegment:sendQueue){
+        long size  = getSendableWindowSize();
+        while(!sendQueue.isEmpty()){
             if(sendNextID>=sendUnAckID+size){
                 break;
             }
-            dataSegment.setConversationID(conversationID);
-            dataSegment.setCommand(XncpConsts.COMMAND_DATA);
-            dataSegment.setTimeStamp(currentTime);
-            dataSegment.setSn(sendNextID++);
-            dataSegment.setUnAckID(receiveNextID);
-            dataSegment.setRto(rto);
-            dataSegment.setJumpCount(0);
-            dataSegment.setSendCount(0);
-            sendBuff.add(dataSegment);
-            sendNextID++;
-            cnt++;
+            //包头在发送时才写，这里只需要sn，发送状态由sendBuff保存
+            sendBuff.put(sendNextID++,sendQueue.removeFirst(),rto);
+            hasUnsentSegment = true;
         }
-        for(int i = 0 ;i<cnt;i++){
-            sendQueue.removeFirst();
+    }
+
+    /**
+     * 当前实际可以使用的发送窗口大小
+     * 本地发送窗口、对端接收窗口和拥塞窗口中的最小值
+     * */
+    private long getSendableWindowSize(){
+        long size  = Math.min(sendWindowSize,remoteWindowSize);
+        if(neendControl){
+            size = Math.min(size, congestionController.getCongestionWindow());
         }
+        return size;
     }
     /**
      * 真正带有发送功能的方法
-     * 同时会更新ssthresh
+     * 发生了快重传或者超时重传时会通知拥塞控制算法
+     * @return 是否发送了数据包
      * */
-    private void flushSendBuffer(){
+    private boolean flushSendBuffer(){
 
-        int loc = 0 ;
-        byte []buffer = getBuffer();
+        //没有新包、没有要快重传的包、也还没到最早的超时重传时间时，不需要遍历发送窗口
+        if(!hasUnsentSegment&&!fastResendPending&&currentTime<nextResendTimeStamp){
+            return false;
+        }
+        long nextResend = Long.MAX_VALUE;
+
+        int loc = 0 ;//在flushBuffer中写到的位置
+        int datagramSize = 0;//当前数据报的大小，gather输出时数据不在flushBuffer中，所以和loc不一定相等
+        ByteBuffer buffer = null;//有包要发送时才去获取
+        GatherBuffer gather = null;
         boolean lost = false;//是否丢包
         boolean fastResend = false;//是否快重传
+        boolean paced = false;//是否有包因为pacing被留到之后发送
+        int sentCount = 0,timeoutCount = 0,fastResentCount = 0;//只在开启统计时使用，flush结束时一起累加
+        double pacingRate = pacing?refillPacingTokens():0;
 
         int realFastResendCount = fastResendCount>0?fastResendCount:Integer.MAX_VALUE;
 
         long minRto = !noDelay?(rto>>3):0;
 
-        for(DataSegment dataSegment:sendBuff){
+        SendWindow window = sendBuff;
+        long avaliableReceiveWindowSize = getAvaliableReceiveWindowSize();
+        //只顺序读sendBuff中的几个基本类型数组，真正要发送时才去读数据
+        for(long sn = sendUnAckID;sn<sendNextID;sn++){
+            int slot = window.slotOf(sn);
+            if(slot<0){//已经被选择确认了
+                continue;
+            }
+            int sendCount = window.getSendCount(slot);
+            long resendTimeStamp = window.getResendTimeStamp(slot);
+            if(pacingRate>0&&(sendCount == 0||currentTime>=resendTimeStamp
+                    ||window.getJumpCount(slot)>=realFastResendCount)){
+                if(pacingTokens<1){//这一次的额度用完了，留到之后的flush
+                    paced = true;
+                    continue;
+                }
+                pacingTokens--;
+            }
             boolean flag = false;
 
-            if(dataSegment.getSendCount() == 0 ){
+            if(sendCount == 0 ){
                 //说明是第一次传输
                 flag = true;
-                dataSegment.increaseSendCount();
-                dataSegment.setRto(this.rto);
-                dataSegment.setResendTimeStamp(currentTime+dataSegment.getRto()+minRto);
-            }else if(currentTime>=dataSegment.getResendTimeStamp()){
+                sentCount++;
+                sendCount = window.increaseSendCount(slot);
+                window.setRto(slot,this.rto);
+                resendTimeStamp = currentTime+this.rto+minRto;
+                if(tracer != null){
+                    tracer.record(currentTime,conversationID,XncpTracer.EVENT_SEND,sn,window.getDataLength(slot));
+                }
+            }else if(currentTime>=resendTimeStamp){
                 //超时重传,或者丢包
                 flag = true;
-                dataSegment.increaseSendCount();
-                dataSegment.setRto(noDelay?dataSegment.getRto()+rto/2:dataSegment.getRto()+rto);
-                dataSegment.setResendTimeStamp(currentTime+dataSegment.getRto());
+                sendCount = window.increaseSendCount(slot);
+                long segmentRto = noDelay?window.getRto(slot)+rto/2:window.getRto(slot)+rto;
+                window.setRto(slot,segmentRto);
+                resendTimeStamp = currentTime+segmentRto;
                 lost = true;
-            }else if(dataSegment.getJumpCount()>=realFastResendCount){
+                timeoutCount++;
+                if(tracer != null){
+                    tracer.record(currentTime,conversationID,XncpTracer.EVENT_RESEND_TIMEOUT,sn,sendCount);
+                }
+            }else if(window.getJumpCount(slot)>=realFastResendCount){
                 //快重传
                 flag = true;
-                dataSegment.increaseSendCount();
-                dataSegment.setJumpCount(0);
-                dataSegment.setResendTimeStamp(currentTime+dataSegment.getRto());
+                sendCount = window.increaseSendCount(slot);
+                window.setJumpCount(slot,0);
+                resendTimeStamp = currentTime+window.getRto(slot);
                 fastResend = true;
+                fastResentCount++;
+                if(tracer != null){
+                    tracer.record(currentTime,conversationID,XncpTracer.EVENT_RESEND_FAST,sn,sendCount);
+                }
             }
 
             if(flag){
                 //需要发送
-                dataSegment.setTimeStamp(currentTime);
-                dataSegment.setReceiveWindowSize(getAvaliableReceiveWindowSize());
-                dataSegment.setUnAckID(receiveNextID);
-
-                long tmp = XncpConsts.DATASEGMENT_HEADER_SIZE+dataSegment.getDataLength();
-                if(tmp+loc>=getMtu()){
-                    output(buffer,0,loc);
+                window.setResendTimeStamp(slot,resendTimeStamp);
+                if(buffer == null){
+                    buffer = getBuffer();
+                    gather = gatherOutput?getGatherBuffer():null;
+                }
+                int dataLength = window.getDataLength(slot);
+                long tmp = XncpConsts.DATASEGMENT_HEADER_SIZE+dataLength;
+                if(datagramSize!=0&&tmp+datagramSize>getMss()+XncpConsts.DATASEGMENT_HEADER_SIZE){//放不下了，先把前面的发出去
+                    outputDatagram(buffer,loc,gather);
                     loc = 0 ;
+                    datagramSize = 0 ;
                 }
-                loc+=dataSegment.encodeDataSegmentToBuffer(buffer,loc);
-                if(!XncpTools.isEmpty(dataSegment.getData())){
-                    System.arraycopy(dataSegment.getData(),0,buffer,loc,(int) dataSegment.getDataLength());
-                    loc+=dataSegment.getDataLength();
+                int begin = loc;
+                XncpTools.encodeHeader(buffer,loc,conversationID,XncpConsts.COMMAND_DATA,window.getFragmentID(slot),
+                        avaliableReceiveWindowSize,currentTime,sn,receiveNextID,dataLength);
+                loc+=XncpConsts.DATASEGMENT_HEADER_SIZE;
+                ByteBuffer payloadView = gather != null?window.getPayloadView(slot):null;
+                if(payloadView != null){//包头在flushBuffer中，数据直接引用调用者的buffer
+                    gather.addBacking(begin,loc);
+                    gather.addPayload(payloadView);
+                }else {
+                    loc+=window.copyDataTo(slot,buffer,loc);
+                    if(gather != null){
+                        gather.addBacking(begin,loc);
+                    }
                 }
-                if(dataSegment.getSendCount() >= maxSendCount){
+                datagramSize+=tmp;
+                if(sendCount >= maxSendCount){
+                    if(xncpState != -1&&metrics != null){
+                        metrics.onDeadLink();
+                    }
+                    if(xncpState != -1&&tracer != null){
+                        tracer.record(currentTime,conversationID,XncpTracer.EVENT_DEAD_LINK,sn,sendCount);
+                    }
                     xncpState = -1;
                 }
 
 
             }
+            if(resendTimeStamp<nextResend){
+                nextResend = resendTimeStamp;
+            }
 
         }
-        if(loc!=0){
-            output(buffer,0,loc);
+        if(paced){//额度够再发一个包的时候再来
+            long wait = (long)Math.ceil((1-pacingTokens)*1000/pacingRate);
+            nextResend = XncpTools.min(nextResend,currentTime+XncpTools.max(wait,1));
+        }
+        nextResendTimeStamp = nextResend;
+        hasUnsentSegment = false;
+        fastResendPending = false;
+        if(datagramSize!=0){
+            outputDatagram(buffer,loc,gather);
             loc = 0 ;
         }
+        if(metrics != null&&buffer != null){
+            metrics.onFlush(sentCount,timeoutCount,fastResentCount,sendNextID-sendUnAckID,getSendableWindowSize());
+        }
 
-        if(fastResend){//进入拥塞避免阶段
-            ssthresh = ((sendNextID-sendUnAckID)>>1);
-            if(ssthresh<XncpConsts.SSTHRESH_MIN){
-                ssthresh = XncpConsts.SSTHRESH_MIN;
-            }
-            congestionWindow = ssthresh + fastResendCount;//同tcp的实现
-            increase = congestionWindow * getMss();
+        if(fastResend){
+            congestionController.onFastResend(this,currentTime);
         }
-        if(lost){//发生了丢包,慢启动
-            ssthresh = congestionWindow >>1;
-            if(ssthresh<XncpConsts.SSTHRESH_MIN){
-                ssthresh = XncpConsts.SSTHRESH_MIN;
-            }
-            congestionWindow = 1;
-            increase = getMss();
+        if(lost){
+            congestionController.onTimeout(this,currentTime);
         }
+        if(tracer != null&&(fastResend||lost)){
+            traceCongestionWindow();
+        }
+        return buffer != null;
+    }
 
+
+    /**
+     * pacing的速率，单位 包/秒
+     * 拥塞控制算法给出了速率时使用算法的速率，否则是 PACING_GAIN*可用窗口/平滑rtt，还没有rtt样本时用rto代替
+     * */
+    public long getPacingRate(){
+        long rate = neendControl?congestionController.getPacingRate():0;
+        if(rate>0){
+            return rate;
+        }
+        long smoothedRtt = staticRtt>0?staticRtt:rto;
+        return XncpTools.max(1,(long)(XncpConsts.PACING_GAIN*getSendableWindowSize()*1000/smoothedRtt));
     }
 
+    /**
+     * 按距离上一次补充的时间补充pacingTokens
+     * 最多积累一个平滑rtt的额度，空闲之后最多突发一个窗口，和不开启pacing时一样
+     * @return 当前的pacing速率
+     * */
+    private double refillPacingTokens(){
+        double rate = getPacingRate();
+        if(pacingTimeStamp>=0&&currentTime>pacingTimeStamp){
+            long smoothedRtt = staticRtt>0?staticRtt:rto;
+            double maxTokens = XncpTools.max(XncpConsts.PACING_MIN_BURST,(long)(rate*smoothedRtt/1000));
+            pacingTokens = Math.min(pacingTokens+rate*(currentTime-pacingTimeStamp)/1000,maxTokens);
+        }
+        pacingTimeStamp = currentTime;
+        return rate;
+    }
 
     /**
      * 更新rtt和rto
@@ -783,6 +1803,10 @@ public abstract class Xncp {
      * https://tools.ietf.org/html/rfc6298
      * */
     private void updateRttAndRto(long segmentRtt){
+        congestionController.onRttSample(this,segmentRtt,currentTime);
+        if(metrics != null){
+            metrics.onRttSample(segmentRtt);
+        }
 
         if(staticRtt == 0 ){//如果是第一次更新
             staticRtt = segmentRtt;
@@ -792,11 +1816,63 @@ public abstract class Xncp {
             long tmp = XncpTools.abs(segmentRtt-staticRtt);
             rtt = (3*rtt+tmp)>>2;
             staticRtt = (7*staticRtt+segmentRtt)>>3;
-            staticRtt = XncpTools.max(segmentRtt,1);
+            staticRtt = XncpTools.max(staticRtt,1);
         }
         long tmpRto = (staticRtt+XncpTools.max(1,rtt<<2));
         rto = XncpTools.min(XncpTools.max(minRto,tmpRto),XncpConsts.RTO_MAX);
+        if(tracer != null){
+            tracer.record(currentTime,conversationID,XncpTracer.EVENT_RTT,segmentRtt,rto);
+        }
+
+    }
+
+    /**
+     * 计算下一次需要调用update的时间
+     * 使用者可以不用固定间隔调用update，只在这个时间到了之后再调用，空闲的会话就不需要被驱动
+     * 调用input或者send之后时间可能会提前，需要重新调用check
+     * 这里不会遍历发送窗口，超时重传的时间使用上一次flushSendBuffer时记下来的最小值
+     * @return currentTime 现在就有需要处理的事情(待发送的ack、窗口探测、新的数据包、快重传)
+     * @return 大于currentTime的时间戳 下一次超时重传或者询问窗口的时间
+     * @return -1 没有任何需要定时处理的事情，直到下一次input或者send之前都不需要调用update
+     * */
+    public long check(long currentTime){
+        if(needSendReceiveWindowSize||needAskWindowSize){
+            return currentTime;
+        }
+        if(!ackList.isEmpty()&&(ackDelay == 0||ackList.size()>=ackFrequency||currentTime>=ackDeadline)){
+            return currentTime;
+        }
+        if(hasUnsentSegment||fastResendPending){
+            return currentTime;
+        }
+        if(!sendQueue.isEmpty()&&sendNextID<sendUnAckID+getSendableWindowSize()){
+            return currentTime;//updateSend可以把发送队列中的包放进发送窗口
+        }
+        long deadline = Long.MAX_VALUE;
+        if(!sendBuff.isEmpty()){
+            deadline = nextResendTimeStamp;
+        }
+        if(!ackList.isEmpty()){
+            deadline = XncpTools.min(deadline,ackDeadline);
+        }
+        if(remoteWindowSize == 0){
+            //askWindowSizeInterval为0时说明还没开始计时，下一次update就会开始
+            long askTime = askWindowSizeInterval == 0?currentTime:askWindowSizeTimeStamp;
+            deadline = XncpTools.min(deadline,askTime);
+        }
+        if(deadline == Long.MAX_VALUE){
+            return -1;
+        }
+        return XncpTools.max(deadline,currentTime);
+    }
 
+    /**
+     * 只更新当前时间，不做任何发送
+     * 不按固定间隔调用update时(比如使用XncpTimerWheel)，在input之前调用，
+     * 这样根据ack计算rtt时使用的是准确的时间，而不是上一次update的时间
+     * */
+    public void setCurrentTime(long currentTime){
+        this.currentTime = currentTime;
     }
 
     /**
@@ -805,15 +1881,18 @@ public abstract class Xncp {
      * */
     public void update(long currentTime){
         this.currentTime = currentTime;
-        try {
+        if(isAckDue()){
             flushAck();
-        }catch ( Exception e ){
-            e.printStackTrace();
         }
         sendAskWindowSize();
         sendWindowSize();
         updateSend();
-        flushSendBuffer();
+        if(flushSendBuffer()&&ackDelay>0){
+            removeAcksCoveredByUnAck();
+        }
+        if(isFecEncoding()){
+            fec.flush();//这一次update中不满一组的数据报也发出校验分片
+        }
     }
 
 }
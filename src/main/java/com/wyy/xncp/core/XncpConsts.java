@@ -11,11 +11,21 @@ public class XncpConsts {
     public static byte COMMAND_DATA = 1;//这个包的功能是发送数据
     public static byte COMMAND_TELL_WINDOW_SIZE = 2;//这个包的功能是在恢复后告诉对面自己的接受窗口
     public static byte COMMAND_ASK_WINDOW_SIZE = 3;//主动询问对面的窗口大小
+    public static byte COMMAND_ACK_RANGE = 4;//批量ack，数据部分是若干个连续的sn区间，每个区间ACK_RANGE_SIZE个字节
+    public static int ACK_RANGE_SIZE = 12;//起始sn UInt32 + 结束sn(包含) UInt32 + 区间内最后收到的包的时间戳 UInt32
+    public static byte COMMAND_FEC = 5;//前向纠错分片，整个数据报是一个分片，数据部分是被包装的数据报或者校验
+    public static int FEC_OVERHEAD = 26;//开启FEC后每个数据报多出的字节数，COMMAND_FEC包头 + UInt16长度
     public static long SSTHRESH_MIN = 2;
     public static long DEFALULT_ASK_WINDOW_SIZE_WAITE_TIME = 10000;//ms
     public static long RTO_MAX = 50000;
     public static long RTO_MIN = 100;
     public static long RTO_DEFAULT = 200;
+    public static long DEFAULT_MTU = 1400;
+    public static long DEFAULT_SEND_WINDOW_SIZE = 32;//单位 包
+    public static long DEFAULT_RECEIVE_WINDOW_SIZE = 128;//单位 包
+    public static int DEFAULT_MAX_SEND_COUNT = 20;
+    public static double PACING_GAIN = 1.25;//pacing速率是窗口/rtt的倍数，留出余量让窗口可以继续增长
+    public static long PACING_MIN_BURST = 2;//单位 包，pacing时至少允许的突发
 
 
 }
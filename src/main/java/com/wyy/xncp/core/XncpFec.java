@@ -0,0 +1,364 @@
+package com.wyy.xncp.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XncpFec
+ * Xncp下面的前向纠错层，每dataShards个数据报为一组，再加上若干个Reed-Solomon校验分片
+ * 同一组中只要收到的分片数不少于数据分片数，丢掉的数据报就可以直接恢复出来，不需要等超时或者快重传
+ *
+ * 开启之后每个数据报都包装成一个COMMAND_FEC包：
+ * conv UInt32 | cmd=COMMAND_FEC | frg=组内分片编号 | wnd=数据分片数<<8|校验分片数 | ts=0 | sn=组号 | una=本端观测到的丢包率(千分比) | len
+ * 数据部分是 UInt16长度 + 原来的数据报，校验分片的数据部分是各个数据分片补零到同样长度之后算出来的校验
+ * 所以数据报最多只能有 mtu-FEC_OVERHEAD 个字节，开启之后mss会相应地变小
+ *
+ * 数据分片收到后立即交给input，不会增加延迟；校验分片在一组满了或者一次update结束时发出
+ * 自适应模式下，校验分片数按照对端反馈的丢包率在0和设置的校验分片数之间调整
+ *
+ * 收到COMMAND_FEC包总是可以处理的，但是只有双方都开启时，丢包率才能反馈给对方
+ * */
+class XncpFec {
+
+    private static final int GROUP_WINDOW = 8;//接收端同时保留的组数，必须是2的幂
+    private static final int SHARD_OFFSET = 24;//分片在数组中的位置，前面留给包头
+    private static final int LENGTH_SIZE = 2;
+    private static final double ADAPTIVE_REDUNDANCY = 2.0;//自适应时校验分片数是 数据分片数*丢包率 的倍数
+
+    private final Xncp xncp;
+
+    //发送
+    private int dataShards;
+    private int parityShards;
+    private boolean adaptive;
+    private long groupId;
+    private int groupCount;//当前组中已经发出的数据分片数
+    private int groupMaxLength;//当前组中最长的分片
+    private int[] groupLengths;
+    private byte[][] encodeShards;
+    private ByteBuffer[] encodeBuffers;//发出FEC包时包装encodeShards中的数组，和数组一起创建
+    private long remoteLossPermille = -1;//对端反馈的丢包率，-1表示还不知道
+
+    //接收
+    private final Group[] groups = new Group[GROUP_WINDOW];
+    private int lossPpm;//本端观测到的丢包率，百万分比，比反馈用的千分比精确，衰减时不会很快变成0
+    private long recoveredCount;
+
+    /**
+     * 接收端的一组
+     * */
+    private static final class Group {
+        long groupId = -1;
+        int dataCount;
+        int parityCount;
+        int shardSize;//校验分片的长度，收到校验分片之后才知道
+        int receivedCount;
+        int dataReceivedCount;
+        int dataEnd;//收到的数据分片中最大的编号+1
+        boolean done;//所有的数据分片都已经交给input了
+        final boolean[] present = new boolean[ReedSolomon.MAX_SHARDS];
+        final int[] lengths = new int[ReedSolomon.MAX_SHARDS];
+        final byte[][] shards = new byte[ReedSolomon.MAX_SHARDS][];
+    }
+
+    XncpFec(Xncp xncp) {
+        this.xncp = xncp;
+    }
+
+    /**
+     * @param dataShards 一组中的数据分片数，为0时只接收不编码
+     * @param parityShards 一组中的校验分片数，自适应模式下是上限
+     * */
+    void configure(int dataShards, int parityShards, boolean adaptive) {
+        flush();
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.adaptive = adaptive;
+        this.encodeShards = new byte[dataShards + parityShards][];
+        this.encodeBuffers = new ByteBuffer[dataShards + parityShards];
+        this.groupLengths = new int[dataShards];
+    }
+
+    boolean isEncoding() {
+        return dataShards > 0;
+    }
+
+    int getDataShards() {
+        return dataShards;
+    }
+
+    int getParityShards() {
+        return parityShards;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    private byte[] getShard(byte[][] shards, int index) {
+        int size = (int) xncp.getMtu();
+        byte[] shard = shards[index];
+        if (shard == null || shard.length < size) {
+            shard = new byte[size];
+            shards[index] = shard;
+        }
+        return shard;
+    }
+
+    /**
+     * 编码一个数据报，内容是buffer中[0,len)
+     * */
+    void encode(ByteBuffer buffer, int len) {
+        byte[] shard = getEncodeShard(groupCount);
+        XncpTools.getBytes(buffer, 0, shard, SHARD_OFFSET + LENGTH_SIZE, len);
+        emitData(shard, len);
+    }
+
+    /**
+     * 编码一个由若干段组成的数据报
+     * */
+    void encode(ByteBuffer[] buffers, int offset, int length) {
+        byte[] shard = getEncodeShard(groupCount);
+        int len = 0;
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer part = buffers[i];
+            int size = part.remaining();
+            XncpTools.getBytes(part, part.position(), shard, SHARD_OFFSET + LENGTH_SIZE + len, size);
+            len += size;
+        }
+        emitData(shard, len);
+    }
+
+    private void emitData(byte[] shard, int len) {
+        XncpTools.encodeUInt16(shard, SHARD_OFFSET, len);
+        int size = LENGTH_SIZE + len;
+        groupLengths[groupCount] = size;
+        if (size > groupMaxLength) {
+            groupMaxLength = size;
+        }
+        //数据分片的包头中还不知道这一组最后有多少个分片，按满组写，接收端以校验分片中的为准
+        writeHeader(shard, groupCount, dataShards, getParityCount(dataShards), size);
+        emit(groupCount, size);
+        groupCount++;
+        if (groupCount == dataShards) {
+            flush();
+        }
+    }
+
+    /**
+     * 结束当前的组，发出校验分片
+     * 一次update结束时调用，数据报不多时不需要等凑满一组
+     * */
+    void flush() {
+        if (groupCount == 0) {
+            return;
+        }
+        int count = groupCount;
+        int parityCount = getParityCount(count);
+        if (parityCount > 0) {
+            int shardSize = groupMaxLength;
+            for (int j = 0; j < count; j++) {//补零到同样的长度
+                byte[] shard = encodeShards[j];
+                for (int k = SHARD_OFFSET + groupLengths[j]; k < SHARD_OFFSET + shardSize; k++) {
+                    shard[k] = 0;
+                }
+            }
+            for (int i = 0; i < parityCount; i++) {
+                getEncodeShard(count + i);
+            }
+            ReedSolomon.encode(encodeShards, count, parityCount, SHARD_OFFSET, shardSize);
+            for (int i = 0; i < parityCount; i++) {
+                byte[] shard = encodeShards[count + i];
+                writeHeader(shard, count + i, count, parityCount, shardSize);
+                emit(count + i, shardSize);
+            }
+        }
+        groupId = (groupId + 1) & 0xffffffffL;
+        groupCount = 0;
+        groupMaxLength = 0;
+    }
+
+    /**
+     * dataCount个数据分片的组需要的校验分片数
+     * */
+    private int getParityCount(int dataCount) {
+        int max = (parityShards * dataCount + dataShards - 1) / dataShards;
+        if (!adaptive || remoteLossPermille < 0) {
+            return max;
+        }
+        int needed = (int) Math.ceil(dataCount * remoteLossPermille / 1000.0 * ADAPTIVE_REDUNDANCY);
+        return Math.min(max, needed);
+    }
+
+    private void writeHeader(byte[] shard, int index, int dataCount, int parityCount, int size) {
+        XncpTools.encodeUInt32(shard, 0, xncp.getConversationID());
+        XncpTools.encodeByte(shard, 4, XncpConsts.COMMAND_FEC);
+        XncpTools.encodeByte(shard, 5, (byte) index);
+        XncpTools.encodeUInt16(shard, 6, (dataCount << 8) | parityCount);
+        XncpTools.encodeUInt32(shard, 8, 0);
+        XncpTools.encodeUInt32(shard, 12, groupId);
+        XncpTools.encodeUInt32(shard, 16, getLossPermille());
+        XncpTools.encodeUInt32(shard, 20, size);
+    }
+
+    private byte[] getEncodeShard(int index) {
+        byte[] shard = getShard(encodeShards, index);
+        if (encodeBuffers[index] == null || encodeBuffers[index].array() != shard) {
+            encodeBuffers[index] = ByteBuffer.wrap(shard);
+        }
+        return shard;
+    }
+
+    private void emit(int index, int size) {
+        ByteBuffer packet = encodeBuffers[index];
+        packet.limit(SHARD_OFFSET + size);
+        packet.position(0);
+        xncp.output(packet);
+        packet.clear();
+    }
+
+    /**
+     * 处理一个COMMAND_FEC包，数据分片和恢复出来的数据报都会交给xncp.input
+     * @return 数据分片时返回input的结果，校验分片返回0，包不完整返回-3
+     * */
+    int input(ByteBuffer buffer, int offset, int length) {
+        int index = XncpTools.decodeByte(buffer, offset + 5) & 0xff;
+        int counts = XncpTools.decodeUInt16(buffer, offset + 6);
+        int dataCount = counts >> 8;
+        int parityCount = counts & 0xff;
+        long id = XncpTools.decodeUint32(buffer, offset + 12);
+        long remoteLoss = XncpTools.decodeUint32(buffer, offset + 16);
+        int size = (int) XncpTools.decodeUint32(buffer, offset + 20);
+        int payload = offset + XncpConsts.DATASEGMENT_HEADER_SIZE;
+        if (size < LENGTH_SIZE || size > length - XncpConsts.DATASEGMENT_HEADER_SIZE
+                || dataCount == 0 || index >= dataCount + parityCount || size + SHARD_OFFSET > xncp.getMtu()) {
+            return -3;
+        }
+        remoteLossPermille = Math.min(remoteLoss, 1000);
+        boolean isData = index < dataCount;
+        int dataLength = isData ? XncpTools.decodeUInt16(buffer, payload) : 0;
+        if (isData && dataLength > size - LENGTH_SIZE) {
+            return -3;
+        }
+
+        Group group = groups[(int) (id & (GROUP_WINDOW - 1))];
+        if (group == null) {
+            group = new Group();
+            groups[(int) (id & (GROUP_WINDOW - 1))] = group;
+        }
+        if (group.groupId != id) {
+            if (group.groupId >= 0 && (int) (id - group.groupId) < 0) {//比窗口中的组还旧，只能直接交给input
+                return isData ? xncp.input(buffer, payload + LENGTH_SIZE, dataLength) : 0;
+            }
+            resetGroup(group, id);
+        }
+        if (!isData) {
+            //数据分片的包头按满组写，一组提前结束时以校验分片为准
+            group.dataCount = dataCount;
+            group.parityCount = parityCount;
+            group.shardSize = size;
+        } else if (group.parityCount == 0 && group.shardSize == 0) {
+            group.dataCount = dataCount;
+            group.parityCount = parityCount;
+        }
+        if (group.present[index]) {//重复的包
+            return isData ? xncp.input(buffer, payload + LENGTH_SIZE, dataLength) : 0;
+        }
+        byte[] shard = getShard(group.shards, index);
+        XncpTools.getBytes(buffer, payload, shard, SHARD_OFFSET, size);
+        group.present[index] = true;
+        group.lengths[index] = size;
+        group.receivedCount++;
+
+        int res = 0;
+        if (isData) {
+            group.dataReceivedCount++;
+            group.dataEnd = Math.max(group.dataEnd, index + 1);
+            if (!group.done) {
+                res = xncp.input(buffer, payload + LENGTH_SIZE, dataLength);
+            }
+        }
+        tryRecover(group);
+        return res;
+    }
+
+    private void resetGroup(Group group, long id) {
+        if (group.groupId >= 0) {//统计被换掉的组的丢包
+            //提前结束的组只有收到了校验分片才知道分片总数，否则只能统计最后一个收到的数据分片之前的部分
+            int total = group.shardSize > 0 || group.dataEnd == group.dataCount
+                    ? group.dataCount + group.parityCount : group.dataEnd;
+            if (total > 0) {
+                int lost = Math.max(total - group.receivedCount, 0);
+                lossPpm = (int) (((long) lossPpm * 7 + lost * 1000000L / total) / 8);
+            }
+        }
+        group.groupId = id;
+        group.dataCount = 0;
+        group.parityCount = 0;
+        group.shardSize = 0;
+        group.receivedCount = 0;
+        group.dataReceivedCount = 0;
+        group.dataEnd = 0;
+        group.done = false;
+        for (int i = 0; i < ReedSolomon.MAX_SHARDS; i++) {
+            group.present[i] = false;
+        }
+    }
+
+    /**
+     * 收到的分片足够时恢复丢掉的数据分片并交给input
+     * */
+    private void tryRecover(Group group) {
+        if (group.done) {
+            return;
+        }
+        int dataCount = group.dataCount;
+        if (group.dataReceivedCount >= dataCount) {
+            group.done = true;
+            return;
+        }
+        if (group.shardSize == 0 || group.receivedCount < dataCount) {
+            return;
+        }
+        int shardSize = group.shardSize;
+        for (int j = 0; j < dataCount; j++) {
+            byte[] shard = getShard(group.shards, j);
+            int from = group.present[j] ? group.lengths[j] : 0;
+            for (int k = SHARD_OFFSET + from; k < SHARD_OFFSET + shardSize; k++) {
+                shard[k] = 0;
+            }
+        }
+        if (!ReedSolomon.reconstruct(group.shards, group.present, dataCount, group.parityCount, SHARD_OFFSET, shardSize)) {
+            return;
+        }
+        group.done = true;
+        for (int j = 0; j < dataCount; j++) {
+            if (group.present[j]) {
+                continue;
+            }
+            byte[] shard = group.shards[j];
+            int dataLength = XncpTools.decodeUInt16(shard, SHARD_OFFSET);
+            if (dataLength <= shardSize - LENGTH_SIZE) {
+                recoveredCount++;
+                xncp.input(shard, SHARD_OFFSET + LENGTH_SIZE, dataLength);
+            }
+        }
+    }
+
+    /**
+     * 本端观测到的丢包率，千分比
+     * */
+    int getLossPermille() {
+        return (lossPpm + 999) / 1000;//向上取整，有丢包时至少是1
+    }
+
+    /**
+     * 对端反馈的丢包率，千分比，还没有收到反馈时为-1
+     * */
+    long getRemoteLossPermille() {
+        return remoteLossPermille;
+    }
+
+    long getRecoveredCount() {
+        return recoveredCount;
+    }
+}
@@ -0,0 +1,262 @@
+package com.wyy.xncp.core;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * XncpMetrics
+ * 协议热路径上的计数器，通过Xncp.setMetrics挂到会话上，没有设置时会话中只多一次null判断
+ * 计数器都是LongAdder，多个线程上的会话可以共用一个XncpMetrics来做全局统计，不会互相争用同一个缓存行；
+ * 每个会话用自己的XncpMetrics就是会话级别的统计
+ *
+ * rtt直方图按2的幂分桶，第i个桶是[2^(i-1),2^i)ms，第0个桶是0ms，最后一个桶包括更大的值
+ * 窗口占用率是每次flushSendBuffer发出数据时在途包数占可用发送窗口的比例
+ * 可以通过register导出成JMX MBean
+ * */
+public class XncpMetrics implements XncpMetricsMBean {
+
+    static final int RTT_BUCKET_COUNT = 18;//最后一个桶从2^16ms开始，已经超过RTO_MAX
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder datagramsIn = new LongAdder();
+    private final LongAdder datagramsOut = new LongAdder();
+    private final LongAdder segmentsSent = new LongAdder();//第一次发送的数据包
+    private final LongAdder timeoutRetransmits = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder duplicateSegments = new LongAdder();//已经收到过或者已经交给上层的数据包
+    private final LongAdder deadLinks = new LongAdder();//xncpState变为-1的次数
+    private final LongAdder[] rttBuckets = new LongAdder[RTT_BUCKET_COUNT];
+    private final LongAdder windowOccupancySum = new LongAdder();//单位 千分之一
+    private final LongAdder windowSamples = new LongAdder();
+    private volatile ObjectName objectName;
+
+    public XncpMetrics() {
+        for (int i = 0; i < RTT_BUCKET_COUNT; i++) {
+            rttBuckets[i] = new LongAdder();
+        }
+    }
+
+    void onDatagramIn(int bytes) {
+        datagramsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void onDatagramOut(int bytes) {
+        datagramsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * 一次flushSendBuffer的结果，在flush结束时一起累加
+     * */
+    void onFlush(int sent, int timeouts, int fastResends, long inFlight, long window) {
+        if (sent > 0) {
+            segmentsSent.add(sent);
+        }
+        if (timeouts > 0) {
+            timeoutRetransmits.add(timeouts);
+        }
+        if (fastResends > 0) {
+            fastRetransmits.add(fastResends);
+        }
+        if (window > 0) {
+            windowOccupancySum.add(XncpTools.min(inFlight, window) * 1000 / window);
+            windowSamples.increment();
+        }
+    }
+
+    void onDuplicateSegment() {
+        duplicateSegments.increment();
+    }
+
+    void onDeadLink() {
+        deadLinks.increment();
+    }
+
+    void onRttSample(long rtt) {
+        rttBuckets[getRttBucket(rtt)].increment();
+    }
+
+    static int getRttBucket(long rtt) {
+        if (rtt <= 0) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(rtt);
+        return bucket < RTT_BUCKET_COUNT ? bucket : RTT_BUCKET_COUNT - 1;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDatagramsIn() {
+        return datagramsIn.sum();
+    }
+
+    @Override
+    public long getDatagramsOut() {
+        return datagramsOut.sum();
+    }
+
+    @Override
+    public long getSegmentsSent() {
+        return segmentsSent.sum();
+    }
+
+    @Override
+    public long getTimeoutRetransmits() {
+        return timeoutRetransmits.sum();
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    @Override
+    public long getDuplicateSegments() {
+        return duplicateSegments.sum();
+    }
+
+    @Override
+    public long getDeadLinks() {
+        return deadLinks.sum();
+    }
+
+    /**
+     * rtt直方图，下标同getRttBucket
+     * */
+    public long[] getRttHistogram() {
+        long[] res = new long[RTT_BUCKET_COUNT];
+        for (int i = 0; i < RTT_BUCKET_COUNT; i++) {
+            res[i] = rttBuckets[i].sum();
+        }
+        return res;
+    }
+
+    @Override
+    public long getRttSampleCount() {
+        long count = 0;
+        for (LongAdder bucket : rttBuckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * rtt的百分位数，精度是直方图的桶，返回所在桶的上界(不包括)，单位ms
+     * @param percentile 0到100之间
+     * @return 没有样本时返回-1
+     * */
+    public long getRttPercentile(double percentile) {
+        long[] histogram = getRttHistogram();
+        long count = 0;
+        for (long c : histogram) {
+            count += c;
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < RTT_BUCKET_COUNT; i++) {
+            seen += histogram[i];
+            if (seen >= rank && histogram[i] > 0) {
+                return 1L << i;
+            }
+        }
+        return 1L << (RTT_BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public long getRttP50() {
+        return getRttPercentile(50);
+    }
+
+    @Override
+    public long getRttP99() {
+        return getRttPercentile(99);
+    }
+
+    /**
+     * 平均窗口占用率，0到1之间，没有样本时为0
+     * */
+    @Override
+    public double getAverageWindowOccupancy() {
+        long samples = windowSamples.sum();
+        return samples == 0 ? 0 : windowOccupancySum.sum() / 1000.0 / samples;
+    }
+
+    /**
+     * 清零，和并发的累加之间没有原子性，只用在统计周期的边界上
+     * */
+    @Override
+    public void reset() {
+        bytesIn.reset();
+        bytesOut.reset();
+        datagramsIn.reset();
+        datagramsOut.reset();
+        segmentsSent.reset();
+        timeoutRetransmits.reset();
+        fastRetransmits.reset();
+        duplicateSegments.reset();
+        deadLinks.reset();
+        for (LongAdder bucket : rttBuckets) {
+            bucket.reset();
+        }
+        windowOccupancySum.reset();
+        windowSamples.reset();
+    }
+
+    /**
+     * 注册到平台MBeanServer上，ObjectName是 com.wyy.xncp:type=XncpMetrics,name=name
+     * */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.wyy.xncp:type=XncpMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * 从平台MBeanServer上注销，没有注册过时什么都不做
+     * */
+    public void unregister() throws JMException {
+        ObjectName objectName = this.objectName;
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public String toString() {
+        return "bytesIn=" + getBytesIn()
+                + " bytesOut=" + getBytesOut()
+                + " datagramsIn=" + getDatagramsIn()
+                + " datagramsOut=" + getDatagramsOut()
+                + " segmentsSent=" + getSegmentsSent()
+                + " timeoutRetransmits=" + getTimeoutRetransmits()
+                + " fastRetransmits=" + getFastRetransmits()
+                + " duplicateSegments=" + getDuplicateSegments()
+                + " deadLinks=" + getDeadLinks()
+                + " rttP50=" + getRttP50() + "ms"
+                + " rttP99=" + getRttP99() + "ms"
+                + " windowOccupancy=" + String.format("%.3f", getAverageWindowOccupancy());
+    }
+}
@@ -0,0 +1,36 @@
+package com.wyy.xncp.core;
+
+/**
+ * XncpMetricsMBean
+ * XncpMetrics通过JMX导出的属性，字节和包都是在ARQ层统计的(开启FEC时不包括FEC的开销和校验分片)
+ * */
+public interface XncpMetricsMBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDatagramsIn();
+
+    long getDatagramsOut();
+
+    long getSegmentsSent();
+
+    long getTimeoutRetransmits();
+
+    long getFastRetransmits();
+
+    long getDuplicateSegments();
+
+    long getDeadLinks();
+
+    long getRttSampleCount();
+
+    long getRttP50();
+
+    long getRttP99();
+
+    double getAverageWindowOccupancy();
+
+    void reset();
+}
@@ -0,0 +1,202 @@
+package com.wyy.xncp.core;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * XncpPayloadArena
+ * 包数据的堆外内存池，通过Xncp.setPayloadArena挂到会话上，多个会话(可以在不同线程上)共用一个
+ * 挂上之后会话的DataSegmentPool不再申请堆上的slab，每个包的数据放在从这里取出的一块直接内存中，
+ * 发送窗口和接收窗口中大量长时间存活的数据就不会留在老年代里
+ *
+ * 块的大小按2的幂分级，从MIN_BLOCK_SIZE到MAX_BLOCK_SIZE，每一级一个空闲列表；
+ * 某一级没有空闲块时申请一整块chunk的直接内存切成这一级的块，chunk申请之后一直保留，不还给系统
+ * 包被确认、被读走或者被丢弃时DataSegment.release()立即把块还回对应级的空闲列表，不依赖gc
+ * 已申请的直接内存超过maxBytes时不再申请，allocate返回null，调用者退回到堆上的数组
+ *
+ * 每一级的空闲列表各自加锁，统计用LongAdder，可以通过register导出成JMX MBean
+ * */
+public class XncpPayloadArena implements XncpPayloadArenaMBean {
+
+    public static final int MIN_BLOCK_SHIFT = 6;
+    public static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_SHIFT;//64B
+    public static final int MAX_BLOCK_SIZE = 1 << 16;//64KB，比udp能承载的最大mss还大
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;//1MB
+
+    private static final int CLASS_COUNT = 16 - MIN_BLOCK_SHIFT + 1;
+
+    private final long maxBytes;
+    private final int chunkSize;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<ByteBuffer>[] freeBlocks = new ArrayDeque[CLASS_COUNT];
+    private final AtomicLong reservedBytes = new AtomicLong();//已经申请的直接内存
+    private final LongAdder usedBytes = new LongAdder();//正在被包使用的块的总大小
+    private final LongAdder usedBlocks = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();//超过maxBytes或者太大，没有分配到块的次数
+    private volatile ObjectName objectName;
+
+    public XncpPayloadArena(long maxBytes) {
+        this(maxBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param maxBytes 最多申请的直接内存
+     * @param chunkSize 每次申请的直接内存的大小，块比它大时每次申请一个块
+     * */
+    public XncpPayloadArena(long maxBytes, int chunkSize) {
+        this.maxBytes = maxBytes;
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeBlocks[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * 能放下size个字节的最小的一级
+     * */
+    static int getSizeClass(int size) {
+        if (size <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_BLOCK_SHIFT;
+    }
+
+    /**
+     * 取出一块至少能放下size个字节的直接内存，position为0，limit和capacity是这一级块的大小
+     * 块只能由取出它的调用者使用，用完之后通过free还回来
+     * @return size超过MAX_BLOCK_SIZE或者已经申请的直接内存达到maxBytes时返回null
+     * */
+    ByteBuffer allocate(int size) {
+        if (size > MAX_BLOCK_SIZE) {
+            fallbacks.increment();
+            return null;
+        }
+        int sizeClass = getSizeClass(size);
+        ArrayDeque<ByteBuffer> blocks = freeBlocks[sizeClass];
+        ByteBuffer block;
+        synchronized (blocks) {
+            if (blocks.isEmpty() && !allocateChunk(sizeClass, blocks)) {
+                fallbacks.increment();
+                return null;
+            }
+            block = blocks.pollLast();
+        }
+        usedBytes.add(block.capacity());
+        usedBlocks.increment();
+        return block;
+    }
+
+    /**
+     * 归还allocate取出的块，同一个块不能归还两次
+     * */
+    void free(ByteBuffer block) {
+        block.clear();
+        usedBytes.add(-block.capacity());
+        usedBlocks.decrement();
+        ArrayDeque<ByteBuffer> blocks = freeBlocks[getSizeClass(block.capacity())];
+        synchronized (blocks) {
+            blocks.addLast(block);
+        }
+    }
+
+    /**
+     * 申请一块chunk切成sizeClass这一级的块放进blocks，调用时持有blocks的锁
+     * 剩下的额度不够一整块chunk时只申请剩下的额度能放下的块
+     * */
+    private boolean allocateChunk(int sizeClass, ArrayDeque<ByteBuffer> blocks) {
+        int blockSize = MIN_BLOCK_SIZE << sizeClass;
+        long bytes = XncpTools.max(chunkSize / blockSize, 1) * blockSize;
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            long remaining = maxBytes - reserved;
+            if (remaining < blockSize) {
+                return false;
+            }
+            if (bytes > remaining) {
+                bytes = remaining / blockSize * blockSize;
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+        ByteBuffer chunk = ByteBuffer.allocateDirect((int) bytes);
+        for (int loc = 0; loc < bytes; loc += blockSize) {
+            chunk.limit(loc + blockSize);
+            chunk.position(loc);
+            blocks.addLast(chunk.slice());
+        }
+        return true;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes.sum();
+    }
+
+    @Override
+    public long getUsedBlocks() {
+        return usedBlocks.sum();
+    }
+
+    @Override
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * 已申请的直接内存中正在使用的比例，0到1之间
+     * */
+    @Override
+    public double getUtilization() {
+        long reserved = getReservedBytes();
+        return reserved == 0 ? 0 : (double) getUsedBytes() / reserved;
+    }
+
+    /**
+     * 注册到平台MBeanServer上，ObjectName是 com.wyy.xncp:type=XncpPayloadArena,name=name
+     * */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.wyy.xncp:type=XncpPayloadArena,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * 从平台MBeanServer上注销，没有注册过时什么都不做
+     * */
+    public void unregister() throws JMException {
+        ObjectName objectName = this.objectName;
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public String toString() {
+        return "maxBytes=" + getMaxBytes()
+                + " reservedBytes=" + getReservedBytes()
+                + " usedBytes=" + getUsedBytes()
+                + " usedBlocks=" + getUsedBlocks()
+                + " fallbacks=" + getFallbacks();
+    }
+}
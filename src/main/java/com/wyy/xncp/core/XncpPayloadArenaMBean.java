@@ -0,0 +1,20 @@
+package com.wyy.xncp.core;
+
+/**
+ * XncpPayloadArenaMBean
+ * XncpPayloadArena通过JMX导出的属性，单位都是字节或者块的个数
+ * */
+public interface XncpPayloadArenaMBean {
+
+    long getMaxBytes();
+
+    long getReservedBytes();
+
+    long getUsedBytes();
+
+    long getUsedBlocks();
+
+    long getFallbacks();
+
+    double getUtilization();
+}
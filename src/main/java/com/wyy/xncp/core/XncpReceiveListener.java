@@ -0,0 +1,14 @@
+package com.wyy.xncp.core;
+
+/**
+ * XncpReceiveListener
+ * 接收队列中有新的完整消息(最后一片fragmentID为0的包到达)可读时的回调
+ * 在调用input的线程中执行，可以直接在里面receive，不需要再轮询getReadableBytesSize
+ * */
+public interface XncpReceiveListener {
+
+    /**
+     * 连续的包一起移进接收队列时，不管完成了几条消息都只调用一次，消息个数可以用getReadableMessageCount获取
+     * */
+    void onReadable(Xncp xncp);
+}
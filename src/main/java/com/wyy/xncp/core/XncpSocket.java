@@ -0,0 +1,294 @@
+package com.wyy.xncp.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * XncpSocket
+ * 在Xncp上提供阻塞的InputStream/OutputStream，使用者不用再自己轮询getReadableBytesSize和receive
+ * 固定使用流模式，通信双方都需要是流模式(对端可以直接setStreamMode(true))
+ *
+ * 驱动线程(收包的线程、调用update的线程)照常调用input、update和check，这几个方法会先拿到socket的锁；
+ * 读写线程只通过getInputStream/getOutputStream收发，其余方法需要在驱动线程中调用
+ *
+ * 读：接收队列中没有数据时在Condition上等待，有新的包移进接收队列时(onReceiveQueueReady)被唤醒
+ * 写：getPendingSendPacketCount达到发送窗口大小时在Condition上等待，直到对端确认了一些包(onSendBufferAcked)
+ * 等待使用ReentrantLock和Condition而不是synchronized，线程阻塞时只是被park，不占用其他资源，
+ * 在支持虚拟线程的JDK上运行时虚拟线程可以直接卸载，不会占住载体线程
+ * */
+public abstract class XncpSocket extends Xncp {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+    private final InputStream inputStream = new XncpInputStream();
+    private final OutputStream outputStream = new XncpOutputStream();
+    private volatile boolean closed;
+    private volatile boolean broken;//连接不通(xncpState为-1)
+    private volatile long soTimeout;//读写等待的超时时间，单位ms，0表示一直等待
+
+    public XncpSocket(long conversationID) {
+        super(conversationID);
+        setStreamMode(true);
+    }
+
+    @Override
+    public int input(ByteBuffer buffer, int offset, int length) {
+        lock.lock();
+        try {
+            return super.input(buffer, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void update(long currentTime) {
+        lock.lock();
+        try {
+            super.update(currentTime);
+            if (getXncpState() == -1 && !broken) {
+                broken = true;
+                readable.signalAll();
+                writable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long check(long currentTime) {
+        lock.lock();
+        try {
+            return super.check(currentTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在input中调用，这时已经拿着锁
+     * */
+    @Override
+    protected void onReceiveQueueReady() {
+        readable.signalAll();
+    }
+
+    /**
+     * 在input中调用，这时已经拿着锁
+     * */
+    @Override
+    protected void onSendBufferAcked(long ackedCount) {
+        writable.signalAll();
+    }
+
+    /**
+     * 写入的数据被放进发送队列之后在写线程中调用，默认什么都不做
+     * 使用check或者时间轮驱动时，空闲的会话可能不会再被update，
+     * 子类可以在这里通知驱动线程重新计算定时(比如XncpTimerWheel.schedule)
+     * */
+    protected void onWrite() {
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * 读写等待的超时时间，超时之后抛出SocketTimeoutException
+     * @param soTimeout 单位ms，0表示一直等待
+     * */
+    public void setSoTimeout(long soTimeout) {
+        this.soTimeout = soTimeout;
+    }
+
+    public long getSoTimeout() {
+        return soTimeout;
+    }
+
+    /**
+     * 关闭socket，正在等待的读写线程会被唤醒
+     * 读线程还可以读完接收队列中剩下的数据，之后read返回-1，写线程抛出IOException
+     * 已经写入的数据是否还要发送完由驱动线程决定
+     * */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            readable.signalAll();
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 连接是否已经不通，update之后发现xncpState为-1时置为true
+     * */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * 在Condition上等待，需要拿着锁调用
+     * @return 剩余的等待时间，单位ns，没有超时限制时返回Long.MAX_VALUE
+     * */
+    private long await(Condition condition, long nanos) throws IOException {
+        try {
+            if (nanos == Long.MAX_VALUE) {
+                condition.await();
+                return nanos;
+            }
+            if (nanos <= 0) {
+                throw new SocketTimeoutException("xncp socket timed out");
+            }
+            return condition.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting on xncp socket");
+        }
+    }
+
+    private long timeoutNanos() {
+        long timeout = soTimeout;
+        return timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+    }
+
+    /**
+     * 最多读取length个字节，没有数据时阻塞
+     * @return 读到的字节数，关闭之后并且没有剩余的数据时返回-1
+     * */
+    private int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        long nanos = timeoutNanos();
+        lock.lock();
+        try {
+            while (true) {
+                if (getReadableBytesSize() > 0) {
+                    return receive(ByteBuffer.wrap(buffer, offset, length));
+                }
+                if (closed) {
+                    return -1;
+                }
+                if (broken) {
+                    throw new IOException("xncp connection broken");
+                }
+                nanos = await(readable, nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把length个字节全部放进发送队列，发送窗口满了时阻塞
+     * 每次只放入发送窗口剩余空间对应的字节数，所以未确认的包数最多比窗口多出一个包
+     * */
+    private void write(byte[] buffer, int offset, int length) throws IOException {
+        long nanos = timeoutNanos();
+        while (length > 0) {
+            lock.lock();
+            int size;
+            try {
+                long window = getSendWindowSize();
+                while (true) {
+                    if (closed) {
+                        throw new IOException("xncp socket closed");
+                    }
+                    if (broken) {
+                        throw new IOException("xncp connection broken");
+                    }
+                    if (getPendingSendPacketCount() < window) {
+                        break;
+                    }
+                    nanos = await(writable, nanos);
+                }
+                long free = (window - getPendingSendPacketCount()) * getMss();
+                size = (int) XncpTools.min(length, free);
+                send(buffer, offset, size);
+            } finally {
+                lock.unlock();
+            }
+            onWrite();
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private int available() {
+        lock.lock();
+        try {
+            long size = getReadableBytesSize();
+            return size > 0 ? (int) XncpTools.min(size, Integer.MAX_VALUE) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class XncpInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int res = XncpSocket.this.read(one, 0, 1);
+            return res < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return XncpSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return XncpSocket.this.available();
+        }
+
+        @Override
+        public void close() {
+            XncpSocket.this.close();
+        }
+    }
+
+    private class XncpOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            XncpSocket.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            XncpSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            XncpSocket.this.close();
+        }
+    }
+}
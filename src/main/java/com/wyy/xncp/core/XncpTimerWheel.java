@@ -0,0 +1,292 @@
+package com.wyy.xncp.core;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * XncpTimerWheel
+ * 分层时间轮，用来驱动大量的会话
+ * 每个会话按照Xncp.check返回的时间挂在时间轮上，advance时只对到期的会话调用update，
+ * update之后再按照新的check结果重新挂上去，check返回-1的空闲会话不会被挂上去
+ *
+ * 一共4层，每层64个槽，第L层一个槽覆盖64^L个tick
+ * 第0层的槽中是精确到tick的定时，高层的槽到了之后把其中的会话重新放到低层(cascade)
+ * 插入、删除都是O(1)，推进一个tick平均也是O(1)
+ *
+ * 和Xncp一样不是线程安全的，一般一个线程一个时间轮
+ * 会话在别的地方调用过input或者send之后，需要调用schedule重新计算定时
+ * */
+public class XncpTimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+
+    /**
+     * 时间轮上的一个节点，槽中的节点组成双向链表
+     * */
+    private static final class Node {
+        final Xncp session;
+        long deadlineTick;
+        Node prev;
+        Node next;
+        int level = -1;//-1说明不在时间轮上
+        int slot;
+
+        Node(Xncp session) {
+            this.session = session;
+        }
+    }
+
+    private final long tickDuration;//一个tick的时长，单位ms
+    private final Node[][] slots = new Node[LEVEL_COUNT][SLOT_COUNT];
+    private final IdentityHashMap<Xncp, Node> nodes = new IdentityHashMap<Xncp, Node>();
+    private long currentTick;
+    private int scheduledCount;//挂在时间轮上的节点个数
+    private Node expired;//当前正在处理的到期节点链表
+    private XncpUpdateErrorListener updateErrorListener;//为null时update的异常直接抛给advance的调用者
+
+    /**
+     * @param tickDuration 时间轮的精度，单位ms，一般和原来固定调用update的间隔一致
+     * @param currentTime 当前时间，单位ms
+     * */
+    public XncpTimerWheel(long tickDuration, long currentTime) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        this.tickDuration = tickDuration;
+        this.currentTick = currentTime / tickDuration;
+    }
+
+    /**
+     * 按照session.check(currentTime)的结果把会话挂到时间轮上，已经挂着的会话会被重新放置
+     * check返回-1时会话会从时间轮上取下，但是仍然被时间轮记录，之后可以再次schedule
+     * */
+    public void schedule(Xncp session, long currentTime) {
+        Node node = nodes.get(session);
+        if (node == null) {
+            node = new Node(session);
+            nodes.put(session, node);
+        }
+        unlink(node);
+        long deadline = session.check(currentTime);
+        if (deadline < 0) {
+            return;
+        }
+        //向上取整，保证不会在时间还没到的时候就调用update
+        node.deadlineTick = (deadline + tickDuration - 1) / tickDuration;
+        link(node, currentTick + 1);//当前tick的槽已经处理过了
+    }
+
+    /**
+     * 从时间轮中彻底移除会话
+     * */
+    public void remove(Xncp session) {
+        Node node = nodes.remove(session);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * 推进到currentTime，对所有到期的会话调用update并重新schedule
+     * @param updatedSessions 不为null时，被update过的会话会被加进去，方便调用者检查会话状态
+     * @return 被update的会话个数
+     * */
+    public int advance(long currentTime, List<Xncp> updatedSessions) {
+        long targetTick = currentTime / tickDuration;
+        int updated = 0;
+        while (currentTick < targetTick) {
+            if (scheduledCount == 0) {//时间轮是空的，直接跳过去
+                currentTick = targetTick;
+                break;
+            }
+            currentTick++;
+            cascade();
+            updated += expire((int) (currentTick & SLOT_MASK), currentTime, updatedSessions);
+        }
+        return updated;
+    }
+
+    /**
+     * 到了高层槽的边界时，把对应槽中的节点重新放置到低层
+     * 先处理高层，从高层放下来的节点如果正好落在低层当前的槽中，也会在接下来被处理
+     * */
+    private void cascade() {
+        for (int level = LEVEL_COUNT - 1; level >= 1; level--) {
+            long mask = (1L << (SLOT_BITS * level)) - 1;
+            if ((currentTick & mask) != 0) {
+                continue;
+            }
+            int slot = (int) (currentTick >> (SLOT_BITS * level)) & SLOT_MASK;
+            Node node = slots[level][slot];
+            slots[level][slot] = null;
+            while (node != null) {
+                Node next = node.next;
+                node.prev = null;
+                node.next = null;
+                node.level = -1;
+                scheduledCount--;
+                link(node, currentTick);//当前tick的槽还没有处理，可以直接放进去
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 没有设置updateErrorListener时，update抛出的异常会被抛给advance的调用者，
+     * 抛出异常的会话不会被重新挂上去(仍然被时间轮记录，可以再次schedule)，同一个槽中还没有处理的会话放到下一个tick，不会丢失
+     * */
+    private int expire(int slot, long currentTime, List<Xncp> updatedSessions) {
+        expired = slots[0][slot];
+        slots[0][slot] = null;
+        //整个槽都移到了到期链表中，先全部标记为不在槽中，unlink时按到期链表处理
+        for (Node node = expired; node != null; node = node.next) {
+            node.level = -1;
+        }
+        int updated = 0;
+        try {
+            while (expired != null) {
+                Node node = expired;
+                expired = node.next;
+                if (expired != null) {
+                    expired.prev = null;
+                }
+                node.next = null;
+                scheduledCount--;
+
+                try {
+                    node.session.update(currentTime);
+                } catch (Throwable e) {
+                    if (updateErrorListener == null) {
+                        throw e;
+                    }
+                    updateErrorListener.onUpdateError(node.session, e);
+                }
+                updated++;
+                if (updatedSessions != null) {
+                    updatedSessions.add(node.session);
+                }
+                if (nodes.get(node.session) == node) {//update中没有被remove
+                    schedule(node.session, currentTime);
+                }
+            }
+        } finally {
+            relinkExpired();
+        }
+        return updated;
+    }
+
+    /**
+     * 把到期链表中剩下的节点放到下一个tick，只有update抛出异常时链表中才会有剩下的节点
+     * */
+    private void relinkExpired() {
+        while (expired != null) {
+            Node node = expired;
+            expired = node.next;
+            if (expired != null) {
+                expired.prev = null;
+            }
+            node.next = null;
+            scheduledCount--;
+            link(node, currentTick + 1);
+        }
+    }
+
+    /**
+     * 按照deadlineTick选择层和槽
+     * 第L层能放下的条件是 deadlineTick和currentTick在第L层的槽号相差不到64，这样槽被处理时一定正好到了它的时间
+     * 早于minTick的放到minTick，超出最高层范围的放在最高层最远的槽中，被cascade时会重新放置
+     * */
+    private void link(Node node, long minTick) {
+        long deadlineTick = node.deadlineTick;
+        if (deadlineTick < minTick) {
+            deadlineTick = minTick;
+        }
+        int level = 0;
+        while (level < LEVEL_COUNT - 1
+                && (deadlineTick >> (SLOT_BITS * level)) - (currentTick >> (SLOT_BITS * level)) >= SLOT_COUNT) {
+            level++;
+        }
+        long levelTick = deadlineTick >> (SLOT_BITS * level);
+        long currentLevelTick = currentTick >> (SLOT_BITS * level);
+        if (levelTick - currentLevelTick >= SLOT_COUNT) {
+            levelTick = currentLevelTick + SLOT_COUNT - 1;
+        }
+        int slot = (int) levelTick & SLOT_MASK;
+        node.level = level;
+        node.slot = slot;
+        node.prev = null;
+        node.next = slots[level][slot];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        slots[level][slot] = node;
+        scheduledCount++;
+    }
+
+    private void unlink(Node node) {
+        if (node.level < 0) {
+            //还在等待处理的到期链表中，比如在别的会话的update里又schedule了这个会话
+            if (node == expired) {
+                expired = node.next;
+                if (expired != null) {
+                    expired.prev = null;
+                }
+                node.next = null;
+                scheduledCount--;
+            } else if (node.prev != null) {
+                node.prev.next = node.next;
+                if (node.next != null) {
+                    node.next.prev = node.prev;
+                }
+                node.prev = null;
+                node.next = null;
+                scheduledCount--;
+            }
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            slots[node.level][node.slot] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.level = -1;
+        scheduledCount--;
+    }
+
+    /**
+     * 挂在时间轮上等待update的会话个数
+     * */
+    public int getScheduledCount() {
+        return scheduledCount;
+    }
+
+    /**
+     * 时间轮记录的全部会话个数，包括空闲的会话
+     * */
+    public int size() {
+        return nodes.size();
+    }
+
+    public XncpUpdateErrorListener getUpdateErrorListener() {
+        return updateErrorListener;
+    }
+
+    /**
+     * 设置update抛出异常时的回调，为null时异常直接抛给advance的调用者
+     * */
+    public void setUpdateErrorListener(XncpUpdateErrorListener updateErrorListener) {
+        this.updateErrorListener = updateErrorListener;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+}
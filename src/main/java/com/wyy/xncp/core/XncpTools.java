@@ -1,6 +1,7 @@
 package com.wyy.xncp.core;
 
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * XncpTools
@@ -54,9 +55,10 @@ public class XncpTools {
      * 由于java中没有unsigned int 所以只能由long类型来替代，造成了一些不必要的损失
      * */
     public static void encodeUInt32(byte[]buffer,int loc ,long num){
-        for(int i = 0 ;i<4;i++){
-            buffer[loc+i]=(byte)(num>>((3-i)*8));
-        }
+        buffer[loc] = (byte)(num>>24);
+        buffer[loc+1] = (byte)(num>>16);
+        buffer[loc+2] = (byte)(num>>8);
+        buffer[loc+3] = (byte)num;
     }
 
     /**
@@ -64,12 +66,178 @@ public class XncpTools {
      * 由于java中没有unsigned int 所以只能由long类型来替代，造成了不必要的损失
      * */
     public static long decodeUint32(byte[]buffer,int loc){
-        long ans = 0 ;
-        for(int i = 0 ;i<4;i++){
-            ans = (ans<<8)+(buffer[loc+i]&0xFFL);
+        return ((buffer[loc]&0xFFL)<<24)|((buffer[loc+1]&0xFFL)<<16)
+                |((buffer[loc+2]&0xFFL)<<8)|(buffer[loc+3]&0xFFL);
+    }
+
+    /**
+     * 在buffer数组中的loc位置开始按大端序写入8个字节
+     * 包头编解码时一次写两个32位字段
+     * */
+    public static void encodeInt64(byte[]buffer,int loc,long num){
+        encodeUInt32(buffer,loc,num>>>32);
+        encodeUInt32(buffer,loc+4,num);
+    }
+
+    public static long decodeInt64(byte[]buffer,int loc){
+        return (decodeUint32(buffer,loc)<<32)|decodeUint32(buffer,loc+4);
+    }
+
+    /**
+     * 下面是ByteBuffer版本的编解码方法，全部使用绝对位置读写，不会改变buffer的position
+     * 不论buffer设置的是什么字节序，写出来的都是大端序，和byte[]版本一致
+     * 对直接内存(direct buffer)同样适用，不需要先复制到堆上
+     * */
+    public static void encodeByte(ByteBuffer buffer ,int loc ,byte c){
+        buffer.put(loc,c);
+    }
+
+    public static byte decodeByte(ByteBuffer buffer,int loc){
+        return buffer.get(loc);
+    }
+
+    public static void encodeUInt16(ByteBuffer buffer ,int loc ,int num){
+        buffer.put(loc,(byte)(num>>8));
+        buffer.put(loc+1,(byte)num);
+    }
+
+    public static int decodeUInt16(ByteBuffer buffer,int loc){
+        return ((buffer.get(loc)&0xFF)<<8)+(buffer.get(loc+1)&0xFF);
+    }
+
+    public static void encodeUInt32(ByteBuffer buffer,int loc ,long num){
+        int value = (int)num;
+        if(buffer.order() != ByteOrder.BIG_ENDIAN){
+            value = Integer.reverseBytes(value);
         }
-        return ans ;
+        buffer.putInt(loc,value);
+    }
 
+    public static long decodeUint32(ByteBuffer buffer,int loc){
+        int value = buffer.getInt(loc);
+        if(buffer.order() != ByteOrder.BIG_ENDIAN){
+            value = Integer.reverseBytes(value);
+        }
+        return value&0xFFFFFFFFL;
+    }
+
+    public static void encodeInt64(ByteBuffer buffer,int loc,long num){
+        if(buffer.order() != ByteOrder.BIG_ENDIAN){
+            num = Long.reverseBytes(num);
+        }
+        buffer.putLong(loc,num);
+    }
+
+    public static long decodeInt64(ByteBuffer buffer,int loc){
+        long value = buffer.getLong(loc);
+        if(buffer.order() != ByteOrder.BIG_ENDIAN){
+            value = Long.reverseBytes(value);
+        }
+        return value;
+    }
+
+    /**
+     * 整个24字节的包头按三个64位整数一起写入，字段的布局见DataSegment
+     * conversationID|command|fragmentID|receiveWindowSize , timeStamp|sn , unAckID|dataLength
+     * ByteBuffer的getLong、putLong会被编译成一次内存访问，比逐个字段写快
+     * */
+    public static void encodeHeader(ByteBuffer buffer,int loc,long conversationID,byte command,byte fragmentID,
+                                    long receiveWindowSize,long timeStamp,long sn,long unAckID,long dataLength){
+        encodeInt64(buffer,loc,packHeaderWord0(conversationID,command,fragmentID,receiveWindowSize));
+        encodeInt64(buffer,loc+8,packUInt32Pair(timeStamp,sn));
+        encodeInt64(buffer,loc+16,packUInt32Pair(unAckID,dataLength));
+    }
+
+    /**
+     * 数组版本，java8中没有对数组的大端序long写入，这里只是把字段合并之后展开写，少了很多次调用
+     * */
+    public static void encodeHeader(byte[] buffer,int loc,long conversationID,byte command,byte fragmentID,
+                                    long receiveWindowSize,long timeStamp,long sn,long unAckID,long dataLength){
+        encodeInt64(buffer,loc,packHeaderWord0(conversationID,command,fragmentID,receiveWindowSize));
+        encodeInt64(buffer,loc+8,packUInt32Pair(timeStamp,sn));
+        encodeInt64(buffer,loc+16,packUInt32Pair(unAckID,dataLength));
+    }
+
+    static long packHeaderWord0(long conversationID,byte command,byte fragmentID,long receiveWindowSize){
+        return (conversationID<<32)|((command&0xFFL)<<24)|((fragmentID&0xFFL)<<16)|(receiveWindowSize&0xFFFFL);
+    }
+
+    static long packUInt32Pair(long high,long low){
+        return (high<<32)|(low&0xFFFFFFFFL);
+    }
+
+    /**
+     * 将src中从loc开始的len个字节复制到dst的dstLoc位置
+     * 堆上的buffer直接复制底层数组，直接内存会临时移动position和limit，复制完之后恢复
+     * 所以同一个buffer不能同时被多个线程使用
+     * */
+    public static void getBytes(ByteBuffer src,int loc,byte[] dst,int dstLoc,int len){
+        if(src.hasArray()){
+            System.arraycopy(src.array(),src.arrayOffset()+loc,dst,dstLoc,len);
+            return;
+        }
+        int position = src.position();
+        int limit = src.limit();
+        try{
+            src.limit(loc+len);
+            src.position(loc);
+            src.get(dst,dstLoc,len);
+        }finally {
+            src.limit(limit);
+            src.position(position);
+        }
+    }
+
+    /**
+     * 将src中从srcLoc开始的len个字节复制到dst的loc位置
+     * 和getBytes一样，直接内存会临时移动position和limit
+     * */
+    public static void putBytes(ByteBuffer dst,int loc,byte[] src,int srcLoc,int len){
+        if(dst.hasArray()){
+            System.arraycopy(src,srcLoc,dst.array(),dst.arrayOffset()+loc,len);
+            return;
+        }
+        int position = dst.position();
+        int limit = dst.limit();
+        try{
+            dst.limit(loc+len);
+            dst.position(loc);
+            dst.put(src,srcLoc,len);
+        }finally {
+            dst.limit(limit);
+            dst.position(position);
+        }
+    }
+
+    /**
+     * 将src中从srcLoc开始的len个字节复制到dst的dstLoc位置，两边都可以是直接内存
+     * 都不改变position和limit(直接内存会临时移动)
+     * */
+    public static void copyBytes(ByteBuffer src,int srcLoc,ByteBuffer dst,int dstLoc,int len){
+        if(src.hasArray()){
+            putBytes(dst,dstLoc,src.array(),src.arrayOffset()+srcLoc,len);
+            return;
+        }
+        if(dst.hasArray()){
+            getBytes(src,srcLoc,dst.array(),dst.arrayOffset()+dstLoc,len);
+            return;
+        }
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+        int dstPosition = dst.position();
+        int dstLimit = dst.limit();
+        try{
+            src.limit(srcLoc+len);
+            src.position(srcLoc);
+            dst.limit(dstLoc+len);
+            dst.position(dstLoc);
+            dst.put(src);
+        }finally {
+            src.limit(srcLimit);
+            src.position(srcPosition);
+            dst.limit(dstLimit);
+            dst.position(dstPosition);
+        }
     }
 
     /**
@@ -95,4 +263,21 @@ public class XncpTools {
     public static long abs(long num){
         return num>0?num:-num;
     }
+
+    /**
+     * RFC1982的序号运算，包头中的sn、una和时间戳都只有32位，会回绕
+     * 返回a-b，a和b只看低32位，结果在[-2^31,2^31)之间，只要两者实际相差不到2^31就是正确的差值
+     * */
+    public static long serialDiff(long a,long b){
+        return (int)(a-b);
+    }
+
+    /**
+     * 把包头中读出来的32位序号还原成离reference最近的64位序号
+     * 会话内部的序号是不会回绕的long，reference是本端已知的序号(比如receiveNextID、sendUnAckID)，
+     * 实际值和reference相差不到2^31时结果是准确的，回绕之后也一样
+     * */
+    public static long unwrapUint32(long value,long reference){
+        return reference+serialDiff(value,reference);
+    }
 }
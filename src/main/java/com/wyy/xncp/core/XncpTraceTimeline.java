@@ -0,0 +1,195 @@
+package com.wyy.xncp.core;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * XncpTraceTimeline
+ * 离线工具，把XncpTracer.dump出来的文本按会话还原成时间线，并给出每个会话的简单诊断
+ * 用法：java com.wyy.xncp.core.XncpTraceTimeline trace.txt [conversationID]，不给文件时从标准输入读
+ *
+ * 诊断只看事件统计：
+ * 超时重传多于快重传说明发送端是被rto卡住的(丢包只能靠超时恢复)
+ * 对端窗口为0的时间段说明是接收端读得太慢
+ * 拥塞窗口减小的次数说明拥塞控制是不是一直在退让
+ * */
+public class XncpTraceTimeline {
+
+    /**
+     * 一个会话的统计
+     * */
+    static final class Summary {
+        long firstTime = -1;
+        long lastTime = -1;
+        final long[] counts = new long[XncpTracer.EVENT_NAMES.length];
+        long congestionWindowDecreases;
+        long zeroWindowTime;//对端窗口为0的总时长
+        long zeroWindowSince = -1;
+        long lastCongestionWindow = -1;
+        long maxRto;
+
+        void add(XncpTracer.Event event) {
+            if (firstTime < 0) {
+                firstTime = event.time;
+            }
+            lastTime = event.time;
+            counts[event.type]++;
+            if (event.type == XncpTracer.EVENT_CONGESTION_WINDOW) {
+                if (lastCongestionWindow >= 0 && event.a < lastCongestionWindow) {
+                    congestionWindowDecreases++;
+                }
+                lastCongestionWindow = event.a;
+            } else if (event.type == XncpTracer.EVENT_REMOTE_WINDOW) {
+                if (event.a == 0 && zeroWindowSince < 0) {
+                    zeroWindowSince = event.time;
+                } else if (event.a != 0 && zeroWindowSince >= 0) {
+                    zeroWindowTime += event.time - zeroWindowSince;
+                    zeroWindowSince = -1;
+                }
+            } else if (event.type == XncpTracer.EVENT_RTT) {
+                maxRto = Math.max(maxRto, event.b);
+            }
+        }
+
+        long getZeroWindowTime() {
+            return zeroWindowTime + (zeroWindowSince >= 0 ? lastTime - zeroWindowSince : 0);
+        }
+
+        List<String> diagnose() {
+            List<String> res = new ArrayList<String>();
+            long timeouts = counts[XncpTracer.EVENT_RESEND_TIMEOUT];
+            long fastResends = counts[XncpTracer.EVENT_RESEND_FAST];
+            if (counts[XncpTracer.EVENT_DEAD_LINK] > 0) {
+                res.add("link declared dead (maxSendCount reached)");
+            }
+            if (timeouts > 0 && timeouts >= fastResends) {
+                res.add("rto-bound: " + timeouts + " timeout resends vs " + fastResends + " fast resends, max rto " + maxRto + "ms");
+            }
+            if (getZeroWindowTime() > 0 || counts[XncpTracer.EVENT_WINDOW_ASK] > 0) {
+                res.add("receiver-bound: remote window was 0 for " + getZeroWindowTime() + "ms, "
+                        + counts[XncpTracer.EVENT_WINDOW_ASK] + " window probes");
+            }
+            if (congestionWindowDecreases > 0) {
+                res.add("congestion window decreased " + congestionWindowDecreases + " times");
+            }
+            if (res.isEmpty()) {
+                res.add("no problem found");
+            }
+            return res;
+        }
+    }
+
+    /**
+     * 读入dump的文本，格式不对的行被忽略
+     * */
+    public static List<XncpTracer.Event> read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<XncpTracer.Event> events = new ArrayList<XncpTracer.Event>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            XncpTracer.Event event = XncpTracer.Event.parse(line);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * 按conversationID分组，组内保持序号顺序
+     * */
+    public static Map<Long, List<XncpTracer.Event>> groupBySession(List<XncpTracer.Event> events) {
+        Map<Long, List<XncpTracer.Event>> sessions = new TreeMap<Long, List<XncpTracer.Event>>();
+        for (XncpTracer.Event event : events) {
+            List<XncpTracer.Event> list = sessions.get(event.conversationID);
+            if (list == null) {
+                list = new ArrayList<XncpTracer.Event>();
+                sessions.put(event.conversationID, list);
+            }
+            list.add(event);
+        }
+        return sessions;
+    }
+
+    /**
+     * 一个事件在时间线上的描述
+     * */
+    static String describe(XncpTracer.Event event) {
+        switch (event.type) {
+            case XncpTracer.EVENT_SEND:
+                return "SEND sn=" + event.a + " len=" + event.b;
+            case XncpTracer.EVENT_RESEND_TIMEOUT:
+                return "RESEND sn=" + event.a + " reason=timeout sendCount=" + event.b;
+            case XncpTracer.EVENT_RESEND_FAST:
+                return "RESEND sn=" + event.a + " reason=fast sendCount=" + event.b;
+            case XncpTracer.EVENT_ACK:
+                return "ACK acked=" + event.a + " una=" + event.b;
+            case XncpTracer.EVENT_CONGESTION_WINDOW:
+                return "CWND cwnd=" + event.a + (event.b >= 0 ? " ssthresh=" + event.b : "");
+            case XncpTracer.EVENT_RTT:
+                return "RTT rtt=" + event.a + "ms rto=" + event.b + "ms";
+            case XncpTracer.EVENT_WINDOW_ASK:
+                return "WINDOW_ASK remoteWindow=" + event.a + " nextProbeIn=" + event.b + "ms";
+            case XncpTracer.EVENT_WINDOW_TELL:
+                return "WINDOW_TELL window=" + event.a;
+            case XncpTracer.EVENT_REMOTE_WINDOW:
+                return "REMOTE_WINDOW " + event.b + " -> " + event.a;
+            case XncpTracer.EVENT_DEAD_LINK:
+                return "DEAD_LINK sn=" + event.a + " sendCount=" + event.b;
+            default:
+                return event.getName();
+        }
+    }
+
+    /**
+     * 输出每个会话的时间线和诊断
+     * @param conversationID 只输出这个会话，小于0时输出全部
+     * */
+    public static void print(List<XncpTracer.Event> events, long conversationID, PrintStream out) {
+        for (Map.Entry<Long, List<XncpTracer.Event>> entry : groupBySession(events).entrySet()) {
+            if (conversationID >= 0 && entry.getKey() != conversationID) {
+                continue;
+            }
+            List<XncpTracer.Event> list = entry.getValue();
+            Summary summary = new Summary();
+            for (XncpTracer.Event event : list) {
+                summary.add(event);
+            }
+            out.println("session " + entry.getKey() + ": " + list.size() + " events, "
+                    + summary.firstTime + "ms - " + summary.lastTime + "ms");
+            for (XncpTracer.Event event : list) {
+                out.println(String.format("  %8dms %s", event.time, describe(event)));
+            }
+            StringBuilder counts = new StringBuilder("  counts:");
+            for (int i = 0; i < summary.counts.length; i++) {
+                if (summary.counts[i] > 0) {
+                    counts.append(' ').append(XncpTracer.getEventName(i)).append('=').append(summary.counts[i]);
+                }
+            }
+            out.println(counts);
+            for (String line : summary.diagnose()) {
+                out.println("  diagnosis: " + line);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        InputStream in = args.length > 0 ? new FileInputStream(args[0]) : System.in;
+        try {
+            long conversationID = args.length > 1 ? Long.parseLong(args[1]) : -1;
+            print(read(in), conversationID, System.out);
+        } finally {
+            if (in != System.in) {
+                in.close();
+            }
+        }
+    }
+}
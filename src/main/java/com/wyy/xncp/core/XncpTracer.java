@@ -0,0 +1,207 @@
+package com.wyy.xncp.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * XncpTracer
+ * 记录协议状态变化的飞行记录器，通过Xncp.setTracer挂到会话上，没有设置时会话中只多一次null判断
+ * 事件写进一个固定大小的环形缓冲区，写满之后覆盖最老的事件，所以可以一直开着，出问题之后再dump出来
+ *
+ * 多个线程上的会话可以共用一个tracer：写入时只有一次getAndIncrement取得序号，
+ * 之后直接写进序号对应槽位的几个基本类型数组，最后用lazySet发布序号，没有锁也没有对象分配
+ * 读取(snapshot)时按发布的序号检查每个槽位，读的过程中被新事件覆盖掉的槽位会被丢弃
+ *
+ * 每个事件是 (时间, conversationID, 类型, a, b)，时间是会话的currentTime，a和b的含义见各事件类型
+ * dump出来的文本可以用XncpTraceTimeline还原出每个会话的时间线
+ * */
+public class XncpTracer {
+
+    public static final int EVENT_SEND = 0;//第一次发送数据包 a=sn b=数据长度
+    public static final int EVENT_RESEND_TIMEOUT = 1;//超时重传 a=sn b=发送次数
+    public static final int EVENT_RESEND_FAST = 2;//快重传 a=sn b=发送次数
+    public static final int EVENT_ACK = 3;//一次input中有包被确认 a=被确认的包数 b=sendUnAckID
+    public static final int EVENT_CONGESTION_WINDOW = 4;//拥塞窗口或慢启动阈值变化 a=cwnd b=ssthresh(没有时为-1)
+    public static final int EVENT_RTT = 5;//rtt样本 a=rtt b=更新之后的rto
+    public static final int EVENT_WINDOW_ASK = 6;//对端窗口为0时发出窗口探测 a=对端窗口 b=下一次探测的间隔
+    public static final int EVENT_WINDOW_TELL = 7;//主动告诉对端本端的接收窗口 a=可用接收窗口
+    public static final int EVENT_REMOTE_WINDOW = 8;//对端窗口变为0或者从0恢复 a=新的窗口 b=原来的窗口
+    public static final int EVENT_DEAD_LINK = 9;//发送次数达到maxSendCount，连接被认为不通 a=sn b=发送次数
+
+    static final String[] EVENT_NAMES = {"SEND", "RESEND_TIMEOUT", "RESEND_FAST", "ACK", "CWND", "RTT",
+            "WINDOW_ASK", "WINDOW_TELL", "REMOTE_WINDOW", "DEAD_LINK"};
+
+    /**
+     * snapshot读出来的一个事件
+     * */
+    public static final class Event {
+        public final long sequence;
+        public final long time;
+        public final long conversationID;
+        public final int type;
+        public final long a;
+        public final long b;
+
+        public Event(long sequence, long time, long conversationID, int type, long a, long b) {
+            this.sequence = sequence;
+            this.time = time;
+            this.conversationID = conversationID;
+            this.type = type;
+            this.a = a;
+            this.b = b;
+        }
+
+        public String getName() {
+            return getEventName(type);
+        }
+
+        /**
+         * dump的一行：序号 时间 conversationID 事件名 a b
+         * */
+        @Override
+        public String toString() {
+            return sequence + " " + time + " " + conversationID + " " + getName() + " " + a + " " + b;
+        }
+
+        /**
+         * toString的逆过程
+         * @return 格式不对时返回null
+         * */
+        public static Event parse(String line) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 6) {
+                return null;
+            }
+            int type = getEventType(parts[3]);
+            if (type < 0) {
+                return null;
+            }
+            try {
+                return new Event(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        type, Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final int mask;
+    private final long[] times;
+    private final long[] conversationIDs;
+    private final int[] types;
+    private final long[] as;
+    private final long[] bs;
+    private final AtomicLongArray published;//每个槽位上已经写完的事件序号+1，0表示还没有事件
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity 最多保留的事件个数，向上取整到2的幂
+     * */
+    public XncpTracer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be in (0, 2^30]");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        times = new long[size];
+        conversationIDs = new long[size];
+        types = new int[size];
+        as = new long[size];
+        bs = new long[size];
+        published = new AtomicLongArray(size);
+    }
+
+    public static String getEventName(int type) {
+        return type >= 0 && type < EVENT_NAMES.length ? EVENT_NAMES[type] : "UNKNOWN";
+    }
+
+    /**
+     * @return 不认识的事件名返回-1
+     * */
+    public static int getEventType(String name) {
+        for (int i = 0; i < EVENT_NAMES.length; i++) {
+            if (EVENT_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 记录一个事件，可以在任意线程中调用
+     * */
+    public void record(long time, long conversationID, int type, long a, long b) {
+        long sequence = next.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        times[slot] = time;
+        conversationIDs[slot] = conversationID;
+        types[slot] = type;
+        as[slot] = a;
+        bs[slot] = b;
+        published.lazySet(slot, sequence + 1);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 一共记录过的事件个数，包括已经被覆盖的
+     * */
+    public long getRecordedCount() {
+        return next.get();
+    }
+
+    /**
+     * 读出环形缓冲区中现在还保留着的事件，按序号从小到大
+     * 可以和record并发调用，读的过程中被覆盖或者还没写完的事件不会出现在结果中
+     * */
+    public List<Event> snapshot() {
+        long end = next.get();
+        long begin = Math.max(0, end - getCapacity());
+        List<Event> events = new ArrayList<Event>((int) (end - begin));
+        for (long sequence = begin; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence + 1) {
+                continue;
+            }
+            Event event = new Event(sequence, times[slot], conversationIDs[slot], types[slot], as[slot], bs[slot]);
+            if (published.get(slot) != sequence + 1) {
+                continue;
+            }
+            events.add(event);
+        }
+        //读的过程中新写入的事件可能已经绕回来覆盖了前面读过的槽位，这些事件不可信
+        long limit = next.get() - getCapacity();
+        int from = 0;
+        while (from < events.size() && events.get(from).sequence < limit) {
+            from++;
+        }
+        return from == 0 ? events : new ArrayList<Event>(events.subList(from, events.size()));
+    }
+
+    /**
+     * 把snapshot的结果按行写出，每行一个事件，格式见Event.toString
+     * */
+    public void dump(Appendable out) throws IOException {
+        for (Event event : snapshot()) {
+            out.append(event.toString()).append('\n');
+        }
+    }
+
+    /**
+     * 清空，只用在没有并发写入的时候
+     * */
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            published.set(i, 0);
+        }
+        next.set(0);
+    }
+}
@@ -0,0 +1,14 @@
+package com.wyy.xncp.core;
+
+/**
+ * XncpUpdateErrorListener
+ * XncpTimerWheel推进时会话的update抛出异常的回调，比如使用者实现的output出错
+ * 设置之后异常不再抛给advance的调用者，同一个tick中的其他会话照常update
+ * */
+public interface XncpUpdateErrorListener {
+
+    /**
+     * 在advance中调用，可以在这里把会话从时间轮上remove；没有remove时会话会照常按check的结果重新挂上去
+     * */
+    void onUpdateError(Xncp session, Throwable cause);
+}
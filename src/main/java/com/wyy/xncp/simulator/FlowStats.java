@@ -0,0 +1,156 @@
+package com.wyy.xncp.simulator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * FlowStats
+ * 一个方向(某个SimulatedXncp发给它连接的对端)上的统计
+ * 消息延迟是从sendMessage到对端receive出这条消息的虚拟时间，包模式下消息按顺序到达，所以按先进先出对应
+ * */
+public class FlowStats {
+
+    long sentDatagrams;
+    long lostDatagrams;//链路随机丢掉的
+    long droppedDatagrams;//带宽受限时队列满了丢掉的
+    long duplicatedDatagrams;
+    long dataSegments;//发出的数据包个数，包括重传
+    long retransmittedSegments;
+    long messagesSent;
+    long messagesReceived;
+    long bytesSent;
+    long bytesReceived;
+    long firstSendTime = -1;
+    long lastReceiveTime = -1;
+
+    private final ArrayDeque<Long> sendTimes = new ArrayDeque<Long>();
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+    private boolean sorted;
+
+    void onMessageSent(long now, int length) {
+        if (firstSendTime < 0) {
+            firstSendTime = now;
+        }
+        messagesSent++;
+        bytesSent += length;
+        sendTimes.addLast(now);
+    }
+
+    void onMessageReceived(long now, int length, boolean trackLatency) {
+        messagesReceived++;
+        bytesReceived += length;
+        lastReceiveTime = now;
+        if (!trackLatency || sendTimes.isEmpty()) {
+            return;
+        }
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = now - sendTimes.pollFirst();
+        sorted = false;
+    }
+
+    void onBytesReceived(long now, int length) {
+        bytesReceived += length;
+        lastReceiveTime = now;
+    }
+
+    public long getSentDatagrams() {
+        return sentDatagrams;
+    }
+
+    public long getLostDatagrams() {
+        return lostDatagrams;
+    }
+
+    public long getDroppedDatagrams() {
+        return droppedDatagrams;
+    }
+
+    public long getDuplicatedDatagrams() {
+        return duplicatedDatagrams;
+    }
+
+    public long getDataSegments() {
+        return dataSegments;
+    }
+
+    public long getRetransmittedSegments() {
+        return retransmittedSegments;
+    }
+
+    /**
+     * 重传的数据包占全部发出的数据包的比例
+     * */
+    public double getRetransmissionRatio() {
+        return dataSegments == 0 ? 0 : (double) retransmittedSegments / dataSegments;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * 有效吞吐量，从第一条消息发送到最后一次收到数据之间，对端收到的字节数，单位 字节/秒(虚拟时间)
+     * */
+    public double getGoodput() {
+        if (firstSendTime < 0 || lastReceiveTime <= firstSendTime) {
+            return 0;
+        }
+        return bytesReceived * 1000.0 / (lastReceiveTime - firstSendTime);
+    }
+
+    /**
+     * 消息延迟的百分位数，单位ms
+     * @param percentile 0到100之间，比如50、99
+     * @return 没有样本时返回-1
+     * */
+    public long getLatencyPercentile(double percentile) {
+        if (latencyCount == 0) {
+            return -1;
+        }
+        if (!sorted) {
+            Arrays.sort(latencies, 0, latencyCount);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * latencyCount) - 1;
+        return latencies[Math.min(Math.max(index, 0), latencyCount - 1)];
+    }
+
+    public int getLatencySampleCount() {
+        return latencyCount;
+    }
+
+    /**
+     * 已经发送但是对端还没有收到的消息个数
+     * */
+    public long getMessagesInFlight() {
+        return messagesSent - messagesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return "goodput=" + (long) getGoodput() + "B/s"
+                + " p50=" + getLatencyPercentile(50) + "ms"
+                + " p99=" + getLatencyPercentile(99) + "ms"
+                + " retransmission=" + String.format("%.4f", getRetransmissionRatio())
+                + " messages=" + messagesReceived + "/" + messagesSent
+                + " datagrams=" + sentDatagrams
+                + " lost=" + lostDatagrams
+                + " dropped=" + droppedDatagrams
+                + " duplicated=" + duplicatedDatagrams;
+    }
+}
@@ -0,0 +1,82 @@
+package com.wyy.xncp.simulator;
+
+/**
+ * LinkConfig
+ * 模拟链路的参数，一个方向一份，默认是没有延迟、不丢包、带宽不限的理想链路
+ * 概率都在0到1之间，时间单位都是ms
+ * */
+public class LinkConfig {
+
+    private long latency;//固定的单向延迟
+    private long jitter;//在固定延迟上随机增加[0,jitter]，会造成一定的乱序
+    private double loss;//丢包率
+    private double duplicate;//重复发送一份的概率
+    private double reorder;//额外延迟reorderDelay的概率，用来制造明显的乱序
+    private long reorderDelay = 20;
+    private long bandwidth;//带宽，单位 字节/秒，为0时不限制
+    private int queueLimit = 64 * 1024;//带宽受限时链路上排队的最大字节数，超过时新到的包被丢掉
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public long getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    public double getDuplicate() {
+        return duplicate;
+    }
+
+    public void setDuplicate(double duplicate) {
+        this.duplicate = duplicate;
+    }
+
+    public double getReorder() {
+        return reorder;
+    }
+
+    public void setReorder(double reorder) {
+        this.reorder = reorder;
+    }
+
+    public long getReorderDelay() {
+        return reorderDelay;
+    }
+
+    public void setReorderDelay(long reorderDelay) {
+        this.reorderDelay = reorderDelay;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    public void setQueueLimit(int queueLimit) {
+        this.queueLimit = queueLimit;
+    }
+}
@@ -0,0 +1,62 @@
+package com.wyy.xncp.simulator;
+
+import java.util.Random;
+
+/**
+ * SimulatedLink
+ * 单向的模拟链路，按照LinkConfig决定每个数据报是否丢弃、什么时候到达
+ * 带宽受限时数据报按顺序占用链路，排队超过queueLimit的直接丢掉(尾部丢弃)，和路由器的队列类似
+ * */
+class SimulatedLink {
+
+    private final XncpSimulator simulator;
+    private final LinkConfig config;
+    private final SimulatedXncp target;
+    private final Random random;
+    private double busyUntil;//带宽受限时链路空闲下来的时间，单位ms，可以是小数
+
+    SimulatedLink(XncpSimulator simulator, LinkConfig config, SimulatedXncp target, long seed) {
+        this.simulator = simulator;
+        this.config = config;
+        this.target = target;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 发送一个数据报，now是发送时的虚拟时间
+     * */
+    void send(byte[] datagram, long now, FlowStats stats) {
+        stats.sentDatagrams++;
+        if (config.getLoss() > 0 && random.nextDouble() < config.getLoss()) {
+            stats.lostDatagrams++;
+            return;
+        }
+        double departure = now;
+        if (config.getBandwidth() > 0) {
+            double start = Math.max(now, busyUntil);
+            double queuedBytes = (start - now) * config.getBandwidth() / 1000.0;
+            if (queuedBytes + datagram.length > config.getQueueLimit()) {
+                stats.droppedDatagrams++;
+                return;
+            }
+            busyUntil = start + datagram.length * 1000.0 / config.getBandwidth();
+            departure = busyUntil;
+        }
+        schedule(datagram, departure);
+        if (config.getDuplicate() > 0 && random.nextDouble() < config.getDuplicate()) {
+            stats.duplicatedDatagrams++;
+            schedule(datagram, departure);
+        }
+    }
+
+    private void schedule(byte[] datagram, double departure) {
+        double arrival = departure + config.getLatency();
+        if (config.getJitter() > 0) {
+            arrival += random.nextDouble() * config.getJitter();
+        }
+        if (config.getReorder() > 0 && random.nextDouble() < config.getReorder()) {
+            arrival += config.getReorderDelay();
+        }
+        simulator.scheduleDelivery(target, datagram, (long) Math.ceil(arrival));
+    }
+}
@@ -0,0 +1,102 @@
+package com.wyy.xncp.simulator;
+
+import com.wyy.xncp.core.Xncp;
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+
+/**
+ * SimulatedXncp
+ * 挂在XncpSimulator上的Xncp，output的数据报交给模拟链路
+ * 用sendMessage发送的消息会被记录发送时间，用来统计消息延迟
+ * 收到的消息由模拟器读出来之后交给onMessage，需要检查收到的内容时可以重写它
+ * */
+public class SimulatedXncp extends Xncp {
+
+    private final XncpSimulator simulator;
+    private final FlowStats stats = new FlowStats();
+    private SimulatedLink link;
+    private SimulatedXncp remote;
+    private long highestSn = -1;//发出过的最大的sn，不大于它的数据包是重传
+
+    public SimulatedXncp(long conversationID, XncpSimulator simulator) {
+        super(conversationID);
+        this.simulator = simulator;
+        simulator.addPeer(this);
+    }
+
+    void connect(SimulatedLink link, SimulatedXncp remote) {
+        this.link = link;
+        this.remote = remote;
+    }
+
+    @Override
+    public void output(byte[] buffer, int st, int ed) {
+        countDataSegments(buffer, st, ed);
+        if (link == null) {
+            return;
+        }
+        byte[] datagram = new byte[ed - st];
+        System.arraycopy(buffer, st, datagram, 0, datagram.length);
+        link.send(datagram, simulator.currentTime(), stats);
+    }
+
+    /**
+     * 按包头统计数据包和重传，第一次发送的包sn是递增的，所以sn不大于已发出的最大sn的就是重传
+     * FEC的数据分片统计其中包装的数据报，校验分片不统计
+     * */
+    private void countDataSegments(byte[] buffer, int loc, int end) {
+        if (end - loc >= XncpConsts.DATASEGMENT_HEADER_SIZE + XncpConsts.FEC_OVERHEAD
+                && XncpTools.decodeByte(buffer, loc + 4) == XncpConsts.COMMAND_FEC) {
+            int counts = XncpTools.decodeUInt16(buffer, loc + 6);
+            if ((XncpTools.decodeByte(buffer, loc + 5) & 0xff) < (counts >> 8)) {
+                countDataSegments(buffer, loc + XncpConsts.FEC_OVERHEAD, end);
+            }
+            return;
+        }
+        while (loc + XncpConsts.DATASEGMENT_HEADER_SIZE <= end) {
+            byte command = XncpTools.decodeByte(buffer, loc + 4);
+            long sn = XncpTools.decodeUint32(buffer, loc + 12);
+            long length = XncpTools.decodeUint32(buffer, loc + 20);
+            if (command == XncpConsts.COMMAND_DATA) {
+                stats.dataSegments++;
+                if (highestSn >= 0) {
+                    sn = XncpTools.unwrapUint32(sn, highestSn);//包头中的sn会回绕
+                }
+                if (sn <= highestSn) {
+                    stats.retransmittedSegments++;
+                } else {
+                    highestSn = sn;
+                }
+            }
+            loc += XncpConsts.DATASEGMENT_HEADER_SIZE + (int) length;
+        }
+    }
+
+    /**
+     * 发送一条消息并记录发送时间，返回值同send
+     * */
+    public int sendMessage(byte[] message) {
+        int res = send(message);
+        if (res == 0) {
+            stats.onMessageSent(simulator.currentTime(), message.length);
+        }
+        return res;
+    }
+
+    /**
+     * 收到一条消息(流模式下是一段数据)时调用，buffer在返回之后会被复用
+     * */
+    protected void onMessage(byte[] buffer, int length) {
+    }
+
+    /**
+     * 本端发给对端这个方向上的统计
+     * */
+    public FlowStats getStats() {
+        return stats;
+    }
+
+    public SimulatedXncp getRemote() {
+        return remote;
+    }
+}
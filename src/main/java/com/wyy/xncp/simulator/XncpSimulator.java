@@ -0,0 +1,228 @@
+package com.wyy.xncp.simulator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * XncpSimulator
+ * 进程内的网络模拟器，用虚拟时钟驱动若干对SimulatedXncp
+ * 每隔updateInterval对所有的端调用一次update，两次update之间的数据报按到达时间交给input
+ * 链路的随机性只来自构造时给出的种子，同样的种子和同样的操作顺序每次的结果完全一样
+ *
+ * 用法：
+ * XncpSimulator simulator = new XncpSimulator(1);
+ * SimulatedXncp a = simulator.createPeer(1), b = simulator.createPeer(1);
+ * simulator.connect(a, b, linkConfig);
+ * a.sendMessage(...);
+ * simulator.runUntilIdle(60000);
+ * a.getStats() 就是a到b这个方向的统计
+ * */
+public class XncpSimulator {
+
+    public static final long DEFAULT_UPDATE_INTERVAL = 10;//ms
+
+    /**
+     * 一个等待到达的数据报，同一时间到达的按发送的顺序处理
+     * */
+    private static final class Delivery {
+        final SimulatedXncp target;
+        final byte[] datagram;
+        final long time;
+        final long seq;
+
+        Delivery(SimulatedXncp target, byte[] datagram, long time, long seq) {
+            this.target = target;
+            this.datagram = datagram;
+            this.time = time;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<Delivery> DELIVERY_ORDER = new Comparator<Delivery>() {
+        @Override
+        public int compare(Delivery a, Delivery b) {
+            if (a.time != b.time) {
+                return a.time < b.time ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    private final long seed;
+    private final List<SimulatedXncp> peers = new ArrayList<SimulatedXncp>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<Delivery>(64, DELIVERY_ORDER);
+    private long deliverySeq;
+    private long linkCount;
+    private long currentTime;
+    private long updateInterval = DEFAULT_UPDATE_INTERVAL;
+    private long cpuTimeNanos;
+    private byte[] receiveBuffer = new byte[4096];
+
+    public XncpSimulator(long seed) {
+        this.seed = seed;
+    }
+
+    public SimulatedXncp createPeer(long conversationID) {
+        return new SimulatedXncp(conversationID, this);
+    }
+
+    void addPeer(SimulatedXncp peer) {
+        peers.add(peer);
+    }
+
+    /**
+     * 用两条同样配置的单向链路连接a和b
+     * */
+    public void connect(SimulatedXncp a, SimulatedXncp b, LinkConfig config) {
+        connect(a, b, config, config);
+    }
+
+    /**
+     * 用两条单向链路连接a和b，两个方向可以使用不同的配置
+     * */
+    public void connect(SimulatedXncp a, SimulatedXncp b, LinkConfig aToB, LinkConfig bToA) {
+        //每条链路使用由总种子推导出来的独立的随机数，增加链路不会影响已有链路的随机序列
+        a.connect(new SimulatedLink(this, aToB, b, seed * 31 + linkCount++), b);
+        b.connect(new SimulatedLink(this, bToA, a, seed * 31 + linkCount++), a);
+    }
+
+    void scheduleDelivery(SimulatedXncp target, byte[] datagram, long time) {
+        deliveries.add(new Delivery(target, datagram, time, deliverySeq++));
+    }
+
+    /**
+     * 当前的虚拟时间，单位ms
+     * */
+    public long currentTime() {
+        return currentTime;
+    }
+
+    public long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    public void setUpdateInterval(long updateInterval) {
+        if (updateInterval > 0) {
+            this.updateInterval = updateInterval;
+        }
+    }
+
+    /**
+     * 推进duration毫秒的虚拟时间
+     * */
+    public void run(long duration) {
+        long cpuStart = threadCpuTime();
+        long end = currentTime + duration;
+        while (currentTime < end) {
+            step();
+        }
+        cpuTimeNanos += threadCpuTime() - cpuStart;
+    }
+
+    /**
+     * 一直运行到所有的消息都被对端收到、所有的包都被确认为止，最多运行maxDuration毫秒的虚拟时间
+     * @return 是否在maxDuration之内完成
+     * */
+    public boolean runUntilIdle(long maxDuration) {
+        long cpuStart = threadCpuTime();
+        long end = currentTime + maxDuration;
+        boolean idle = isIdle();
+        while (!idle && currentTime < end) {
+            step();
+            idle = isIdle();
+        }
+        cpuTimeNanos += threadCpuTime() - cpuStart;
+        return idle;
+    }
+
+    private boolean isIdle() {
+        for (SimulatedXncp peer : peers) {
+            if (peer.getPendingSendPacketCount() > 0 || peer.getStats().getBytesReceived() < peer.getStats().getBytesSent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 处理下一个update之前到达的数据报，然后推进到下一个update
+     * */
+    private void step() {
+        long nextUpdate = (currentTime / updateInterval + 1) * updateInterval;
+        while (!deliveries.isEmpty() && deliveries.peek().time < nextUpdate) {
+            Delivery delivery = deliveries.poll();
+            if (delivery.time > currentTime) {
+                currentTime = delivery.time;
+            }
+            SimulatedXncp target = delivery.target;
+            target.setCurrentTime(currentTime);
+            target.input(delivery.datagram);
+            drain(target);
+        }
+        currentTime = nextUpdate;
+        for (int i = 0; i < peers.size(); i++) {
+            peers.get(i).update(currentTime);
+        }
+    }
+
+    /**
+     * 把peer中所有可读的消息读出来，记到发送方向的统计上
+     * */
+    private void drain(SimulatedXncp peer) {
+        SimulatedXncp sender = peer.getRemote();
+        while (true) {
+            long size = peer.getReadableBytesSize();
+            if (size < 0) {
+                return;
+            }
+            if (size > receiveBuffer.length) {
+                receiveBuffer = new byte[(int) size];
+            }
+            int length = peer.receive(receiveBuffer);
+            if (length < 0) {
+                return;
+            }
+            if (sender != null) {
+                if (peer.isStreamMode()) {
+                    sender.getStats().onBytesReceived(currentTime, length);
+                } else {
+                    sender.getStats().onMessageReceived(currentTime, length, true);
+                }
+            }
+            peer.onMessage(receiveBuffer, length);
+        }
+    }
+
+    private static long threadCpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!bean.isCurrentThreadCpuTimeSupported()) {
+            return 0;
+        }
+        return bean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * run和runUntilIdle中用掉的CPU时间，包括模拟器本身的开销
+     * */
+    public long getCpuTimeNanos() {
+        return cpuTimeNanos;
+    }
+
+    /**
+     * 每收到1MB有效数据用掉的CPU时间，单位ns，所有方向一起计算
+     * */
+    public double getCpuNanosPerMegabyte() {
+        long bytes = 0;
+        for (SimulatedXncp peer : peers) {
+            bytes += peer.getStats().getBytesReceived();
+        }
+        if (bytes == 0) {
+            return 0;
+        }
+        return cpuTimeNanos * (1024.0 * 1024.0) / bytes;
+    }
+}
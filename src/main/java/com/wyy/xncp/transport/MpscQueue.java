@@ -0,0 +1,74 @@
+package com.wyy.xncp.transport;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * MpscQueue
+ * 无锁的多生产者单消费者队列(Vyukov的链表队列)
+ * 生产者只对tail做一次getAndSet，再把前一个节点的next指过来，没有CAS重试，也不会互相等锁
+ * 消费者只有一个，poll时只读head，不需要任何原子操作
+ *
+ * 生产者getAndSet之后、设置next之前，队列中会短暂地出现断开的链表，
+ * 这时poll返回null，消费者下一轮再取，所以isEmpty为false时poll也可能返回null
+ * */
+class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private Node<E> head;//只有消费者访问，head本身是已经取走的哨兵节点
+    private volatile Node<E> tail;
+
+    MpscQueue() {
+        Node<E> stub = new Node<E>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /**
+     * 可以在任意线程中调用
+     * */
+    @SuppressWarnings("unchecked")
+    void offer(E value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node<E> node = new Node<E>(value);
+        Node<E> prev = TAIL.getAndSet(this, node);
+        NEXT.lazySet(prev, node);
+    }
+
+    /**
+     * 只能在消费者线程中调用
+     * */
+    E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;//next成为新的哨兵，不再引用取走的元素
+        head = next;
+        return value;
+    }
+
+    /**
+     * 只能在消费者线程中调用
+     * */
+    boolean isEmpty() {
+        return head == tail;
+    }
+}
@@ -0,0 +1,224 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.Xncp;
+import com.wyy.xncp.core.XncpTimerWheel;
+import com.wyy.xncp.core.XncpUpdateErrorListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XncpEventLoop
+ * 一个线程 + 一个Selector
+ * 负责读取注册在上面的DatagramChannel，并通过时间轮只对有定时任务到期的会话调用update
+ * 会话收到数据或者被写入消息之后会重新计算定时，空闲的会话不会被驱动
+ * 注册在同一个事件循环上的会话全部在这个线程中处理，所以会话本身不需要加锁
+ * 其他线程需要操作会话时通过execute把任务交给这个线程
+ *
+ * 会话和端点的错误交给各自handler的onError，不属于任何端点的错误(execute提交的任务、selector本身出错)
+ * 交给事件循环线程的UncaughtExceptionHandler；selector出错之后事件循环退出，注册在上面的端点都会被关闭
+ * */
+public class XncpEventLoop implements Runnable {
+
+    public static final long DEFAULT_TICK_INTERVAL = 10;//ms
+    public static final int MAX_DATAGRAM_SIZE = 65536;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final long tickInterval;
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final XncpTimerWheel timerWheel;
+    private final List<Xncp> updatedSessions = new ArrayList<Xncp>();//每次tick被update的会话，复用
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private volatile boolean running = true;
+
+    public XncpEventLoop(String name, long tickInterval) throws IOException {
+        this.selector = Selector.open();
+        this.tickInterval = tickInterval > 0 ? tickInterval : DEFAULT_TICK_INTERVAL;
+        this.timerWheel = new XncpTimerWheel(this.tickInterval, currentTime());
+        this.timerWheel.setUpdateErrorListener(new XncpUpdateErrorListener() {
+            @Override
+            public void onUpdateError(Xncp session, Throwable cause) {
+                ((XncpSession) session).fail(cause);
+            }
+        });
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 本事件循环的时钟，单位ms，从事件循环创建时开始计时
+     * 传给Xncp.update的时间戳编码时只保留32位，从0开始可以保证很长时间内不会回绕
+     * */
+    public long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 把任务交给事件循环线程执行，可以在任意线程中调用
+     * */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 把channel注册到本事件循环的selector上，只能在事件循环线程中调用
+     * */
+    void register(DatagramChannel channel, XncpUdpEndpoint endpoint) throws ClosedChannelException {
+        channel.register(selector, SelectionKey.OP_READ, endpoint);
+    }
+
+    void addSession(XncpSession session) {
+        timerWheel.schedule(session, currentTime());
+    }
+
+    void removeSession(XncpSession session) {
+        timerWheel.remove(session);
+    }
+
+    /**
+     * 会话收到数据或者发送了消息之后调用，按照新的状态重新计算下一次update的时间
+     * */
+    void schedule(XncpSession session) {
+        timerWheel.schedule(session, currentTime());
+    }
+
+    /**
+     * 本事件循环上还没有关闭的会话个数，只能在事件循环线程中调用
+     * */
+    public int getSessionCount() {
+        return timerWheel.size();
+    }
+
+    /**
+     * 本事件循环上有定时任务等待处理的会话个数，只能在事件循环线程中调用
+     * */
+    public int getScheduledSessionCount() {
+        return timerWheel.getScheduledCount();
+    }
+
+    @Override
+    public void run() {
+        long nextTick = currentTime();
+        while (running) {
+            try {
+                runTasks();
+                long now = currentTime();
+                if (now >= nextTick) {
+                    nextTick = now + tickInterval;//先更新，tick中出错也不会一直重试
+                    tick(now);
+                }
+                long timeout = nextTick - currentTime();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timerWheel.getScheduledCount() == 0) {
+                    selector.select();//没有会话需要定时处理，等数据或者任务来了再醒
+                } else if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+                processSelectedKeys();
+            } catch (IOException e) {
+                //selector本身出错，事件循环无法继续
+                reportError(e);
+                running = false;
+            } catch (Throwable e) {
+                //会话和端点的错误已经交给了handler.onError，到这里的是handler自己在onError、onClose中抛出的异常
+                reportError(e);
+            }
+        }
+        closeSelector();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                reportError(e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid() || !key.isReadable()) {
+                continue;
+            }
+            XncpUdpEndpoint endpoint = (XncpUdpEndpoint) key.attachment();
+            try {
+                endpoint.onReadable(receiveBuffer);
+            } catch (IOException e) {
+                endpoint.fail(e);
+            }
+        }
+    }
+
+    /**
+     * 不属于任何端点的错误交给线程的UncaughtExceptionHandler
+     * */
+    private void reportError(Throwable e) {
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    /**
+     * 推进时间轮，只有到期的会话会被update，之后检查连接已经不通的会话并关闭
+     * */
+    private void tick(long now) {
+        updatedSessions.clear();
+        timerWheel.advance(now, updatedSessions);
+        for (int i = 0; i < updatedSessions.size(); i++) {
+            XncpSession session = (XncpSession) updatedSessions.get(i);
+            if (session.getXncpState() == -1) {
+                session.close();
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            ((XncpUdpEndpoint) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            reportError(e);
+        }
+    }
+
+    /**
+     * 停止事件循环，注册在上面的端点都会被关闭
+     * */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * 等待事件循环线程退出
+     * */
+    public void awaitTermination(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+}
@@ -0,0 +1,54 @@
+package com.wyy.xncp.transport;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * XncpEventLoopGroup
+ * 一组事件循环，新的服务端和客户端按照轮询的方式分配到其中一个事件循环上
+ * 一个端点(包括它的所有会话)只会在一个事件循环上运行
+ * */
+public class XncpEventLoopGroup {
+
+    private final XncpEventLoop[] eventLoops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public XncpEventLoopGroup(int threadCount) throws IOException {
+        this(threadCount, XncpEventLoop.DEFAULT_TICK_INTERVAL);
+    }
+
+    /**
+     * @param threadCount 事件循环(线程)的个数
+     * @param tickInterval 调用会话update的间隔，单位ms
+     * */
+    public XncpEventLoopGroup(int threadCount, long tickInterval) throws IOException {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        eventLoops = new XncpEventLoop[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            eventLoops[i] = new XncpEventLoop("xncp-event-loop-" + i, tickInterval);
+        }
+    }
+
+    public XncpEventLoop next() {
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+        return eventLoops[index];
+    }
+
+    public int size() {
+        return eventLoops.length;
+    }
+
+    /**
+     * 停止所有事件循环并等待线程退出
+     * */
+    public void shutdown() throws InterruptedException {
+        for (XncpEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        for (XncpEventLoop eventLoop : eventLoops) {
+            eventLoop.awaitTermination(5000);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.Xncp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * XncpSession
+ * 由XncpUdpServer和XncpUdpClient创建的会话，output直接写入所属端点的DatagramChannel
+ * 输出缓冲区使用直接内存，发送时不会再复制一次
+ * 开启了gather输出，sendWithoutCopy发送的数据在客户端(connect过的channel)上直接gather写进socket
+ *
+ * 除了write和close之外，其余的方法(包括Xncp中继承来的方法)只能在所属的事件循环线程中调用，
+ * 比如在XncpSessionHandler的回调里
+ * */
+public class XncpSession extends Xncp {
+
+    private final XncpUdpEndpoint endpoint;
+    private volatile SocketAddress remoteAddress;
+    private volatile boolean closed;
+    private Object attachment;
+
+    XncpSession(long conversationID, XncpUdpEndpoint endpoint, SocketAddress remoteAddress) {
+        super(conversationID);
+        this.endpoint = endpoint;
+        this.remoteAddress = remoteAddress;
+        setOutputDirectBuffer(true);
+        setGatherOutput(true);
+    }
+
+    @Override
+    public void output(ByteBuffer buffer) {
+        endpoint.sendDatagram(buffer, remoteAddress);
+    }
+
+    @Override
+    public void output(ByteBuffer[] buffers, int offset, int length) {
+        endpoint.sendDatagram(buffers, offset, length, remoteAddress);
+    }
+
+    @Override
+    public void output(byte[] buffer, int st, int ed) {
+        output(ByteBuffer.wrap(buffer, st, ed - st));
+    }
+
+    /**
+     * 发送一条消息，可以在任意线程中调用
+     * 不在事件循环线程中时会被转交给事件循环执行，所以这里无法返回send的结果，出错的消息会被丢弃
+     * */
+    public void write(final byte[] message) {
+        if (closed) {
+            return;
+        }
+        final XncpEventLoop eventLoop = endpoint.getEventLoop();
+        if (eventLoop.inEventLoop()) {
+            send(message);
+            eventLoop.schedule(this);
+            return;
+        }
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!closed) {
+                    try {
+                        send(message);
+                        eventLoop.schedule(XncpSession.this);
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 关闭会话，可以在任意线程中调用，之后不会再收到这个会话的消息
+     * */
+    public void close() {
+        final XncpEventLoop eventLoop = endpoint.getEventLoop();
+        if (eventLoop.inEventLoop()) {
+            endpoint.closeSession(this);
+            return;
+        }
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.closeSession(XncpSession.this);
+            }
+        });
+    }
+
+    /**
+     * 把接收队列中所有完整的消息交给handler
+     * */
+    void deliverMessages(XncpSessionHandler handler) {
+        while (!closed) {
+            long size = getReadableBytesSize();
+            if (size < 0) {
+                return;
+            }
+            byte[] message = new byte[(int) size];
+            if (receive(message) < 0) {
+                return;
+            }
+            handler.onMessage(this, message);
+        }
+    }
+
+    /**
+     * 会话出错，交给handler.onError之后关闭，只能在事件循环线程中调用
+     * */
+    void fail(Throwable cause) {
+        endpoint.failSession(this, cause);
+    }
+
+    void markClosed() {
+        this.closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(SocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    public XncpEventLoop getEventLoop() {
+        return endpoint.getEventLoop();
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+}
@@ -0,0 +1,32 @@
+package com.wyy.xncp.transport;
+
+/**
+ * XncpSessionHandler
+ * 会话的事件回调，所有方法都在会话所属的事件循环线程中调用，不能在里面做阻塞操作
+ * */
+public interface XncpSessionHandler {
+
+    /**
+     * 新的会话建立时调用
+     * 服务端是收到一个新的conversationID的第一个包时，客户端是connect时
+     * 这时会话还没有处理任何数据，可以在这里设置mtu、窗口等参数
+     * */
+    void onOpen(XncpSession session);
+
+    /**
+     * 会话收到一条完整的消息时调用
+     * */
+    void onMessage(XncpSession session, byte[] message);
+
+    /**
+     * 会话被关闭时调用，包括主动关闭和连接不通(xncpState为-1)两种情况
+     * 调用时会话中还没被确认、还没被读走的包已经被释放(Xncp.release)
+     * */
+    void onClose(XncpSession session);
+
+    /**
+     * 处理会话时抛出了异常，包括会话的update、output和handler自己的回调，调用之后这个会话会被关闭(onClose)
+     * session为null时是端点本身的错误，比如channel读取出错，调用之后整个端点会被关闭
+     * */
+    void onError(XncpSession session, Throwable cause);
+}
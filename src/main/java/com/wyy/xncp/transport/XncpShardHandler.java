@@ -0,0 +1,35 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.Xncp;
+
+/**
+ * XncpShardHandler
+ * XncpShardedEngine中一个工作线程的回调，所有方法都在这个工作线程中调用，不能在里面做阻塞操作
+ * 每个工作线程可以使用自己的handler，这时handler里的状态只会被一个线程访问，不需要加锁
+ * */
+public interface XncpShardHandler {
+
+    /**
+     * 一个没有见过的conversationID第一次收到数据或者第一次被发送消息时调用，用来创建会话
+     * 返回的Xncp的output也会在这个工作线程中调用，可以在这里设置mtu、窗口等参数
+     * @return null 拒绝这个会话，这次的数据或者消息会被丢弃
+     * */
+    Xncp createSession(XncpShardWorker worker, long conversationID);
+
+    /**
+     * 会话收到一条完整的消息时调用
+     * */
+    void onMessage(XncpShardWorker worker, Xncp session, byte[] message);
+
+    /**
+     * 会话被关闭时调用，包括主动关闭和连接不通(xncpState为-1)两种情况
+     * 调用时会话中还没被确认、还没被读走的包已经被释放(Xncp.release)
+     * */
+    void onClose(XncpShardWorker worker, Xncp session);
+
+    /**
+     * 处理会话时抛出了异常，包括会话的update、output和handler自己的回调，调用之后这个会话会被关闭(onClose)
+     * session为null时是不属于某个会话的错误，比如execute提交的任务或者createSession抛出的异常
+     * */
+    void onError(XncpShardWorker worker, Xncp session, Throwable cause);
+}
@@ -0,0 +1,305 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.Xncp;
+import com.wyy.xncp.core.XncpTimerWheel;
+import com.wyy.xncp.core.XncpUpdateErrorListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * XncpShardWorker
+ * XncpShardedEngine中的一个工作线程，拥有按照conversationID分到它上面的全部会话
+ * 会话只在这个线程中被input、send、receive和update，所以会话本身不需要加锁
+ *
+ * 其他线程的操作都变成命令放进一个无锁的MPSC队列，工作线程一次把队列取空
+ * 队列为空时工作线程park到下一个tick，生产者只在它park的时候才unpark，
+ * 整个过程中没有锁，生产者之间也不会互相等待
+ *
+ * 一个会话出错(抛出异常)时交给handler.onError并关闭这个会话，不影响同一个工作线程上的其他会话
+ * */
+public class XncpShardWorker implements Runnable {
+
+    static final int COMMAND_INPUT = 0;
+    static final int COMMAND_SEND = 1;
+    static final int COMMAND_CLOSE = 2;
+    static final int COMMAND_TASK = 3;
+
+    /**
+     * 交给工作线程的一个命令
+     * */
+    static final class Command {
+        final int type;
+        final long conversationID;
+        final byte[] data;
+        final Runnable task;
+
+        Command(int type, long conversationID, byte[] data, Runnable task) {
+            this.type = type;
+            this.conversationID = conversationID;
+            this.data = data;
+            this.task = task;
+        }
+    }
+
+    private final int index;
+    private final XncpShardedEngine engine;
+    private final XncpShardHandler handler;
+    private final long tickInterval;
+    private final Thread thread;
+    private final MpscQueue<Command> commands = new MpscQueue<Command>();
+    private final Map<Long, Xncp> sessions = new HashMap<Long, Xncp>();
+    private final XncpTimerWheel timerWheel;
+    private final List<Xncp> updatedSessions = new ArrayList<Xncp>();//每次tick被update的会话，复用
+    private volatile boolean parked;
+    private volatile boolean running = true;
+
+    XncpShardWorker(int index, XncpShardedEngine engine, XncpShardHandler handler, long tickInterval) {
+        this.index = index;
+        this.engine = engine;
+        this.handler = handler;
+        this.tickInterval = tickInterval;
+        this.timerWheel = new XncpTimerWheel(tickInterval, engine.currentTime());
+        this.timerWheel.setUpdateErrorListener(new XncpUpdateErrorListener() {
+            @Override
+            public void onUpdateError(Xncp session, Throwable cause) {
+                fail(session, cause);
+            }
+        });
+        this.thread = new Thread(this, "xncp-shard-worker-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 放进命令队列，可以在任意线程中调用
+     * */
+    void submit(Command command) {
+        commands.offer(command);
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public XncpShardedEngine getEngine() {
+        return engine;
+    }
+
+    public boolean inWorker() {
+        return Thread.currentThread() == thread;
+    }
+
+    public long currentTime() {
+        return engine.currentTime();
+    }
+
+    /**
+     * 本工作线程上的会话，只能在工作线程中调用
+     * @return null 会话不存在
+     * */
+    public Xncp getSession(long conversationID) {
+        return sessions.get(conversationID);
+    }
+
+    /**
+     * 本工作线程上的会话个数，只能在工作线程中调用
+     * */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * 在工作线程中直接发送一条消息，比如在onMessage里回复
+     * @return 同Xncp.send，会话被拒绝时返回-3
+     * */
+    public int send(long conversationID, byte[] message) {
+        Xncp session = getOrCreateSession(conversationID);
+        if (session == null) {
+            return -3;
+        }
+        int res = session.send(message);
+        timerWheel.schedule(session, currentTime());
+        return res;
+    }
+
+    /**
+     * 在工作线程中直接关闭一个会话
+     * */
+    public void close(long conversationID) {
+        Xncp session = sessions.remove(conversationID);
+        if (session == null) {
+            return;
+        }
+        timerWheel.remove(session);
+        session.release();//还没被确认、还没被读走的包还给对象池，使用共享的XncpPayloadArena时块也会还回去
+        handler.onClose(this, session);
+    }
+
+    /**
+     * 会话出错，交给handler之后关闭这个会话
+     * @param session 为null时只交给handler
+     * */
+    private void fail(Xncp session, Throwable cause) {
+        handler.onError(this, session, cause);
+        if (session != null && sessions.get(session.getConversationID()) == session) {
+            close(session.getConversationID());
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTick = currentTime();
+        while (running) {
+            try {
+                runCommands();
+                long now = currentTime();
+                if (now >= nextTick) {
+                    nextTick = now + tickInterval;//先更新，tick中出错也不会一直重试
+                    tick(now);
+                }
+                park(nextTick);
+            } catch (Throwable e) {
+                //会话的错误已经交给了handler.onError，到这里的是handler自己在onError、onClose中抛出的异常，
+                //交给线程的UncaughtExceptionHandler，工作线程不退出
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+        closeAllSessions();
+    }
+
+    /**
+     * 先把parked设为true再检查一次队列，生产者在这之后放进来的命令一定能看到parked并unpark
+     * unpark发生在park之前时park会直接返回，不会丢掉唤醒
+     * */
+    private void park(long nextTick) {
+        parked = true;
+        try {
+            if (!commands.isEmpty() || !running) {
+                return;
+            }
+            if (timerWheel.getScheduledCount() == 0) {
+                LockSupport.park(this);//没有会话需要定时处理，等命令来了再醒
+                return;
+            }
+            long timeout = nextTick - currentTime();
+            if (timeout > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+            }
+        } finally {
+            parked = false;
+        }
+    }
+
+    private void runCommands() {
+        Command command;
+        while ((command = commands.poll()) != null) {
+            try {
+                runCommand(command);
+            } catch (Throwable e) {
+                fail(command.type == COMMAND_TASK ? null : sessions.get(command.conversationID), e);
+            }
+        }
+    }
+
+    private void runCommand(Command command) {
+        switch (command.type) {
+            case COMMAND_INPUT:
+                input(command.conversationID, command.data);
+                break;
+            case COMMAND_SEND:
+                send(command.conversationID, command.data);
+                break;
+            case COMMAND_CLOSE:
+                close(command.conversationID);
+                break;
+            default:
+                command.task.run();
+                break;
+        }
+    }
+
+    private void input(long conversationID, byte[] datagram) {
+        Xncp session = getOrCreateSession(conversationID);
+        if (session == null) {
+            return;
+        }
+        session.setCurrentTime(currentTime());
+        session.input(datagram);
+        deliverMessages(session);
+        if (sessions.get(conversationID) == session) {//可能在onMessage中被关闭了
+            timerWheel.schedule(session, currentTime());
+        }
+    }
+
+    private Xncp getOrCreateSession(long conversationID) {
+        Xncp session = sessions.get(conversationID);
+        if (session != null) {
+            return session;
+        }
+        session = handler.createSession(this, conversationID);
+        if (session == null) {
+            return null;
+        }
+        sessions.put(conversationID, session);
+        timerWheel.schedule(session, currentTime());
+        return session;
+    }
+
+    /**
+     * 把接收队列中所有完整的消息交给handler
+     * */
+    private void deliverMessages(Xncp session) {
+        long conversationID = session.getConversationID();
+        while (sessions.get(conversationID) == session) {
+            long size = session.getReadableBytesSize();
+            if (size < 0) {
+                return;
+            }
+            byte[] message = new byte[(int) size];
+            if (session.receive(message) < 0) {
+                return;
+            }
+            handler.onMessage(this, session, message);
+        }
+    }
+
+    /**
+     * 推进时间轮，只有到期的会话会被update，之后检查连接已经不通的会话并关闭
+     * */
+    private void tick(long now) {
+        updatedSessions.clear();
+        timerWheel.advance(now, updatedSessions);
+        for (int i = 0; i < updatedSessions.size(); i++) {
+            Xncp session = updatedSessions.get(i);
+            if (session.getXncpState() == -1) {
+                close(session.getConversationID());
+            }
+        }
+    }
+
+    private void closeAllSessions() {
+        for (Long conversationID : new ArrayList<Long>(sessions.keySet())) {
+            close(conversationID);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    void awaitTermination(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+}
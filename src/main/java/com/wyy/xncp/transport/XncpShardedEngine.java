@@ -0,0 +1,147 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XncpShardedEngine
+ * 把会话按照conversationID固定分配到N个工作线程上，一个会话永远只在一个线程中处理
+ * 和XncpEventLoopGroup不同，这里不是一个端点的全部会话都在一个线程上，所以一个网关的会话可以用上所有的核
+ *
+ * 应用线程和网络线程通过input/send/close把数据交给会话所在的工作线程，
+ * 每个工作线程有自己的无锁MPSC命令队列，不同的会话之间、不同的生产者之间都没有锁
+ * 收到的消息在工作线程中交给这个线程的XncpShardHandler
+ *
+ * 引擎不关心数据报从哪里来、发到哪里去，会话的output由handler.createSession返回的Xncp自己实现，
+ * 比如写进一个共享的DatagramChannel
+ * */
+public class XncpShardedEngine {
+
+    private final XncpShardWorker[] workers;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean shutdown;
+
+    /**
+     * 所有工作线程共用一个handler，handler需要自己保证线程安全
+     * */
+    public XncpShardedEngine(int workerCount, XncpShardHandler handler) {
+        this(repeat(workerCount, handler), XncpEventLoop.DEFAULT_TICK_INTERVAL);
+    }
+
+    /**
+     * 每个工作线程一个handler，工作线程的个数等于handlers的长度
+     * @param tickInterval 调用会话update的间隔，单位ms
+     * */
+    public XncpShardedEngine(XncpShardHandler[] handlers, long tickInterval) {
+        if (handlers.length == 0) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        if (tickInterval <= 0) {
+            tickInterval = XncpEventLoop.DEFAULT_TICK_INTERVAL;
+        }
+        workers = new XncpShardWorker[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == null) {
+                throw new IllegalArgumentException("handler can not be null");
+            }
+            workers[i] = new XncpShardWorker(i, this, handlers[i], tickInterval);
+        }
+        for (XncpShardWorker worker : workers) {
+            worker.start();
+        }
+    }
+
+    private static XncpShardHandler[] repeat(int workerCount, XncpShardHandler handler) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        XncpShardHandler[] handlers = new XncpShardHandler[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            handlers[i] = handler;
+        }
+        return handlers;
+    }
+
+    /**
+     * 引擎的时钟，单位ms，从引擎创建时开始计时，所有工作线程共用
+     * */
+    public long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * conversationID对应的工作线程，同一个conversationID永远对应同一个工作线程
+     * */
+    public XncpShardWorker getWorker(long conversationID) {
+        return workers[(int) ((conversationID & 0xffffffffL) % workers.length)];
+    }
+
+    public XncpShardWorker getWorkerAt(int index) {
+        return workers[index];
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * 把收到的一个数据报交给对应的会话，可以在任意线程中调用
+     * conversationID从包头中读取，datagram交给工作线程之后调用者不能再修改它
+     * @return false 数据报太短或者引擎已经停止
+     * */
+    public boolean input(byte[] datagram) {
+        if (shutdown || datagram.length < XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            return false;
+        }
+        long conversationID = XncpTools.decodeUint32(datagram, 0);
+        getWorker(conversationID).submit(new XncpShardWorker.Command(
+                XncpShardWorker.COMMAND_INPUT, conversationID, datagram, null));
+        return true;
+    }
+
+    /**
+     * 发送一条消息，可以在任意线程中调用，会话不存在时会先通过handler.createSession创建
+     * 消息被转交给工作线程，这里无法返回send的结果，出错的消息会被丢弃
+     * message交给工作线程之后调用者不能再修改它
+     * @return false 引擎已经停止
+     * */
+    public boolean send(long conversationID, byte[] message) {
+        if (shutdown) {
+            return false;
+        }
+        getWorker(conversationID).submit(new XncpShardWorker.Command(
+                XncpShardWorker.COMMAND_SEND, conversationID, message, null));
+        return true;
+    }
+
+    /**
+     * 关闭一个会话，可以在任意线程中调用
+     * */
+    public void close(long conversationID) {
+        getWorker(conversationID).submit(new XncpShardWorker.Command(
+                XncpShardWorker.COMMAND_CLOSE, conversationID, null, null));
+    }
+
+    /**
+     * 在conversationID所在的工作线程中执行task，用来读取或者修改会话的参数
+     * */
+    public void execute(long conversationID, Runnable task) {
+        getWorker(conversationID).submit(new XncpShardWorker.Command(
+                XncpShardWorker.COMMAND_TASK, conversationID, null, task));
+    }
+
+    /**
+     * 停止所有工作线程并等待退出，剩下的会话都会被关闭
+     * */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        for (XncpShardWorker worker : workers) {
+            worker.shutdown();
+        }
+        for (XncpShardWorker worker : workers) {
+            worker.awaitTermination(5000);
+        }
+    }
+}
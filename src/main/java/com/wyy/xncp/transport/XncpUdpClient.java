@@ -0,0 +1,72 @@
+package com.wyy.xncp.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * XncpUdpClient
+ * 一个客户端对应一个connect到服务端的DatagramChannel和一个会话
+ * 因为channel是connect过的，发送时直接write，不需要每次都带上地址
+ * */
+public class XncpUdpClient extends XncpUdpEndpoint {
+
+    private XncpSession session;
+
+    public XncpUdpClient(XncpEventLoopGroup group, XncpSessionHandler handler) {
+        super(group, handler);
+    }
+
+    /**
+     * 连接到服务端并创建会话，可以在任意线程中调用
+     * UDP没有握手，这里只是绑定对端地址，服务端在收到第一个包时才会创建对应的会话
+     * */
+    public XncpSession connect(final SocketAddress remoteAddress, final long conversationID) throws IOException {
+        return callInEventLoop(new Callable<XncpSession>() {
+            @Override
+            public XncpSession call() throws IOException {
+                if (session != null) {
+                    throw new IOException("client already connected");
+                }
+                DatagramChannel datagramChannel = DatagramChannel.open();
+                try {
+                    datagramChannel.configureBlocking(false);
+                    datagramChannel.connect(remoteAddress);
+                    eventLoop.register(datagramChannel, XncpUdpClient.this);
+                } catch (IOException e) {
+                    datagramChannel.close();
+                    throw e;
+                }
+                channel = datagramChannel;
+                session = new XncpSession(conversationID, XncpUdpClient.this, remoteAddress);
+                openSession(session);
+                return session;
+            }
+        });
+    }
+
+    public XncpSession getSession() {
+        return session;
+    }
+
+    @Override
+    void handleDatagram(SocketAddress from, ByteBuffer datagram) {
+        if (session == null || session.isClosed()) {
+            return;
+        }
+        inputToSession(session, datagram);
+    }
+
+    @Override
+    void onSessionClosed(XncpSession closedSession) {
+    }
+
+    @Override
+    void closeAllSessions() {
+        if (session != null) {
+            closeSession(session);
+        }
+    }
+}
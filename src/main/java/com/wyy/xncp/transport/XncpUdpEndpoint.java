@@ -0,0 +1,223 @@
+package com.wyy.xncp.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * XncpUdpEndpoint
+ * XncpUdpServer和XncpUdpClient的公共部分
+ * 一个端点对应一个DatagramChannel，固定运行在一个事件循环上
+ * 会话出错(抛出异常)时交给handler.onError并关闭这个会话，channel出错时关闭整个端点
+ * */
+public abstract class XncpUdpEndpoint {
+
+    protected final XncpEventLoop eventLoop;
+    protected final XncpSessionHandler handler;
+    protected DatagramChannel channel;
+    private volatile boolean closed;
+    private ByteBuffer gatherCopyBuffer;//没有connect的channel不能gather写，只在事件循环线程中使用
+
+    XncpUdpEndpoint(XncpEventLoopGroup group, XncpSessionHandler handler) {
+        this.eventLoop = group.next();
+        this.handler = handler;
+    }
+
+    public XncpEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * 在事件循环线程中执行task并等待结果，用来在其他线程中完成注册之类的操作
+     * */
+    protected <T> T callInEventLoop(Callable<T> task) throws IOException {
+        if (eventLoop.inEventLoop()) {
+            try {
+                return task.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        eventLoop.execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 发送一个数据报
+     * UDP本身就可能丢包，发送失败(包括系统缓冲区满)时直接丢掉，由Xncp的重传来恢复
+     * */
+    void sendDatagram(ByteBuffer buffer, SocketAddress target) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (channel.isConnected()) {
+                channel.write(buffer);
+            } else {
+                channel.send(buffer, target);
+            }
+        } catch (IOException e) {
+            //忽略，等待重传
+        }
+    }
+
+    /**
+     * 以gather的方式发送一个数据报
+     * connect过的channel直接gather写，否则先拼到一个直接内存的缓冲区中再发送
+     * */
+    void sendDatagram(ByteBuffer[] buffers, int offset, int length, SocketAddress target) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (channel.isConnected()) {
+                channel.write(buffers, offset, length);
+                return;
+            }
+            if (gatherCopyBuffer == null) {
+                gatherCopyBuffer = ByteBuffer.allocateDirect(XncpEventLoop.MAX_DATAGRAM_SIZE);
+            }
+            gatherCopyBuffer.clear();
+            for (int i = offset; i < offset + length; i++) {
+                gatherCopyBuffer.put(buffers[i]);
+            }
+            gatherCopyBuffer.flip();
+            channel.send(gatherCopyBuffer, target);
+        } catch (IOException e) {
+            //忽略，等待重传
+        }
+    }
+
+    /**
+     * channel可读时由事件循环调用，一直读到没有数据为止
+     * */
+    void onReadable(ByteBuffer receiveBuffer) throws IOException {
+        while (!closed) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            handleDatagram(from, receiveBuffer);
+        }
+    }
+
+    /**
+     * 处理一个收到的数据报，数据在datagram的position到limit之间
+     * */
+    abstract void handleDatagram(SocketAddress from, ByteBuffer datagram);
+
+    /**
+     * 会话被关闭之后调用，子类在这里删除对会话的引用
+     * */
+    abstract void onSessionClosed(XncpSession session);
+
+    /**
+     * 把数据报交给会话，并把新收到的完整消息交给handler
+     * */
+    void inputToSession(XncpSession session, ByteBuffer datagram) {
+        try {
+            session.setCurrentTime(eventLoop.currentTime());
+            session.input(datagram, datagram.position(), datagram.remaining());
+            session.deliverMessages(handler);
+            if (!session.isClosed()) {
+                eventLoop.schedule(session);
+            }
+        } catch (Throwable e) {
+            failSession(session, e);
+        }
+    }
+
+    void openSession(XncpSession session) {
+        eventLoop.addSession(session);
+        try {
+            handler.onOpen(session);
+        } catch (Throwable e) {
+            failSession(session, e);
+        }
+    }
+
+    /**
+     * 会话出错，交给handler之后关闭这个会话，只能在事件循环线程中调用
+     * */
+    void failSession(XncpSession session, Throwable cause) {
+        if (session.isClosed()) {
+            return;
+        }
+        handler.onError(session, cause);
+        closeSession(session);
+    }
+
+    /**
+     * 端点本身出错(channel读取出错)，交给handler之后关闭整个端点，只能在事件循环线程中调用
+     * */
+    void fail(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        handler.onError(null, cause);
+        close();
+    }
+
+    void closeSession(XncpSession session) {
+        if (session.isClosed()) {
+            return;
+        }
+        session.markClosed();
+        eventLoop.removeSession(session);
+        session.release();//还没被确认、还没被读走的包还给对象池，使用共享的XncpPayloadArena时块也会还回去
+        onSessionClosed(session);
+        handler.onClose(session);
+    }
+
+    /**
+     * 关闭端点和它的所有会话，可以在任意线程中调用
+     * */
+    public void close() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closeAllSessions();
+        closed = true;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            handler.onError(null, e);
+        }
+    }
+
+    abstract void closeAllSessions();
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
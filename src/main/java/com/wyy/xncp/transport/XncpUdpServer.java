@@ -0,0 +1,93 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * XncpUdpServer
+ * 绑定一个UDP端口，按照包头中的conversationID把收到的数据报分发给对应的会话
+ * 收到一个没有见过的conversationID时创建新的会话并回调handler.onOpen
+ * 对端地址以最近一次收到的数据报为准，所以客户端换了地址(比如NAT重新映射)也能继续通信
+ * */
+public class XncpUdpServer extends XncpUdpEndpoint {
+
+    private final Map<Long, XncpSession> sessions = new HashMap<Long, XncpSession>();
+
+    public XncpUdpServer(XncpEventLoopGroup group, XncpSessionHandler handler) {
+        super(group, handler);
+    }
+
+    /**
+     * 绑定本地地址并开始接收数据，可以在任意线程中调用
+     * */
+    public void bind(final SocketAddress localAddress) throws IOException {
+        callInEventLoop(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                DatagramChannel datagramChannel = DatagramChannel.open();
+                try {
+                    datagramChannel.configureBlocking(false);
+                    datagramChannel.bind(localAddress);
+                    eventLoop.register(datagramChannel, XncpUdpServer.this);
+                } catch (IOException e) {
+                    datagramChannel.close();
+                    throw e;
+                }
+                channel = datagramChannel;
+                return null;
+            }
+        });
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    void handleDatagram(SocketAddress from, ByteBuffer datagram) {
+        if (datagram.remaining() < XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            return;
+        }
+        //conversationID是包头的前4个字节，一个数据报里的所有包都属于同一个会话
+        long conversationID = XncpTools.decodeUint32(datagram, datagram.position());
+        XncpSession session = sessions.get(conversationID);
+        if (session == null) {
+            session = new XncpSession(conversationID, this, from);
+            sessions.put(conversationID, session);
+            openSession(session);
+            if (session.isClosed()) {//在onOpen中被拒绝了
+                return;
+            }
+        }
+        session.setRemoteAddress(from);
+        inputToSession(session, datagram);
+    }
+
+    @Override
+    void onSessionClosed(XncpSession session) {
+        sessions.remove(session.getConversationID());
+    }
+
+    @Override
+    void closeAllSessions() {
+        for (XncpSession session : new ArrayList<XncpSession>(sessions.values())) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * 当前的会话个数，只能在事件循环线程中调用
+     * */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,47 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AckListTest {
+
+    @Test
+    public void testAddGrowAndClear(){
+        AckList ackList = new AckList(2);
+        assertTrue(ackList.isEmpty());
+        for(long sn = 0;sn<100;sn++){
+            ackList.add(sn,sn*10+1);
+        }
+        assertEquals(100,ackList.size());
+        assertEquals(128,ackList.capacity());
+        for(int i = 0;i<100;i++){
+            assertEquals(i,ackList.getSn(i));
+            assertEquals(i*10+1,ackList.getTimeStamp(i));
+        }
+        ackList.clear();
+        assertTrue(ackList.isEmpty());
+        assertEquals(128,ackList.capacity());//clear不释放数组
+        ackList.add(7,8);
+        assertEquals(7,ackList.getSn(0));
+        assertEquals(8,ackList.getTimeStamp(0));
+    }
+
+    @Test
+    public void testRemoveBelowKeepsOrder(){
+        AckList ackList = new AckList(8);
+        long[] sns = {5,1,9,3,7,2,8};
+        for(long sn:sns){
+            ackList.add(sn,sn+100);
+        }
+        ackList.removeBelow(5);
+        long[] expected = {5,9,7,8};
+        assertEquals(expected.length,ackList.size());
+        for(int i = 0;i<expected.length;i++){
+            assertEquals(expected[i],ackList.getSn(i));
+            assertEquals(expected[i]+100,ackList.getTimeStamp(i));
+        }
+        ackList.removeBelow(100);
+        assertTrue(ackList.isEmpty());
+    }
+}
@@ -0,0 +1,95 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CongestionControllerTest {
+
+    /**
+     * 只用来给拥塞控制算法提供mss、对端窗口等信息
+     * */
+    static class IdleXncp extends Xncp {
+        IdleXncp() {
+            super(1);
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+        }
+    }
+
+    @Test
+    public void testRenoSlowStartAndBackoff() {
+        Xncp xncp = new IdleXncp();
+        xncp.setFastResendCount(2);
+        RenoCongestionController reno = new RenoCongestionController();
+        assertEquals(1, reno.getCongestionWindow());
+        reno.onAck(xncp, 1, true, 0);
+        assertEquals(2, reno.getCongestionWindow());
+        reno.onAck(xncp, 1, false, 0);//una没有推进时不增长
+        assertEquals(2, reno.getCongestionWindow());
+        for (int i = 0; i < 10000; i++) {
+            reno.onAck(xncp, 1, true, 0);
+        }
+        assertEquals(xncp.getRemoteWindowSize(), reno.getCongestionWindow());
+        reno.onFastResend(xncp, 0);
+        assertEquals(XncpConsts.SSTHRESH_MIN + 2, reno.getCongestionWindow());
+        reno.onTimeout(xncp, 0);
+        assertEquals(1, reno.getCongestionWindow());
+        assertEquals(0, reno.getPacingRate());
+    }
+
+    @Test
+    public void testBbrDoesNotBackOffOnLoss() {
+        Xncp xncp = new IdleXncp();
+        BbrCongestionController bbr = new BbrCongestionController();
+        long now = 0;
+        //每10ms确认20个包，rtt固定为50ms
+        for (int i = 0; i < 200; i++) {
+            now += 10;
+            bbr.onRttSample(xncp, 50, now);
+            bbr.onAck(xncp, 20, true, now);
+        }
+        assertEquals(BbrCongestionController.STATE_PROBE_BW, bbr.getState());
+        assertEquals(50, bbr.getMinRtt());
+        assertTrue(bbr.getBottleneckBandwidth() >= 1500 && bbr.getBottleneckBandwidth() <= 2500);
+        assertTrue(bbr.getPacingRate() > 0);
+        long window = bbr.getCongestionWindow();
+        assertTrue(window >= 4);
+        bbr.onFastResend(xncp, now);
+        bbr.onTimeout(xncp, now);
+        assertEquals(window, bbr.getCongestionWindow());
+    }
+
+    @Test
+    public void testBbrProbesRttAfterWindowExpires() {
+        Xncp xncp = new IdleXncp();
+        BbrCongestionController bbr = new BbrCongestionController();
+        long now = 0;
+        bbr.onRttSample(xncp, 20, now);
+        for (int i = 0; i < 1002; i++) {
+            now += 10;
+            bbr.onRttSample(xncp, 40, now);//排队让rtt变大，minRtt只能等窗口过期
+            bbr.onAck(xncp, 10, true, now);
+        }
+        assertEquals(BbrCongestionController.STATE_PROBE_RTT, bbr.getState());
+        assertEquals(4, bbr.getCongestionWindow());
+        for (int i = 0; i < 30; i++) {
+            now += 10;
+            bbr.onRttSample(xncp, 30, now);
+            bbr.onAck(xncp, 4, true, now);
+        }
+        assertTrue(bbr.getState() != BbrCongestionController.STATE_PROBE_RTT);
+        assertEquals(30, bbr.getMinRtt());
+    }
+
+    @Test
+    public void testSessionUsesSelectedController() {
+        Xncp xncp = new IdleXncp();
+        assertTrue(xncp.getCongestionController() instanceof RenoCongestionController);
+        BbrCongestionController bbr = new BbrCongestionController();
+        xncp.setCongestionController(bbr);
+        assertSame(bbr, xncp.getCongestionController());
+    }
+}
@@ -0,0 +1,117 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DataSegmentPoolTest {
+
+    @Test
+    public void testReleaseReturnsToPool(){
+        DataSegmentPool pool = new DataSegmentPool(16,4);
+        DataSegment dataSegment = pool.acquire();
+        assertEquals(4,pool.getTotalCount());
+        assertEquals(3,pool.getFreeCount());
+
+        dataSegment.setSn(9);
+        dataSegment.release();
+        assertEquals(4,pool.getFreeCount());
+        assertEquals(0,dataSegment.getSn());//归还时头部被清空
+
+        dataSegment.release();//重复释放会被忽略
+        assertEquals(4,pool.getFreeCount());
+
+        assertSame(dataSegment,pool.acquire());
+        assertEquals(4,pool.getTotalCount());
+    }
+
+    @Test
+    public void testSegmentsShareSlab(){
+        DataSegmentPool pool = new DataSegmentPool(8,2);
+        byte[] src = {1,2,3,4,5,6,7,8,9,10};
+        DataSegment a = pool.acquire(src,0,8);
+        DataSegment b = pool.acquire(src,2,3);
+        assertSame(a.getData(),b.getData());
+        assertEquals(8,a.getDataLength());
+        assertEquals(3,b.getDataLength());
+
+        byte[] dst = new byte[8];
+        assertEquals(3,b.copyDataTo(dst,1));
+        assertArrayEquals(new byte[]{0,3,4,5,0,0,0,0},dst);
+        assertEquals(8,a.copyDataTo(dst,0));
+        assertArrayEquals(new byte[]{1,2,3,4,5,6,7,8},dst);
+    }
+
+    @Test
+    public void testOversizedDataIsNotPooled(){
+        DataSegmentPool pool = new DataSegmentPool(4,2);
+        byte[] src = new byte[10];
+        DataSegment dataSegment = pool.acquire(src,0,10);
+        assertEquals(10,dataSegment.getDataLength());
+        assertEquals(0,pool.getTotalCount());
+        dataSegment.release();
+        assertEquals(0,pool.getFreeCount());
+    }
+
+    @Test
+    public void testGrowsBySlab(){
+        DataSegmentPool pool = new DataSegmentPool(4,2);
+        pool.acquire();
+        pool.acquire();
+        pool.acquire();
+        assertEquals(4,pool.getTotalCount());
+        assertEquals(1,pool.getFreeCount());
+    }
+
+    @Test
+    public void testArenaBlocksAreFreedOnRelease(){
+        XncpPayloadArena arena = new XncpPayloadArena(16 << 20);
+        DataSegmentPool pool = new DataSegmentPool(1000,arena);
+        byte[] src = new byte[1000];
+        for(int i = 0;i<src.length;i++){
+            src[i] = (byte)i;
+        }
+        DataSegment a = pool.acquire(src,0,1000);
+        DataSegment b = pool.acquire(ByteBuffer.wrap(src),10,100);
+        assertTrue(a.isOffHeap());
+        assertNull(a.getData());
+        assertEquals(1024+128,arena.getUsedBytes());//按数据长度取块
+        assertEquals(128,b.getDataCapacity());
+        b.appendData(src,0,28);
+        byte[] dst = new byte[128];
+        assertEquals(128,b.copyDataTo(dst,0));
+        assertEquals(10,dst[0]);
+        assertEquals(0,dst[100]);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1000);
+        assertEquals(1000,a.copyDataTo(direct,0));
+        assertEquals((byte)999,direct.get(999));
+
+        DataSegment view = pool.acquireView(ByteBuffer.wrap(src));
+        assertFalse(view.isOffHeap());//不复制的包不占用直接内存
+        assertEquals(1000,view.getDataLength());
+        assertEquals(2,arena.getUsedBlocks());
+
+        a.release();
+        b.release();
+        view.release();
+        a.release();//重复释放不会重复归还块
+        assertEquals(0,arena.getUsedBytes());
+        assertEquals(0,arena.getUsedBlocks());
+        assertEquals(3,pool.getFreeCount());
+        assertEquals(3,pool.getTotalCount());
+    }
+
+    @Test
+    public void testArenaFullFallsBackToHeap(){
+        XncpPayloadArena arena = new XncpPayloadArena(0);
+        DataSegmentPool pool = new DataSegmentPool(16,arena);
+        DataSegment dataSegment = pool.acquire(new byte[]{1,2,3},0,3);
+        assertFalse(dataSegment.isOffHeap());
+        assertEquals(3,dataSegment.getDataLength());
+        assertEquals(1,arena.getFallbacks());
+        dataSegment.release();
+        assertEquals(0,pool.getFreeCount());
+    }
+}
@@ -0,0 +1,72 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReedSolomonTest {
+
+    @Test
+    public void testFieldArithmetic() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals(1, ReedSolomon.multiply(a, ReedSolomon.inverse(a)));
+            assertEquals(0, ReedSolomon.multiply(a, 0));
+        }
+        assertEquals(ReedSolomon.multiply(3, 7), ReedSolomon.multiply(7, 3));
+    }
+
+    /**
+     * 对每一种丢包组合(丢掉的分片数不超过校验分片数)都能恢复出原来的数据
+     * */
+    @Test
+    public void testRecoverEveryErasurePattern() {
+        Random random = new Random(1);
+        int offset = 3;
+        int size = 17;
+        for (int dataCount = 1; dataCount <= 6; dataCount++) {
+            for (int parityCount = 1; parityCount <= 3; parityCount++) {
+                int total = dataCount + parityCount;
+                byte[][] original = new byte[total][offset + size];
+                for (int j = 0; j < dataCount; j++) {
+                    random.nextBytes(original[j]);
+                }
+                ReedSolomon.encode(original, dataCount, parityCount, offset, size);
+                for (int mask = 0; mask < (1 << total); mask++) {
+                    if (Integer.bitCount(mask) > parityCount) {
+                        continue;
+                    }
+                    byte[][] shards = new byte[total][];
+                    boolean[] present = new boolean[total];
+                    for (int i = 0; i < total; i++) {
+                        present[i] = (mask & (1 << i)) == 0;
+                        shards[i] = present[i] ? original[i].clone() : new byte[offset + size];
+                    }
+                    assertTrue(ReedSolomon.reconstruct(shards, present, dataCount, parityCount, offset, size));
+                    for (int j = 0; j < dataCount; j++) {
+                        for (int k = offset; k < offset + size; k++) {
+                            assertEquals("data=" + dataCount + " parity=" + parityCount + " mask=" + mask,
+                                    original[j][k], shards[j][k]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSingleParityIsXor() {
+        byte[][] shards = {{1, 2}, {4, 8}, {16, 32}, new byte[2]};
+        ReedSolomon.encode(shards, 3, 1, 0, 2);
+        assertEquals(1 ^ 4 ^ 16, shards[3][0]);
+        assertEquals(2 ^ 8 ^ 32, shards[3][1]);
+    }
+
+    @Test
+    public void testNotEnoughShards() {
+        byte[][] shards = new byte[4][4];
+        boolean[] present = {false, false, true, true};
+        assertFalse(ReedSolomon.reconstruct(shards, present, 3, 1, 0, 4));
+    }
+}
@@ -0,0 +1,63 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SegmentWindowTest {
+
+    private DataSegment segment(long sn){
+        DataSegment dataSegment = new DataSegment(0);
+        dataSegment.setSn(sn);
+        return dataSegment;
+    }
+
+    @Test
+    public void testCapacityIsPowerOfTwo(){
+        assertEquals(1,new SegmentWindow(0).capacity());
+        assertEquals(32,new SegmentWindow(32).capacity());
+        assertEquals(64,new SegmentWindow(33).capacity());
+        assertEquals(1024,new SegmentWindow(1000).capacity());
+    }
+
+    @Test
+    public void testPutGetRemove(){
+        SegmentWindow window = new SegmentWindow(8);
+        for(long sn = 100;sn<108;sn++){
+            assertTrue(window.put(segment(sn)));
+        }
+        assertEquals(8,window.size());
+        assertEquals(103,window.get(103).getSn());
+        assertNull(window.get(111));//同一个槽位但是sn不同
+
+        assertEquals(105,window.remove(105).getSn());
+        assertNull(window.remove(105));
+        assertFalse(window.contains(105));
+        assertEquals(7,window.size());
+    }
+
+    @Test
+    public void testDuplicateIsRejected(){
+        SegmentWindow window = new SegmentWindow(4);
+        DataSegment first = segment(7);
+        assertTrue(window.put(first));
+        assertFalse(window.put(segment(7)));
+        assertSame(first,window.get(7));
+        assertEquals(1,window.size());
+    }
+
+    @Test
+    public void testEnsureCapacityKeepsSegments(){
+        SegmentWindow window = new SegmentWindow(4);
+        window.put(segment(5));
+        window.put(segment(6));
+        window.put(segment(8));
+        window.ensureCapacity(16);
+        assertEquals(16,window.capacity());
+        assertEquals(3,window.size());
+        assertEquals(5,window.get(5).getSn());
+        assertEquals(6,window.get(6).getSn());
+        assertEquals(8,window.get(8).getSn());
+        assertTrue(window.put(segment(20)));
+    }
+}
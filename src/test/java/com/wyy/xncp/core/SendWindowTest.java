@@ -0,0 +1,94 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+
+    private byte[] bytes(int id,int size){
+        byte[] data = new byte[size];
+        for(int i = 0;i<size;i++){
+            data[i] = (byte)(id+i);
+        }
+        return data;
+    }
+
+    private DataSegment segment(DataSegmentPool pool,int id,int size){
+        DataSegment dataSegment = pool.acquire(bytes(id,size),0,size);
+        dataSegment.setFragmentID((byte)id);
+        return dataSegment;
+    }
+
+    private byte[] payload(SendWindow window,long sn){
+        int slot = window.slotOf(sn);
+        ByteBuffer buffer = ByteBuffer.allocate(window.getDataLength(slot));
+        assertEquals(buffer.capacity(),window.copyDataTo(slot,buffer,0));
+        return buffer.array();
+    }
+
+    @Test
+    public void testStateIsKeptPerSlot(){
+        DataSegmentPool pool = new DataSegmentPool(16);
+        SendWindow window = new SendWindow(4,16);
+        assertEquals(4,window.capacity());
+        assertTrue(window.put(100,segment(pool,1,10),200));
+        assertTrue(window.put(101,segment(pool,2,16),200));
+        assertFalse(window.put(105,segment(pool,3,3),200));//和100是同一个槽位
+        assertEquals(2,window.size());
+        assertEquals(-1,window.slotOf(104));
+
+        int slot = window.slotOf(101);
+        assertEquals(0,window.getSendCount(slot));
+        assertEquals(1,window.increaseSendCount(slot));
+        window.setResendTimeStamp(slot,1234);
+        assertEquals(1234,window.getResendTimeStamp(slot));
+        assertEquals(200,window.getRto(slot));
+        assertEquals(1,window.increaseJumpCount(101));
+        assertEquals(-1,window.increaseJumpCount(102));
+        assertEquals(2,window.getFragmentID(slot));
+        assertArrayEquals(bytes(2,16),payload(window,101));
+
+        int free = pool.getFreeCount();
+        assertTrue(window.remove(100));
+        assertFalse(window.remove(100));
+        assertEquals(free+1,pool.getFreeCount());//引用的DataSegment被还给池
+        assertFalse(window.contains(100));
+        assertEquals(1,window.size());
+    }
+
+    @Test
+    public void testSlabModeReleasesSegments(){
+        DataSegmentPool pool = new DataSegmentPool(16);
+        SendWindow window = new SendWindow(128,16);
+        assertTrue(window.setSlabMode(true));
+        pool.acquire().release();//先让池分配好slab
+        int free = pool.getFreeCount();
+        for(int sn = 0;sn<100;sn++){
+            assertTrue(window.put(sn,segment(pool,sn,1+sn%16),10));
+        }
+        assertEquals(free,pool.getFreeCount());//数据已经复制到slab中，DataSegment马上被还回去
+        assertFalse(window.setSlabMode(false));
+
+        DataSegment view = pool.acquire();
+        view.setPayloadView(ByteBuffer.wrap(bytes(7,12)));
+        assertTrue(window.put(100,view,10));
+        DataSegment large = new DataSegment(bytes(9,20));//比槽位大，只能引用
+        assertTrue(window.put(101,large,10));
+
+        window.ensureCapacity(1024);
+        for(int sn = 0;sn<100;sn++){
+            assertArrayEquals(bytes(sn,1+sn%16),payload(window,sn));
+        }
+        assertArrayEquals(bytes(7,12),payload(window,100));
+        assertNotNull(window.getPayloadView(window.slotOf(100)));
+        assertNull(window.getPayloadView(window.slotOf(0)));
+        assertArrayEquals(bytes(9,20),payload(window,101));
+        for(int sn = 0;sn<102;sn++){
+            assertTrue(window.remove(sn));
+        }
+        assertTrue(window.isEmpty());
+    }
+}
@@ -0,0 +1,124 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class XncpMetricsTest {
+
+    @Test
+    public void testCountersWithLossAndDuplicates() {
+        XncpTest.LoopbackXncp a = new XncpTest.LoopbackXncp(1);
+        XncpTest.LoopbackXncp b = new XncpTest.LoopbackXncp(1);
+        XncpMetrics senderMetrics = new XncpMetrics();
+        XncpMetrics receiverMetrics = new XncpMetrics();
+        a.setMetrics(senderMetrics);
+        b.setMetrics(receiverMetrics);
+        int total = 100;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(new byte[100]));
+        }
+
+        int receivedMessages = 0;
+        long bInputs = 0;
+        long bInputBytes = 0;
+        long aOutputBytes = 0;
+        long now = 0;
+        for (int tick = 0; tick < 1000 && receivedMessages < total; tick++) {
+            now += 10;
+            a.update(now);
+            List<byte[]> packets = a.takeOutputs();
+            for (int i = 0; i < packets.size(); i++) {
+                aOutputBytes += packets.get(i).length;
+                if (tick == 0 && i == 0) {
+                    continue;//第一个数据报丢掉，只能靠重传
+                }
+                assertEquals(0, b.input(packets.get(i)));
+                bInputs++;
+                bInputBytes += packets.get(i).length;
+                if (tick == 0 && i == 1) {
+                    assertEquals(0, b.input(packets.get(i)));//重复到达
+                    bInputs++;
+                    bInputBytes += packets.get(i).length;
+                }
+            }
+            b.update(now);
+            a.setCurrentTime(now + 5);//ack过5ms才回到发送端
+            for (byte[] packet : b.takeOutputs()) {
+                assertEquals(0, a.input(packet));
+            }
+            while (b.getReadableBytesSize() >= 0) {
+                b.receive(new byte[100]);
+                receivedMessages++;
+            }
+        }
+        assertEquals(total, receivedMessages);
+        for (byte[] packet : a.takeOutputs()) {
+            aOutputBytes += packet.length;
+        }
+
+        assertEquals(total, senderMetrics.getSegmentsSent());
+        assertTrue(senderMetrics.getTimeoutRetransmits() + senderMetrics.getFastRetransmits() > 0);
+        assertEquals(aOutputBytes, senderMetrics.getBytesOut());
+        assertEquals(bInputs, receiverMetrics.getDatagramsIn());
+        assertEquals(bInputBytes, receiverMetrics.getBytesIn());
+        assertTrue(receiverMetrics.getDuplicateSegments() > 0);
+        assertTrue(senderMetrics.getRttSampleCount() > 0);
+        assertTrue(senderMetrics.getAverageWindowOccupancy() > 0);
+        assertEquals(0, senderMetrics.getDeadLinks());
+
+        assertEquals(5, a.getSmoothedRtt());
+        assertTrue(a.getRto() >= a.getMinRto());
+        assertTrue(a.getCongestionWindow() > 0);
+        assertTrue(a.getSsthresh() > 0);
+        a.setCongestionController(new BbrCongestionController());
+        assertEquals(-1, a.getSsthresh());
+    }
+
+    @Test
+    public void testRttHistogramPercentiles() {
+        XncpMetrics metrics = new XncpMetrics();
+        assertEquals(-1, metrics.getRttP50());
+        assertEquals(0, XncpMetrics.getRttBucket(0));
+        assertEquals(1, XncpMetrics.getRttBucket(1));
+        assertEquals(2, XncpMetrics.getRttBucket(3));
+        assertEquals(7, XncpMetrics.getRttBucket(100));
+        assertEquals(XncpMetrics.RTT_BUCKET_COUNT - 1, XncpMetrics.getRttBucket(Long.MAX_VALUE));
+        for (int i = 0; i < 98; i++) {
+            metrics.onRttSample(20);
+        }
+        metrics.onRttSample(100);
+        metrics.onRttSample(5000);
+        assertEquals(100, metrics.getRttSampleCount());
+        assertEquals(32, metrics.getRttP50());
+        assertEquals(128, metrics.getRttP99());
+        assertEquals(8192, metrics.getRttPercentile(100));
+        metrics.reset();
+        assertEquals(0, metrics.getRttSampleCount());
+    }
+
+    @Test
+    public void testExportedAsMBean() throws Exception {
+        XncpMetrics metrics = new XncpMetrics();
+        metrics.onDatagramOut(100);
+        metrics.onFlush(3, 1, 2, 5, 10);
+        ObjectName name = metrics.register("test-session");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(100L, server.getAttribute(name, "BytesOut"));
+            assertEquals(3L, server.getAttribute(name, "SegmentsSent"));
+            assertEquals(1L, server.getAttribute(name, "TimeoutRetransmits"));
+            assertEquals(2L, server.getAttribute(name, "FastRetransmits"));
+            assertEquals(0.5, (Double) server.getAttribute(name, "AverageWindowOccupancy"), 1e-9);
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
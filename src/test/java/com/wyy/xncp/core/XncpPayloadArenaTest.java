@@ -0,0 +1,55 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class XncpPayloadArenaTest {
+
+    @Test
+    public void testSizeClasses(){
+        assertEquals(0,XncpPayloadArena.getSizeClass(0));
+        assertEquals(0,XncpPayloadArena.getSizeClass(64));
+        assertEquals(1,XncpPayloadArena.getSizeClass(65));
+        assertEquals(5,XncpPayloadArena.getSizeClass(1400));//2048
+        assertEquals(10,XncpPayloadArena.getSizeClass(XncpPayloadArena.MAX_BLOCK_SIZE));
+
+        XncpPayloadArena arena = new XncpPayloadArena(1 << 20,4096);
+        ByteBuffer block = arena.allocate(1400);
+        assertTrue(block.isDirect());
+        assertEquals(2048,block.capacity());
+        assertEquals(4096,arena.getReservedBytes());//一个chunk切成两块
+        assertEquals(2048,arena.getUsedBytes());
+        assertEquals(1,arena.getUsedBlocks());
+
+        arena.free(block);
+        assertEquals(0,arena.getUsedBytes());
+        assertEquals(0,arena.getUsedBlocks());
+        assertSame(block,arena.allocate(2000));//归还的块被重复使用
+
+        ByteBuffer large = arena.allocate(20000);//比chunk大，单独申请
+        assertEquals(32768,large.capacity());
+        assertEquals(4096+32768,arena.getReservedBytes());
+        assertNull(arena.allocate(XncpPayloadArena.MAX_BLOCK_SIZE+1));
+        assertEquals(1,arena.getFallbacks());
+    }
+
+    @Test
+    public void testMaxBytes(){
+        XncpPayloadArena arena = new XncpPayloadArena(3 * 128,1024);
+        ByteBuffer[] blocks = new ByteBuffer[3];
+        for(int i = 0;i<3;i++){
+            blocks[i] = arena.allocate(100);//剩下的额度不够一个chunk，只申请能放下的块
+            assertNotNull(blocks[i]);
+        }
+        assertEquals(3 * 128,arena.getReservedBytes());
+        assertNull(arena.allocate(100));
+        assertNull(arena.allocate(10));//别的级也没有额度了
+        assertEquals(2,arena.getFallbacks());
+        assertEquals(1.0,arena.getUtilization(),1e-9);
+        arena.free(blocks[1]);
+        assertSame(blocks[1],arena.allocate(128));
+    }
+}
@@ -0,0 +1,239 @@
+package com.wyy.xncp.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class XncpSocketTest {
+
+    /**
+     * output把数据报放进对端的收件箱，由驱动线程交给对端
+     * */
+    static class QueueSocket extends XncpSocket {
+        final ConcurrentLinkedQueue<byte[]> inbox = new ConcurrentLinkedQueue<byte[]>();
+        QueueSocket remote;
+        volatile int maxPending;
+
+        QueueSocket(long conversationID) {
+            super(conversationID);
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+            byte[] datagram = new byte[ed - st];
+            System.arraycopy(buffer, st, datagram, 0, datagram.length);
+            remote.inbox.add(datagram);
+        }
+
+        @Override
+        public void update(long currentTime) {
+            super.update(currentTime);
+            maxPending = Math.max(maxPending, getPendingSendPacketCount());
+        }
+
+        void drainInbox(long now) {
+            byte[] datagram;
+            while ((datagram = inbox.poll()) != null) {
+                setCurrentTime(now);
+                input(datagram);
+            }
+        }
+    }
+
+    /**
+     * 每隔2ms把收件箱中的数据报交给会话并update，模拟收包线程
+     * */
+    static class Driver extends Thread {
+        final QueueSocket[] sockets;
+        volatile boolean running = true;
+        volatile boolean paused;
+
+        Driver(QueueSocket... sockets) {
+            this.sockets = sockets;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            while (running) {
+                long now = System.currentTimeMillis() - start;
+                if (!paused) {
+                    for (QueueSocket socket : sockets) {
+                        socket.drainInbox(now);
+                        socket.update(now);
+                    }
+                }
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Driver driver;
+
+    @After
+    public void tearDown() throws Exception {
+        if (driver != null) {
+            driver.running = false;
+            driver.join();
+        }
+    }
+
+    private QueueSocket[] pair() {
+        QueueSocket a = new QueueSocket(1);
+        QueueSocket b = new QueueSocket(1);
+        a.remote = b;
+        b.remote = a;
+        a.setNoDelay(true);
+        b.setNoDelay(true);
+        a.setSendWindowSize(32);
+        b.setReceiveWindowSize(64);
+        return new QueueSocket[]{a, b};
+    }
+
+    private static byte data(int i) {
+        return (byte) (i * 31 + (i >> 8));
+    }
+
+    @Test
+    public void testStreamsTransferWithBackPressure() throws Exception {
+        QueueSocket[] sockets = pair();
+        final QueueSocket a = sockets[0];
+        QueueSocket b = sockets[1];
+        driver = new Driver(a, b);
+        driver.start();
+
+        final int total = 500000;
+        final AtomicReference<Throwable> writeError = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = a.getOutputStream();
+                    byte[] chunk = new byte[7000];
+                    for (int loc = 0; loc < total; ) {
+                        int size = Math.min(chunk.length, total - loc);
+                        for (int i = 0; i < size; i++) {
+                            chunk[i] = data(loc + i);
+                        }
+                        out.write(chunk, 0, size);
+                        loc += size;
+                    }
+                } catch (Throwable e) {
+                    writeError.set(e);
+                }
+            }
+        });
+        writer.start();
+
+        b.setSoTimeout(10000);
+        InputStream in = b.getInputStream();
+        byte[] buffer = new byte[3000];
+        int received = 0;
+        while (received < total) {
+            int n = in.read(buffer, 0, buffer.length);
+            assertTrue(n > 0);
+            for (int i = 0; i < n; i++) {
+                assertEquals(data(received + i), buffer[i]);
+            }
+            received += n;
+        }
+        writer.join(10000);
+        assertNull(writeError.get());
+        //写线程每次最多只放入窗口剩余的空间
+        assertTrue("pending " + a.maxPending, a.maxPending <= a.getSendWindowSize() + 1);
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testWriteBlocksUntilAcked() throws Exception {
+        QueueSocket[] sockets = pair();
+        final QueueSocket a = sockets[0];
+        QueueSocket b = sockets[1];
+        driver = new Driver(a, b);
+        driver.paused = true;
+        driver.start();
+
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> writeError = new AtomicReference<Throwable>();
+        final int size = (int) a.getMss() * 64;//窗口32个包，两倍的数据
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    a.getOutputStream().write(new byte[size]);
+                    written.set(size);
+                } catch (Throwable e) {
+                    writeError.set(e);
+                }
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());//没有ack之前窗口一直是满的
+        assertEquals(32, a.getPendingSendPacketCount());
+
+        driver.paused = false;
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertNull(writeError.get());
+        assertEquals(size, written.get());
+        byte[] buffer = new byte[size];
+        int received = 0;
+        b.setSoTimeout(5000);
+        while (received < size) {
+            received += b.getInputStream().read(buffer, received, size - received);
+        }
+    }
+
+    @Test
+    public void testReadTimeoutAndClose() throws Exception {
+        QueueSocket[] sockets = pair();
+        final QueueSocket b = sockets[1];
+        b.setSoTimeout(50);
+        try {
+            b.getInputStream().read(new byte[10]);
+            fail();
+        } catch (SocketTimeoutException e) {
+            //没有数据时超时
+        }
+
+        b.setSoTimeout(0);
+        final AtomicInteger result = new AtomicInteger(-2);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(b.getInputStream().read(new byte[10]));
+                } catch (IOException e) {
+                    result.set(-3);
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        assertTrue(reader.isAlive());
+        b.close();
+        reader.join(1000);
+        assertEquals(-1, result.get());
+        try {
+            b.getOutputStream().write(1);
+            fail();
+        } catch (IOException e) {
+            //关闭之后不能再写
+        }
+    }
+}
@@ -0,0 +1,913 @@
+package com.wyy.xncp.core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static com.wyy.xncp.core.XncpTestMessages.message;
+import static org.junit.Assert.*;
+
+public class XncpTest {
+
+    /**
+     * 把output的数据包暂存下来，由测试来决定什么时候交给对端
+     * */
+    static class LoopbackXncp extends Xncp {
+        List<byte[]> outputs = new ArrayList<byte[]>();
+
+        LoopbackXncp(long conversationID) {
+            super(conversationID);
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+            byte[] packet = new byte[ed - st];
+            System.arraycopy(buffer, st, packet, 0, packet.length);
+            outputs.add(packet);
+        }
+
+        List<byte[]> takeOutputs() {
+            List<byte[]> res = outputs;
+            outputs = new ArrayList<byte[]>();
+            return res;
+        }
+    }
+
+    private static List<byte[]> receiveAll(Xncp xncp) {
+        List<byte[]> res = new ArrayList<byte[]>();
+        while (true) {
+            long size = xncp.getReadableBytesSize();
+            if (size < 0) {
+                break;
+            }
+            byte[] buffer = new byte[(int) size];
+            assertEquals(size, xncp.receive(buffer));
+            res.add(buffer);
+        }
+        return res;
+    }
+
+    /**
+     * 双方按照tick推进，shuffle为true时每一轮的数据包都会被打乱顺序
+     * */
+    private static List<byte[]> transfer(LoopbackXncp sender, LoopbackXncp receiver, int total, boolean shuffle) {
+        Random random = new Random(1);
+        List<byte[]> received = new ArrayList<byte[]>();
+        long now = 0;
+        for (int tick = 0; tick < 1000 && received.size() < total; tick++) {
+            now += 10;
+            sender.update(now);
+            List<byte[]> packets = sender.takeOutputs();
+            if (shuffle) {
+                Collections.shuffle(packets, random);
+            }
+            for (byte[] packet : packets) {
+                assertEquals(0, receiver.input(packet));
+            }
+            receiver.update(now);
+            for (byte[] packet : receiver.takeOutputs()) {
+                assertEquals(0, sender.input(packet));
+            }
+            received.addAll(receiveAll(receiver));
+        }
+        return received;
+    }
+
+    @Test
+    public void testInOrderTransfer() {
+        LoopbackXncp a = new LoopbackXncp(1);
+        LoopbackXncp b = new LoopbackXncp(1);
+        int total = 200;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(message(i, 100)));
+        }
+        List<byte[]> received = transfer(a, b, total, false);
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(message(i, 100), received.get(i));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+    }
+
+    @Test
+    public void testOutOfOrderTransferWithLargeWindow() {
+        LoopbackXncp a = new LoopbackXncp(2);
+        LoopbackXncp b = new LoopbackXncp(2);
+        a.setMtu(200);
+        b.setMtu(200);
+        a.setSendWindowSize(1024);
+        b.setReceiveWindowSize(1024);
+        a.setReceiveWindowSize(1024);
+        int total = 3000;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(message(i, 1 + i % 150)));
+        }
+        List<byte[]> received = transfer(a, b, total, true);
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(message(i, 1 + i % 150), received.get(i));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+    }
+
+    @Test
+    public void testOutOfOrderTransferWithAckRanges() {
+        LoopbackXncp a = new LoopbackXncp(9);
+        LoopbackXncp b = new LoopbackXncp(9);
+        a.setMtu(200);
+        b.setMtu(200);
+        a.setSendWindowSize(1024);
+        b.setReceiveWindowSize(1024);
+        a.setReceiveWindowSize(1024);
+        b.setAckRangeMode(true);
+        int total = 3000;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(message(i, 1 + i % 150)));
+        }
+        List<byte[]> received = transfer(a, b, total, true);
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(message(i, 1 + i % 150), received.get(i));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+    }
+
+    /**
+     * 一批顺序到达的包，批量ack只需要一个区间
+     * */
+    private static int ackBytesForBurst(boolean ackRangeMode) {
+        LoopbackXncp a = new LoopbackXncp(10);
+        LoopbackXncp b = new LoopbackXncp(10);
+        a.setSendWindowSize(100);
+        b.setAckRangeMode(ackRangeMode);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, a.send(message(i, 10)));
+        }
+        a.update(10);
+        for (byte[] packet : a.takeOutputs()) {
+            assertEquals(0, b.input(packet));
+        }
+        b.update(10);
+        int ackBytes = 0;
+        for (byte[] packet : b.takeOutputs()) {
+            ackBytes += packet.length;
+            assertEquals(0, a.input(packet));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+        return ackBytes;
+    }
+
+    @Test
+    public void testAckRangesShrinkAckTraffic() {
+        int legacyBytes = ackBytesForBurst(false);
+        int rangeBytes = ackBytesForBurst(true);
+        assertEquals(100 * XncpConsts.DATASEGMENT_HEADER_SIZE, legacyBytes);
+        assertEquals(XncpConsts.DATASEGMENT_HEADER_SIZE + XncpConsts.ACK_RANGE_SIZE, rangeBytes);
+    }
+
+    /**
+     * 每个tick a发送一条消息，bidirectional为true时b也发送一条
+     * @return b发出的数据包个数
+     * */
+    private static int trickle(LoopbackXncp a, LoopbackXncp b, int messages, boolean bidirectional) {
+        int bPackets = 0;
+        int aReceived = 0;
+        int bReceived = 0;
+        long now = 0;
+        for (int tick = 0; tick < messages + 100; tick++) {
+            now += 10;
+            if (tick < messages) {
+                assertEquals(0, a.send(message(tick, 100)));
+                if (bidirectional) {
+                    assertEquals(0, b.send(message(tick, 100)));
+                }
+            }
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                assertEquals(0, b.input(packet));
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                bPackets++;
+                assertEquals(0, a.input(packet));
+            }
+            aReceived += receiveAll(a).size();
+            bReceived += receiveAll(b).size();
+        }
+        assertEquals(messages, bReceived);
+        assertEquals(bidirectional ? messages : 0, aReceived);
+        assertEquals(0, a.getPendingSendPacketCount());
+        assertEquals(0, b.getPendingSendPacketCount());
+        return bPackets;
+    }
+
+    @Test
+    public void testDelayedAckCoalescesAcks() {
+        int immediate = trickle(new LoopbackXncp(11), new LoopbackXncp(11), 200, false);
+        LoopbackXncp b = new LoopbackXncp(11);
+        b.setDelayedAck(40, 4);
+        int delayed = trickle(new LoopbackXncp(11), b, 200, false);
+        assertEquals(200, immediate);
+        assertTrue("delayed ack packets " + delayed, delayed <= 200 / 4 + 1);
+    }
+
+    @Test
+    public void testDelayedAckPiggybacksOnData() {
+        int immediate = trickle(new LoopbackXncp(12), new LoopbackXncp(12), 200, true);
+        LoopbackXncp a = new LoopbackXncp(12);
+        LoopbackXncp b = new LoopbackXncp(12);
+        a.setDelayedAck(100, 16);
+        b.setDelayedAck(100, 16);
+        int delayed = trickle(a, b, 200, true);
+        //立即ack时每个tick一个数据包加一个ack包，延迟ack时ack都被数据包的una带过去了
+        assertTrue("immediate ack packets " + immediate, immediate >= 2 * 200);
+        assertTrue("delayed ack packets " + delayed, delayed <= 200 + 10);
+    }
+
+    @Test
+    public void testCheckWaitsForDelayedAck() {
+        LoopbackXncp a = new LoopbackXncp(13);
+        LoopbackXncp b = new LoopbackXncp(13);
+        b.setDelayedAck(40, 4);
+        a.send(message(0, 10));
+        a.update(10);
+        b.update(10);
+        for (byte[] packet : a.takeOutputs()) {
+            assertEquals(0, b.input(packet));
+        }
+        assertEquals(50, b.check(10));
+        b.update(20);
+        assertTrue(b.takeOutputs().isEmpty());
+        b.update(50);
+        assertEquals(1, b.takeOutputs().size());
+        assertEquals(-1, b.check(50));
+    }
+
+    @Test
+    public void testSegmentsAreRecycled() {
+        LoopbackXncp a = new LoopbackXncp(6);
+        LoopbackXncp b = new LoopbackXncp(6);
+        int total = 2000;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < total / 20; i++) {
+                a.send(message(i, 300));
+            }
+            assertEquals(total / 20, transfer(a, b, total / 20, false).size());
+        }
+        //所有的包都已经被确认和读取，应该全部回到池中，而且池的大小只和窗口有关，和发送的总数无关
+        DataSegmentPool senderPool = a.getSegmentPool();
+        DataSegmentPool receiverPool = b.getSegmentPool();
+        assertEquals(senderPool.getTotalCount(), senderPool.getFreeCount());
+        assertEquals(receiverPool.getTotalCount(), receiverPool.getFreeCount());
+        assertTrue(senderPool.getTotalCount() <= 256);
+        assertTrue(receiverPool.getTotalCount() <= 256);
+    }
+
+    @Test
+    public void testIdleUpdateDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        LoopbackXncp a = new LoopbackXncp(7);
+        LoopbackXncp b = new LoopbackXncp(7);
+        for (int i = 0; i < 100; i++) {
+            a.send(message(i, 100));
+        }
+        assertEquals(100, transfer(a, b, 100, false).size());
+
+        long threadId = Thread.currentThread().getId();
+        long now = 100000;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            now += 10;
+            a.update(now);
+            b.update(now);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("idle update allocated " + allocated + " bytes", allocated < 1024);
+        assertTrue(a.takeOutputs().isEmpty());
+    }
+
+    @Test
+    public void testCheckReturnsNextDeadline() {
+        LoopbackXncp a = new LoopbackXncp(10);
+        LoopbackXncp b = new LoopbackXncp(10);
+        assertEquals(-1, a.check(0));//什么都没有
+
+        a.send(message(1, 100));
+        assertEquals(5, a.check(5));//有新的包要发
+
+        a.update(10);
+        List<byte[]> packets = a.takeOutputs();
+        assertEquals(1, packets.size());
+        long resendTime = a.check(10);
+        assertTrue(resendTime > 10);
+        assertEquals(resendTime, a.check(20));
+        a.update(20);
+        assertTrue(a.takeOutputs().isEmpty());//还没到重传的时间
+
+        b.update(15);
+        b.input(packets.get(0));
+        assertEquals(15, b.check(15));//有ack要发
+        b.update(15);
+        assertEquals(-1, b.check(15));
+
+        a.setCurrentTime(30);
+        for (byte[] packet : b.takeOutputs()) {
+            a.input(packet);
+        }
+        assertEquals(-1, a.check(30));//ack之后没有在途的包了
+    }
+
+    @Test
+    public void testResendWhenCheckDeadlineReached() {
+        LoopbackXncp a = new LoopbackXncp(11);
+        a.send(message(1, 100));
+        a.update(0);
+        a.takeOutputs();
+        long deadline = a.check(0);
+        a.update(deadline - 1);
+        assertTrue(a.takeOutputs().isEmpty());
+        a.update(deadline);
+        assertEquals(1, a.takeOutputs().size());//超时重传
+    }
+
+    @Test
+    public void testPacingSpreadsWindowOverTime() {
+        LoopbackXncp a = new LoopbackXncp(19);
+        a.setPacing(true);
+        for (int i = 0; i < 20; i++) {
+            a.send(message(i, 1000));//一个数据报只能放下一个包
+        }
+        a.update(0);
+        assertEquals(XncpConsts.PACING_MIN_BURST, a.takeOutputs().size());
+        long now = 0;
+        int sent = (int) XncpConsts.PACING_MIN_BURST;
+        while (sent < 20) {
+            long next = a.check(now);
+            assertTrue(next > now);//额度用完之后要等一段时间，而不是马上再来
+            now = next;
+            a.update(now);
+            sent += a.takeOutputs().size();
+        }
+        assertEquals(20, sent);
+        //没有rtt样本时速率是 PACING_GAIN*32/200ms，18个包要80ms以上
+        assertTrue(now >= 80);
+    }
+
+    @Test
+    public void testFecRecoversLostDatagram() {
+        LoopbackXncp a = new LoopbackXncp(20);
+        LoopbackXncp b = new LoopbackXncp(20);
+        assertEquals(0, a.setFec(4, 1, false));
+        assertEquals(0, b.setFec(4, 1, false));
+        assertEquals(XncpConsts.DEFAULT_MTU - XncpConsts.DATASEGMENT_HEADER_SIZE - XncpConsts.FEC_OVERHEAD, a.getMss());
+        for (int i = 0; i < 4; i++) {
+            a.send(message(i, 1000));
+        }
+        a.update(0);
+        List<byte[]> packets = a.takeOutputs();
+        assertEquals(5, packets.size());//4个数据分片 + 1个校验分片
+        for (byte[] packet : packets) {
+            assertEquals(XncpConsts.COMMAND_FEC, packet[4]);
+            assertTrue(packet.length <= XncpConsts.DEFAULT_MTU);
+        }
+        packets.remove(2);
+        for (byte[] packet : packets) {
+            assertEquals(0, b.input(packet));
+        }
+        List<byte[]> received = receiveAll(b);
+        assertEquals(4, received.size());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(message(i, 1000), received.get(i));
+        }
+        assertEquals(1, b.getFecRecoveredCount());
+
+        b.update(10);
+        for (byte[] packet : b.takeOutputs()) {
+            assertEquals(0, a.input(packet));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());//不需要重传
+    }
+
+    @Test
+    public void testAdaptiveFecDropsParityWithoutLoss() {
+        LoopbackXncp a = new LoopbackXncp(21);
+        LoopbackXncp b = new LoopbackXncp(21);
+        a.setFec(4, 2, true);
+        b.setFec(4, 2, true);
+        int parity = 0;
+        long now = 0;
+        for (int round = 0; round < 40; round++) {
+            a.send(message(round, 1000));
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                if ((packet[5] & 0xff) >= (packet[6] & 0xff)) {//分片编号不小于数据分片数的是校验分片
+                    parity++;
+                }
+                assertEquals(0, b.input(packet));
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                assertEquals(0, a.input(packet));
+            }
+            if (round == 0) {
+                assertTrue(parity > 0);//还没有反馈时按上限发送校验分片
+            }
+        }
+        assertEquals(40, receiveAll(b).size());
+        assertEquals(0, b.getFecLossPermille());
+        assertTrue(parity < 5);//收到没有丢包的反馈之后不再发送校验分片
+    }
+
+    @Test
+    public void testRetransmitAfterLostAckIsAcked() {
+        LoopbackXncp a = new LoopbackXncp(18);
+        LoopbackXncp b = new LoopbackXncp(18);
+        a.send(message(1, 100));
+        a.update(0);
+        for (byte[] packet : a.takeOutputs()) {
+            assertEquals(0, b.input(packet));
+        }
+        b.update(0);
+        assertEquals(1, b.takeOutputs().size());//这个ack丢了
+        assertEquals(1, receiveAll(b).size());
+
+        a.update(a.check(0));
+        List<byte[]> resent = a.takeOutputs();
+        assertEquals(1, resent.size());
+        assertEquals(0, b.input(resent.get(0)));
+        b.update(1000);
+        List<byte[]> acks = b.takeOutputs();
+        assertEquals(1, acks.size());//已经收到过的包也要重新ack
+        assertEquals(0, a.input(acks.get(0)));
+        assertEquals(0, a.getPendingSendPacketCount());
+        assertTrue(receiveAll(b).isEmpty());
+    }
+
+    @Test
+    public void testFragmentedMessage() {
+        LoopbackXncp a = new LoopbackXncp(3);
+        LoopbackXncp b = new LoopbackXncp(3);
+        byte[] data = message(7, 5000);
+        assertEquals(0, a.send(data));
+        List<byte[]> received = transfer(a, b, 1, false);
+        assertEquals(1, received.size());
+        assertArrayEquals(data, received.get(0));
+    }
+
+    @Test
+    public void testMessageWithMaxFragments() {
+        LoopbackXncp a = new LoopbackXncp(14);
+        LoopbackXncp b = new LoopbackXncp(14);
+        a.setSendWindowSize(256);
+        b.setReceiveWindowSize(256);
+        byte[] data = message(3, (int) a.getMss() * 255);
+        assertEquals(-2, a.send(message(3, (int) a.getMss() * 255 + 1)));
+        assertEquals(0, a.send(data));
+        List<byte[]> received = transfer(a, b, 1, false);
+        assertEquals(1, received.size());
+        assertArrayEquals(data, received.get(0));
+    }
+
+    @Test
+    public void testReadableNotificationOnlyForCompleteMessages() {
+        LoopbackXncp a = new LoopbackXncp(16);
+        LoopbackXncp b = new LoopbackXncp(16);
+        final int[] notified = new int[1];
+        b.setReceiveListener(new XncpReceiveListener() {
+            @Override
+            public void onReadable(Xncp xncp) {
+                notified[0]++;
+            }
+        });
+        CompletableFuture<Xncp> future = b.whenReadable();
+        assertFalse(future.isDone());
+        assertSame(future, b.whenReadable());
+
+        assertEquals(0, a.send(message(1, 5000)));//4片
+        assertEquals(0, a.send(message(2, 10)));
+        assertEquals(0, a.send(message(3, 20)));
+        a.update(10);
+        List<byte[]> packets = a.takeOutputs();
+        assertTrue(packets.size() > 1);
+        assertEquals(0, b.input(packets.get(0)));//只有第一片
+        assertEquals(0, b.getReadableMessageCount());
+        assertEquals(-1, b.getReadableBytesSize());
+        assertEquals(0, notified[0]);
+        assertFalse(future.isDone());
+
+        for (int i = 1; i < packets.size(); i++) {
+            assertEquals(0, b.input(packets.get(i)));
+        }
+        assertEquals(3, b.getReadableMessageCount());
+        assertTrue(notified[0] > 0);
+        assertTrue(future.isDone());
+        assertSame(b, future.getNow(null));
+        assertTrue(b.whenReadable().isDone());
+
+        assertEquals(5000, b.receive(new byte[5000]));
+        assertEquals(2, b.getReadableMessageCount());
+        List<byte[]> rest = receiveAll(b);
+        assertEquals(2, rest.size());
+        assertArrayEquals(message(3, 20), rest.get(1));
+        assertEquals(0, b.getReadableMessageCount());
+        assertFalse(b.whenReadable().isDone());
+    }
+
+    @Test
+    public void testStreamModeMergesWritesAndLiftsSizeLimit() {
+        LoopbackXncp a = new LoopbackXncp(15);
+        LoopbackXncp b = new LoopbackXncp(15);
+        a.setStreamMode(true);
+        b.setStreamMode(true);
+        a.setSendWindowSize(256);
+        b.setReceiveWindowSize(256);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, a.send(message(i, 10)));
+        }
+        //1000次小写入被合并成mss大小的包
+        assertEquals((10000 + a.getMss() - 1) / a.getMss(), a.getPendingSendPacketCount());
+
+        Random random = new Random(2);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            expected.write(message(i, 10), 0, 10);
+        }
+        byte[] big = message(99, 1024 * 1024);//远超过255片
+        assertEquals(0, a.send(big));
+        expected.write(big, 0, big.length);
+        for (int i = 0; i < 500; i++) {
+            byte[] chunk = message(i, 1 + random.nextInt(3000));
+            assertEquals(0, a.send(chunk));
+            expected.write(chunk, 0, chunk.length);
+        }
+        byte[] expectedBytes = expected.toByteArray();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        long now = 0;
+        for (int tick = 0; tick < 5000 && received.size() < expectedBytes.length; tick++) {
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                assertEquals(0, b.input(packet));
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                assertEquals(0, a.input(packet));
+            }
+            while (b.getReadableBytesSize() > 0) {
+                long readable = b.getReadableBytesSize();
+                int n = b.receive(buffer);
+                assertTrue(n > 0 && n <= buffer.length);
+                assertEquals(Math.min(readable, buffer.length), n);
+                received.write(buffer, 0, n);
+            }
+        }
+        assertArrayEquals(expectedBytes, received.toByteArray());
+        assertEquals(-1, b.receive(buffer));
+    }
+
+    /**
+     * 使用直接内存输出，output(ByteBuffer)被重写，直接把数据包放进对端的直接内存中交给input
+     * */
+    static class DirectXncp extends Xncp {
+        DirectXncp peer;
+        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(8192);
+        int byteArrayOutputs;
+
+        DirectXncp(long conversationID) {
+            super(conversationID);
+            setOutputDirectBuffer(true);
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+            byteArrayOutputs++;
+        }
+
+        @Override
+        public void output(ByteBuffer buffer) {
+            assertTrue(buffer.isDirect());
+            int len = buffer.remaining();
+            peer.inputBuffer.clear();
+            peer.inputBuffer.position(100);//故意不从0开始
+            peer.inputBuffer.put(buffer);
+            assertEquals(0, peer.input(peer.inputBuffer, 100, len));
+        }
+    }
+
+    @Test
+    public void testDirectByteBufferTransfer() {
+        DirectXncp a = new DirectXncp(8);
+        DirectXncp b = new DirectXncp(8);
+        a.peer = b;
+        b.peer = a;
+        ByteBuffer source = ByteBuffer.allocateDirect(6000);
+        for (int i = 0; i < 6000; i++) {
+            source.put(i, (byte) i);
+        }
+        assertEquals(0, a.send(source, 500, 5000));
+        assertEquals(0, a.send(source, 0, 10));
+        ByteBuffer target = ByteBuffer.allocateDirect(6000);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 10;
+            a.update(now);
+            b.update(now);
+        }
+        target.position(7);
+        assertEquals(5000, b.receive(target));
+        assertEquals(5007, target.position());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals((byte) (500 + i), target.get(7 + i));
+        }
+        assertEquals(10, b.receive(target));
+        assertEquals(-1, b.receive(target));
+        assertEquals(0, a.getPendingSendPacketCount());
+        assertEquals(0, a.byteArrayOutputs);
+        assertEquals(0, b.byteArrayOutputs);
+    }
+
+    /**
+     * 重写gather输出，记录下引用了调用者数据的数据报
+     * */
+    static class GatherXncp extends LoopbackXncp {
+        int gatherOutputs;
+
+        GatherXncp(long conversationID) {
+            super(conversationID);
+            setGatherOutput(true);
+        }
+
+        @Override
+        public void output(ByteBuffer[] buffers, int offset, int length) {
+            gatherOutputs++;
+            int size = 0;
+            for (int i = offset; i < offset + length; i++) {
+                size += buffers[i].remaining();
+            }
+            assertTrue(size <= getMtu());
+            byte[] packet = new byte[size];
+            int loc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int n = buffers[i].remaining();
+                buffers[i].get(packet, loc, n);
+                loc += n;
+            }
+            outputs.add(packet);
+        }
+    }
+
+    @Test
+    public void testSendWithoutCopyUsesGatherOutput() {
+        GatherXncp a = new GatherXncp(16);
+        LoopbackXncp b = new LoopbackXncp(16);
+        a.setSendWindowSize(256);
+        b.setReceiveWindowSize(256);
+        byte[] small = message(1, 10);
+        byte[] large = message(2, 200000);
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        direct.put(large);
+        direct.clear();
+
+        assertEquals(0, a.send(small));
+        assertEquals(0, a.sendWithoutCopy(direct, 0, large.length));
+        assertEquals(0, a.sendWithoutCopy(large, 100, 5000));
+        assertEquals(0, direct.position());
+        //分片只引用数据，在flush之前修改会被发送出去
+        large[100] = 42;
+        direct.put(0, (byte) 43);
+
+        List<byte[]> received = transfer(a, b, 3, true);
+        assertEquals(3, received.size());
+        assertArrayEquals(small, received.get(0));
+        byte[] expected = message(2, 200000);
+        expected[0] = 43;
+        assertArrayEquals(expected, received.get(1));
+        expected = message(2, 200000);
+        expected[100] = 42;
+        assertArrayEquals(Arrays.copyOfRange(expected, 100, 5100), received.get(2));
+        assertTrue(a.gatherOutputs > 0);
+        assertEquals(0, a.getPendingSendPacketCount());
+    }
+
+    @Test
+    public void testSendWindowSlabWithLoss() {
+        GatherXncp a = new GatherXncp(18);
+        LoopbackXncp b = new LoopbackXncp(18);
+        a.setSendWindowSize(128);
+        b.setReceiveWindowSize(128);
+        assertEquals(0, a.setSendWindowSlab(true));
+        assertTrue(a.isSendWindowSlab());
+        byte[] view = message(3, 4000);
+        int total = 300;
+        for (int i = 0; i < total; i++) {
+            if (i % 50 == 0) {
+                assertEquals(0, a.sendWithoutCopy(view, 0, view.length));//slab模式下不复制的包仍然只是引用
+            } else {
+                assertEquals(0, a.send(message(i, 1 + i % 3000)));
+            }
+        }
+        Random random = new Random(5);
+        List<byte[]> received = new ArrayList<byte[]>();
+        long now = 0;
+        for (int tick = 0; tick < 3000 && received.size() < total; tick++) {
+            now += 10;
+            a.update(now);
+            if (tick == 0) {
+                assertEquals(-1, a.setSendWindowSlab(false));//发送窗口中有包时不能切换
+            }
+            for (byte[] packet : a.takeOutputs()) {
+                if (random.nextInt(10) != 0) {
+                    assertEquals(0, b.input(packet));
+                }
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                assertEquals(0, a.input(packet));
+            }
+            received.addAll(receiveAll(b));
+        }
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(i % 50 == 0 ? view : message(i, 1 + i % 3000), received.get(i));
+        }
+        assertTrue(a.gatherOutputs > 0);
+        assertEquals(0, a.getPendingSendPacketCount());
+        assertEquals(0, a.setSendWindowSlab(false));
+    }
+
+    @Test
+    public void testPayloadArenaWithLoss() {
+        XncpPayloadArena arena = new XncpPayloadArena(16 << 20);
+        LoopbackXncp a = new LoopbackXncp(19);
+        LoopbackXncp b = new LoopbackXncp(19);
+        a.setPayloadArena(arena);
+        b.setPayloadArena(arena);//两个会话共用一个arena
+        a.setSendWindowSize(128);
+        b.setReceiveWindowSize(128);
+        assertEquals(0, a.setSendWindowSlab(true));//数据在arena中的包不会再复制到slab
+        int total = 200;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(message(i, 1 + i % 3000)));
+        }
+        assertTrue(arena.getUsedBytes() > 0);
+        Random random = new Random(9);
+        List<byte[]> received = new ArrayList<byte[]>();
+        long now = 0;
+        for (int tick = 0; tick < 3000 && received.size() < total; tick++) {
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                if (random.nextInt(10) != 0) {
+                    assertEquals(0, b.input(packet));
+                }
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                assertEquals(0, a.input(packet));
+            }
+            received.addAll(receiveAll(b));
+        }
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(message(i, 1 + i % 3000), received.get(i));
+        }
+        assertEquals(0, arena.getFallbacks());
+        assertEquals(0, arena.getUsedBytes());//确认和读走之后块都还回去了
+
+        a.send(message(1, 5000));
+        a.update(now + 10);
+        for (byte[] packet : a.takeOutputs()) {
+            b.input(packet);
+        }
+        assertTrue(arena.getUsedBlocks() > 0);
+        a.release();//还在窗口、队列中的包
+        b.release();
+        assertEquals(0, arena.getUsedBlocks());
+    }
+
+    @Test
+    public void testSendWithoutCopyWithDefaultOutput() {
+        LoopbackXncp a = new LoopbackXncp(17);
+        LoopbackXncp b = new LoopbackXncp(17);
+        b.setStreamMode(true);
+        a.setStreamMode(true);
+        a.setGatherOutput(true);
+        byte[] data = message(5, 3000);
+        assertEquals(0, a.sendWithoutCopy(data, 0, data.length));
+        List<byte[]> received = transfer(a, b, 3, false);
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] chunk : received) {
+            all.write(chunk, 0, chunk.length);
+        }
+        assertArrayEquals(data, all.toByteArray());
+    }
+
+    @Test
+    public void testInputWithOffset() {
+        LoopbackXncp a = new LoopbackXncp(9);
+        LoopbackXncp b = new LoopbackXncp(9);
+        a.send(message(3, 50));
+        a.update(10);
+        byte[] packet = a.takeOutputs().get(0);
+        byte[] shifted = new byte[packet.length + 20];
+        System.arraycopy(packet, 0, shifted, 5, packet.length);
+        assertEquals(0, b.input(shifted, 5, packet.length));
+        assertEquals(-1, b.input(shifted, 5, 10));
+        byte[] data = new byte[50];
+        assertEquals(50, b.receive(data));
+        assertArrayEquals(message(3, 50), data);
+    }
+
+    @Test
+    public void testWrongConversationIsRejected() {
+        LoopbackXncp a = new LoopbackXncp(4);
+        LoopbackXncp b = new LoopbackXncp(5);
+        a.send(message(1, 10));
+        a.update(10);
+        for (byte[] packet : a.takeOutputs()) {
+            assertEquals(-2, b.input(packet));
+        }
+    }
+
+    @Test
+    public void testSequenceNumberWraparound() {
+        long start = 0xFFFFFFFFL - 100;//传输过程中包头中的sn会越过2^32回到0
+        for (int mode = 0; mode < 2; mode++) {
+            LoopbackXncp a = new LoopbackXncp(11);
+            LoopbackXncp b = new LoopbackXncp(11);
+            a.setMtu(200);
+            b.setMtu(200);
+            a.setSendWindowSize(256);
+            b.setReceiveWindowSize(256);
+            b.setAckRangeMode(mode == 1);
+            assertEquals(0, a.setInitialSequenceNumbers(start, 7));
+            assertEquals(0, b.setInitialSequenceNumbers(7, start));
+            int total = 1000;
+            for (int i = 0; i < total; i++) {
+                assertEquals(0, a.send(message(i, 1 + i % 150)));
+            }
+            assertEquals(-1, a.setInitialSequenceNumbers(0, 0));
+            List<byte[]> received = transfer(a, b, total, mode == 1);
+            assertEquals(total, received.size());
+            for (int i = 0; i < total; i++) {
+                assertArrayEquals(message(i, 1 + i % 150), received.get(i));
+            }
+            assertEquals(0, a.getPendingSendPacketCount());
+        }
+    }
+
+    @Test
+    public void testSequenceNumberAndTimeStampWraparoundWithLoss() {
+        LoopbackXncp a = new LoopbackXncp(12);
+        LoopbackXncp b = new LoopbackXncp(12);
+        a.setInitialSequenceNumbers(0xFFFFFFF0L, 0);
+        b.setInitialSequenceNumbers(0, 0xFFFFFFF0L);
+        int total = 100;
+        for (int i = 0; i < total; i++) {
+            assertEquals(0, a.send(message(i, 100)));
+        }
+        Random random = new Random(3);
+        List<byte[]> received = new ArrayList<byte[]>();
+        long now = 0xFFFFFFFFL - 500;//包头中的时间戳也会回绕
+        for (int tick = 0; tick < 2000 && received.size() < total; tick++) {
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                if (random.nextInt(5) != 0) {//丢掉五分之一
+                    assertEquals(0, b.input(packet));
+                }
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                if (random.nextInt(5) != 0) {
+                    assertEquals(0, a.input(packet));
+                }
+            }
+            received.addAll(receiveAll(b));
+            assertTrue(a.getRto() < 10000);//rtt按照回绕之后的时间戳算，不会变成很大的值
+        }
+        assertEquals(total, received.size());
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(message(i, 100), received.get(i));
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+    }
+}
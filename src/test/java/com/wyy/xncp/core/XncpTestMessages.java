@@ -0,0 +1,33 @@
+package com.wyy.xncp.core;
+
+/**
+ * 测试共用的消息内容
+ * 前4个字节是大端的id(消息不足4个字节时没有)，后面的字节由id和位置决定，
+ * 不同id、不同长度的消息内容都不一样，接收端可以用messageId检查到达的顺序
+ * */
+public final class XncpTestMessages {
+
+    private XncpTestMessages() {
+    }
+
+    public static byte[] message(int id, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (id * 31 + i);
+        }
+        if (size >= 4) {
+            data[0] = (byte) (id >>> 24);
+            data[1] = (byte) (id >>> 16);
+            data[2] = (byte) (id >>> 8);
+            data[3] = (byte) id;
+        }
+        return data;
+    }
+
+    /**
+     * message写在前4个字节中的id
+     * */
+    public static int messageId(byte[] message) {
+        return ((message[0] & 0xff) << 24) | ((message[1] & 0xff) << 16) | ((message[2] & 0xff) << 8) | (message[3] & 0xff);
+    }
+}
@@ -0,0 +1,200 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class XncpTimerWheelTest {
+
+    /**
+     * check直接返回设定好的时间，记录每次update的时间
+     * */
+    static class FixedDeadlineXncp extends Xncp {
+        long deadline;
+        List<Long> updates = new ArrayList<Long>();
+
+        FixedDeadlineXncp(long deadline) {
+            super(1);
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+        }
+
+        @Override
+        public long check(long currentTime) {
+            return deadline;
+        }
+
+        @Override
+        public void update(long currentTime) {
+            updates.add(currentTime);
+            deadline = -1;//update之后变成空闲
+        }
+    }
+
+    @Test
+    public void testFiresAtDeadlineAcrossLevels() {
+        long[] deadlines = {1, 9, 10, 11, 630, 640, 650, 40950, 40960, 40970, 2621440, 3000000, 200000000};
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        List<FixedDeadlineXncp> sessions = new ArrayList<FixedDeadlineXncp>();
+        for (long deadline : deadlines) {
+            FixedDeadlineXncp session = new FixedDeadlineXncp(deadline);
+            wheel.schedule(session, 0);
+            sessions.add(session);
+        }
+        assertEquals(deadlines.length, wheel.getScheduledCount());
+
+        long now = 0;
+        while (now < 200000100) {
+            now += 10;
+            wheel.advance(now, null);
+        }
+        for (int i = 0; i < deadlines.length; i++) {
+            FixedDeadlineXncp session = sessions.get(i);
+            assertEquals("deadline " + deadlines[i], 1, session.updates.size());
+            long firedAt = session.updates.get(0);
+            assertTrue("deadline " + deadlines[i] + " fired at " + firedAt, firedAt >= deadlines[i]);
+            assertTrue("deadline " + deadlines[i] + " fired at " + firedAt, firedAt < deadlines[i] + 10);
+        }
+        assertEquals(0, wheel.getScheduledCount());
+        assertEquals(deadlines.length, wheel.size());
+    }
+
+    @Test
+    public void testLargeJumpFiresOnce() {
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        FixedDeadlineXncp session = new FixedDeadlineXncp(50000);
+        wheel.schedule(session, 0);
+        List<Xncp> updated = new ArrayList<Xncp>();
+        assertEquals(0, wheel.advance(40000, updated));
+        assertEquals(1, wheel.advance(100000, updated));
+        assertSame(session, updated.get(0));
+        assertEquals(Long.valueOf(100000), session.updates.get(0));
+    }
+
+    @Test
+    public void testIdleSessionIsNotUpdated() {
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        FixedDeadlineXncp idle = new FixedDeadlineXncp(-1);
+        wheel.schedule(idle, 0);
+        assertEquals(0, wheel.getScheduledCount());
+        assertEquals(1, wheel.size());
+        assertEquals(0, wheel.advance(10000, null));
+        assertTrue(idle.updates.isEmpty());
+    }
+
+    @Test
+    public void testRescheduleAndRemove() {
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        FixedDeadlineXncp a = new FixedDeadlineXncp(1000);
+        FixedDeadlineXncp b = new FixedDeadlineXncp(1000);
+        wheel.schedule(a, 0);
+        wheel.schedule(b, 0);
+        a.deadline = 50;
+        wheel.schedule(a, 0);//提前
+        wheel.remove(b);
+        assertEquals(1, wheel.getScheduledCount());
+        wheel.advance(60, null);
+        assertEquals(1, a.updates.size());
+        wheel.advance(2000, null);
+        assertEquals(1, a.updates.size());
+        assertTrue(b.updates.isEmpty());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineFiresNextTick() {
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 1000);
+        FixedDeadlineXncp session = new FixedDeadlineXncp(500);
+        wheel.schedule(session, 1000);
+        wheel.advance(1005, null);
+        assertTrue(session.updates.isEmpty());
+        wheel.advance(1010, null);
+        assertEquals(1, session.updates.size());
+    }
+
+    @Test
+    public void testRescheduleAndRemoveInsideUpdate() {
+        final XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        FixedDeadlineXncp x = new FixedDeadlineXncp(10);
+        final FixedDeadlineXncp w = new FixedDeadlineXncp(10);
+        final FixedDeadlineXncp z = new FixedDeadlineXncp(10);
+        FixedDeadlineXncp y = new FixedDeadlineXncp(10) {
+            @Override
+            public void update(long currentTime) {
+                super.update(currentTime);
+                z.deadline = 1000;
+                wheel.schedule(z, currentTime);//z和w都还在同一个tick的到期链表中
+                wheel.remove(w);
+            }
+        };
+        //槽中的链表是头插的，到期时的顺序是y z w x
+        wheel.schedule(x, 0);
+        wheel.schedule(w, 0);
+        wheel.schedule(z, 0);
+        wheel.schedule(y, 0);
+        assertEquals(4, wheel.getScheduledCount());
+
+        assertEquals(2, wheel.advance(10, null));
+        assertEquals(1, y.updates.size());
+        assertEquals(1, x.updates.size());
+        assertEquals(Long.valueOf(10), x.updates.get(0));
+        assertTrue(z.updates.isEmpty());
+        assertTrue(w.updates.isEmpty());
+        assertEquals(1, wheel.getScheduledCount());
+
+        long now = 10;
+        while (now < 2000) {
+            now += 10;
+            wheel.advance(now, null);
+        }
+        assertEquals(1, z.updates.size());
+        assertEquals(Long.valueOf(1000), z.updates.get(0));
+        assertEquals(1, x.updates.size());
+        assertTrue(w.updates.isEmpty());
+        assertEquals(0, wheel.getScheduledCount());
+        assertEquals(3, wheel.size());
+    }
+
+    @Test
+    public void testThrowingUpdateKeepsSlotMates() {
+        XncpTimerWheel wheel = new XncpTimerWheel(10, 0);
+        FixedDeadlineXncp x = new FixedDeadlineXncp(10);
+        FixedDeadlineXncp z = new FixedDeadlineXncp(10);
+        FixedDeadlineXncp y = new FixedDeadlineXncp(10) {
+            @Override
+            public void update(long currentTime) {
+                super.update(currentTime);
+                throw new IllegalStateException("output failed");
+            }
+        };
+        //到期时的顺序是y z x，y抛出异常时z和x还在到期链表中
+        wheel.schedule(x, 0);
+        wheel.schedule(z, 0);
+        wheel.schedule(y, 0);
+        try {
+            wheel.advance(10, null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("output failed", e.getMessage());
+        }
+        assertEquals(2, wheel.getScheduledCount());
+        assertTrue(x.updates.isEmpty());
+
+        assertEquals(2, wheel.advance(20, null));//放到了下一个tick
+        assertEquals(Long.valueOf(20), x.updates.get(0));
+        assertEquals(Long.valueOf(20), z.updates.get(0));
+        assertEquals(1, y.updates.size());
+        assertEquals(0, wheel.getScheduledCount());
+        assertEquals(3, wheel.size());
+
+        y.deadline = 50;
+        wheel.schedule(y, 20);//抛出异常的会话可以再次挂上去
+        assertEquals(1, wheel.getScheduledCount());
+    }
+}
@@ -2,6 +2,8 @@ package com.wyy.xncp.core;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -84,6 +86,47 @@ public class XncpToolsTest {
 
 
     }
+    @Test
+    public void testByteBufferMatchesArray(){
+        Random random = new Random();
+        ByteBuffer[] buffers = {ByteBuffer.allocate(100),ByteBuffer.allocateDirect(100),
+                ByteBuffer.allocateDirect(100).order(ByteOrder.LITTLE_ENDIAN)};
+        for(ByteBuffer buffer:buffers){
+            for(int i = 0 ;i<10 ;i++){
+                long num = random.nextLong()&0xFFFFFFFFL;
+                int num16 = random.nextInt()&0xFFFF;
+                int loc = random.nextInt(90);
+                byte[] expected = new byte[100];
+                XncpTools.encodeUInt32(expected,loc,num);
+                XncpTools.encodeUInt32(buffer,loc,num);
+                for(int j = 0 ;j<4;j++){
+                    assertEquals(expected[loc+j],buffer.get(loc+j));
+                }
+                assertEquals(num,XncpTools.decodeUint32(buffer,loc));
+
+                XncpTools.encodeUInt16(buffer,loc,num16);
+                assertEquals(num16,XncpTools.decodeUInt16(buffer,loc));
+                assertEquals(0,buffer.position());
+            }
+        }
+    }
+
+    @Test
+    public void testByteBufferCopy(){
+        byte[] src = {1,2,3,4,5,6};
+        ByteBuffer[] buffers = {ByteBuffer.allocate(16),ByteBuffer.allocateDirect(16)};
+        for(ByteBuffer buffer:buffers){
+            buffer.position(3);
+            buffer.limit(10);
+            XncpTools.putBytes(buffer,8,src,1,4);//可以写到limit之后
+            byte[] dst = new byte[6];
+            XncpTools.getBytes(buffer,8,dst,2,4);
+            assertArrayEquals(new byte[]{0,0,2,3,4,5},dst);
+            assertEquals(3,buffer.position());
+            assertEquals(10,buffer.limit());
+        }
+    }
+
     @Test
     public void testIsEmpty(){
         byte []buffer=null;
@@ -94,6 +137,69 @@ public class XncpToolsTest {
         assertEquals(false,XncpTools.isEmpty(buffer));
     }
 
+    @Test
+    public void testSerialArithmetic(){
+        assertEquals(1,XncpTools.serialDiff(0,0xFFFFFFFFL));
+        assertEquals(-1,XncpTools.serialDiff(0xFFFFFFFFL,0));
+        assertEquals(Integer.MIN_VALUE,XncpTools.serialDiff(1L<<31,0));
+        assertEquals(5,XncpTools.serialDiff(105,100));
+
+        long reference = 0xFFFFFFF0L;
+        assertEquals(0x100000005L,XncpTools.unwrapUint32(5,reference));//回绕之后的序号
+        assertEquals(0xFFFFFFE0L,XncpTools.unwrapUint32(0xFFFFFFE0L,reference));
+        assertEquals(100,XncpTools.unwrapUint32(100,90));
+        assertEquals(80,XncpTools.unwrapUint32(80,90));
+        reference = 0x300000010L;//已经回绕过几次的内部序号
+        assertEquals(0x2FFFFFFF0L,XncpTools.unwrapUint32(0xFFFFFFF0L,reference));
+        assertEquals(0x300000020L,XncpTools.unwrapUint32(0x20,reference));
+    }
 
+    @Test
+    public void testHeaderCodec(){
+        DataSegment segment = new DataSegment(0);
+        segment.setConversationID(0xFEDCBA98L);
+        segment.setCommand(XncpConsts.COMMAND_ACK_RANGE);
+        segment.setFragmentID((byte)200);
+        segment.setReceiveWindowSize(65535);
+        segment.setTimeStamp(0x80000001L);
+        segment.setSn(0xFFFFFFFFL);
+        segment.setUnAckID(0x12345678L);
+        segment.setDataLength(1400);
+        ByteBuffer littleEndian = ByteBuffer.allocate(40);
+        littleEndian.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] buffers = {ByteBuffer.allocate(40),ByteBuffer.allocateDirect(40),littleEndian};
+        byte[] array = new byte[40];
+        assertEquals(XncpConsts.DATASEGMENT_HEADER_SIZE,segment.encodeDataSegmentToBuffer(array,3));
+        //和逐个字段解码的结果一致
+        assertEquals(0xFEDCBA98L,XncpTools.decodeUint32(array,3));
+        assertEquals(200,XncpTools.decodeByte(array,8)&0xFF);
+        assertEquals(65535,XncpTools.decodeUInt16(array,9));
+        assertEquals(0xFFFFFFFFL,XncpTools.decodeUint32(array,15));
+        assertEquals(1400,XncpTools.decodeUint32(array,23));
+        SegmentHeader header = new SegmentHeader();
+        for(ByteBuffer buffer:buffers){
+            assertEquals(XncpConsts.DATASEGMENT_HEADER_SIZE,segment.encodeDataSegmentToBuffer(buffer,3));
+            for(int i = 0;i<XncpConsts.DATASEGMENT_HEADER_SIZE;i++){
+                assertEquals(array[3+i],buffer.get(3+i));//不论字节序都是大端序
+            }
+            header.decode(buffer,3);
+            assertEquals(0xFEDCBA98L,header.getConversationID());
+            assertEquals(XncpConsts.COMMAND_ACK_RANGE,header.getCommand());
+            assertEquals((byte)200,header.getFragmentID());
+            assertEquals(65535,header.getReceiveWindowSize());
+            assertEquals(0x80000001L,header.getTimeStamp());
+            assertEquals(0xFFFFFFFFL,header.getSn());
+            assertEquals(0x12345678L,header.getUnAckID());
+            assertEquals(1400,header.getDataLength());
+            assertEquals(0,buffer.position());
+        }
+        header.decode(array,3);
+        assertEquals(0xFFFFFFFFL,header.getSn());
+        assertEquals(0x12345678L,header.getUnAckID());
+
+        XncpTools.encodeInt64(array,0,0x0102030405060708L);
+        assertEquals(0x0102030405060708L,XncpTools.decodeInt64(array,0));
+        assertEquals(0x01020304L,XncpTools.decodeUint32(array,0));
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.wyy.xncp.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class XncpTracerTest {
+
+    private static int count(List<XncpTracer.Event> events, int type) {
+        int count = 0;
+        for (XncpTracer.Event event : events) {
+            if (event.type == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testRingKeepsNewestEvents() {
+        XncpTracer tracer = new XncpTracer(5);
+        assertEquals(8, tracer.getCapacity());
+        for (int i = 0; i < 20; i++) {
+            tracer.record(i, 1, XncpTracer.EVENT_SEND, i, 0);
+        }
+        List<XncpTracer.Event> events = tracer.snapshot();
+        assertEquals(8, events.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(12 + i, events.get(i).sequence);
+            assertEquals(12 + i, events.get(i).a);
+        }
+        assertEquals(20, tracer.getRecordedCount());
+
+        XncpTracer.Event parsed = XncpTracer.Event.parse(events.get(0).toString());
+        assertEquals(XncpTracer.EVENT_SEND, parsed.type);
+        assertEquals(12, parsed.time);
+        assertNull(XncpTracer.Event.parse("1 2 3 NOT_AN_EVENT 4 5"));
+        tracer.clear();
+        assertTrue(tracer.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentWritersNeverProduceTornEvents() throws Exception {
+        final XncpTracer tracer = new XncpTracer(1024);
+        final int writerCount = 4;
+        final int perWriter = 50000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger torn = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (XncpTracer.Event event : tracer.snapshot()) {
+                        if (event.b != event.a * 3 + event.conversationID || event.time != event.a) {
+                            torn.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        Thread[] writers = new Thread[writerCount];
+        for (int w = 0; w < writerCount; w++) {
+            final int conversationID = w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < perWriter; i++) {
+                        tracer.record(i, conversationID, XncpTracer.EVENT_ACK, i, i * 3 + conversationID);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, torn.get());
+        assertEquals(writerCount * perWriter, tracer.getRecordedCount());
+        assertEquals(1024, tracer.snapshot().size());
+    }
+
+    @Test
+    public void testTimelineShowsTimeoutResends() throws Exception {
+        XncpTracer tracer = new XncpTracer(4096);
+        XncpTest.LoopbackXncp a = new XncpTest.LoopbackXncp(1);
+        XncpTest.LoopbackXncp b = new XncpTest.LoopbackXncp(1);
+        a.setTracer(tracer);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, a.send(new byte[100]));
+        }
+        long now = 0;
+        for (int tick = 0; tick < 300 && a.getPendingSendPacketCount() > 0; tick++) {
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                if (tick > 0) {//第一轮全部丢掉
+                    b.input(packet);
+                }
+            }
+            b.update(now);
+            a.setCurrentTime(now + 5);
+            for (byte[] packet : b.takeOutputs()) {
+                a.input(packet);
+            }
+            while (b.getReadableBytesSize() >= 0) {
+                b.receive(new byte[100]);
+            }
+        }
+        assertEquals(0, a.getPendingSendPacketCount());
+
+        List<XncpTracer.Event> events = tracer.snapshot();
+        assertEquals(20, count(events, XncpTracer.EVENT_SEND));
+        assertEquals(20, count(events, XncpTracer.EVENT_RESEND_TIMEOUT));
+        assertTrue(count(events, XncpTracer.EVENT_ACK) > 0);
+        assertTrue(count(events, XncpTracer.EVENT_RTT) > 0);
+        assertTrue(count(events, XncpTracer.EVENT_CONGESTION_WINDOW) > 1);
+
+        StringBuilder dump = new StringBuilder();
+        tracer.dump(dump);
+        List<XncpTracer.Event> parsed = XncpTraceTimeline.read(new ByteArrayInputStream(dump.toString().getBytes("UTF-8")));
+        assertEquals(events.size(), parsed.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XncpTraceTimeline.print(parsed, -1, new PrintStream(out, true, "UTF-8"));
+        String timeline = out.toString("UTF-8");
+        assertTrue(timeline.contains("session 1:"));
+        assertTrue(timeline.contains("reason=timeout"));
+        assertTrue(timeline.contains("rto-bound"));
+    }
+
+    @Test
+    public void testZeroWindowIsTraced() {
+        XncpTracer tracer = new XncpTracer(4096);
+        XncpTest.LoopbackXncp a = new XncpTest.LoopbackXncp(2);
+        XncpTest.LoopbackXncp b = new XncpTest.LoopbackXncp(2);
+        a.setTracer(tracer);
+        b.setReceiveWindowSize(8);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(0, a.send(new byte[100]));
+        }
+        long now = 0;
+        for (int tick = 0; tick < 1300; tick++) {
+            now += 10;
+            a.update(now);
+            for (byte[] packet : a.takeOutputs()) {
+                b.input(packet);
+            }
+            b.update(now);
+            for (byte[] packet : b.takeOutputs()) {
+                a.input(packet);
+            }
+            if (tick >= 1100) {//接收端11秒不读，超过第一次窗口探测的等待时间
+                while (b.getReadableBytesSize() >= 0) {
+                    b.receive(new byte[100]);
+                }
+            }
+        }
+        List<XncpTracer.Event> events = tracer.snapshot();
+        assertTrue(count(events, XncpTracer.EVENT_REMOTE_WINDOW) >= 2);
+        assertTrue(count(events, XncpTracer.EVENT_WINDOW_ASK) > 0);
+        XncpTraceTimeline.Summary summary = new XncpTraceTimeline.Summary();
+        for (XncpTracer.Event event : events) {
+            summary.add(event);
+        }
+        assertTrue(summary.getZeroWindowTime() > 0);
+    }
+}
@@ -0,0 +1,231 @@
+package com.wyy.xncp.simulator;
+
+import com.wyy.xncp.core.BbrCongestionController;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.wyy.xncp.core.XncpTestMessages.message;
+import static org.junit.Assert.*;
+
+public class XncpSimulatorTest {
+
+    /**
+     * 记录收到的每一条消息
+     * */
+    static class RecordingXncp extends SimulatedXncp {
+        List<byte[]> messages = new ArrayList<byte[]>();
+
+        RecordingXncp(long conversationID, XncpSimulator simulator) {
+            super(conversationID, simulator);
+        }
+
+        @Override
+        protected void onMessage(byte[] buffer, int length) {
+            messages.add(Arrays.copyOf(buffer, length));
+        }
+    }
+
+    private static LinkConfig impairedLink() {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(30);
+        config.setJitter(10);
+        config.setLoss(0.05);
+        config.setDuplicate(0.02);
+        config.setReorder(0.05);
+        return config;
+    }
+
+    /**
+     * 发送count条消息，返回a到b方向的统计
+     * */
+    private static FlowStats transfer(long seed, LinkConfig config, int count, boolean fast) {
+        XncpSimulator simulator = new XncpSimulator(seed);
+        SimulatedXncp a = simulator.createPeer(1);
+        SimulatedXncp b = simulator.createPeer(1);
+        if (fast) {
+            a.setNoDelay(true);
+            a.setFastResendCount(2);
+            a.setMinRto(30);
+            b.setNoDelay(true);
+        }
+        simulator.connect(a, b, config);
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, a.sendMessage(message(i, 500)));
+            simulator.run(10);
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        return a.getStats();
+    }
+
+    @Test
+    public void testSameSeedIsDeterministic() {
+        FlowStats first = transfer(7, impairedLink(), 200, false);
+        FlowStats second = transfer(7, impairedLink(), 200, false);
+        assertEquals(first.toString(), second.toString());
+        assertEquals(first.getRetransmittedSegments(), second.getRetransmittedSegments());
+        assertEquals(first.getLatencyPercentile(99), second.getLatencyPercentile(99));
+        assertTrue(first.getLostDatagrams() > 0);
+        assertTrue(first.getDuplicatedDatagrams() > 0);
+    }
+
+    @Test
+    public void testImpairedLinkDeliversInOrder() {
+        XncpSimulator simulator = new XncpSimulator(3);
+        RecordingXncp a = new RecordingXncp(1, simulator);
+        RecordingXncp b = new RecordingXncp(1, simulator);
+        simulator.connect(a, b, impairedLink());
+        int count = 300;
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, a.sendMessage(message(i, 100 + i * 7 % 3000)));
+            if (i % 10 == 0) {
+                simulator.run(20);
+            }
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        assertEquals(count, b.messages.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(message(i, 100 + i * 7 % 3000), b.messages.get(i));
+        }
+        assertEquals(count, a.getStats().getMessagesReceived());
+        assertEquals(0, a.getStats().getMessagesInFlight());
+        assertTrue(a.getStats().getRetransmittedSegments() > 0);
+    }
+
+    @Test
+    public void testBandwidthLimitsGoodput() {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(10);
+        config.setBandwidth(100 * 1024);//100KB/s
+        XncpSimulator simulator = new XncpSimulator(1);
+        SimulatedXncp a = simulator.createPeer(1);
+        SimulatedXncp b = simulator.createPeer(1);
+        a.setSendWindowSize(64);
+        simulator.connect(a, b, config);
+        for (int i = 0; i < 400; i++) {
+            assertEquals(0, a.sendMessage(message(i, 1000)));
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        FlowStats stats = a.getStats();
+        assertEquals(400, stats.getMessagesReceived());
+        assertTrue(stats.getGoodput() <= 100 * 1024);
+        assertTrue(stats.getGoodput() > 10 * 1024);
+        assertTrue(simulator.getCpuTimeNanos() >= 0);
+    }
+
+    @Test
+    public void testNoDelayLowersTailLatencyUnderLoss() {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(50);
+        config.setLoss(0.1);
+        FlowStats normal = transfer(11, config, 300, false);
+        FlowStats fast = transfer(11, config, 300, true);
+        assertEquals(300, normal.getLatencySampleCount());
+        assertEquals(300, fast.getLatencySampleCount());
+        assertTrue(fast.getLatencyPercentile(99) < normal.getLatencyPercentile(99));
+    }
+
+    /**
+     * 在有随机丢包的长肥管道上持续发送，返回a到b方向的有效吞吐量
+     * */
+    private static double longFatGoodput(boolean bbr) {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(100);
+        config.setLoss(0.02);
+        config.setBandwidth(1024 * 1024);
+        config.setQueueLimit(256 * 1024);
+        XncpSimulator simulator = new XncpSimulator(5);
+        SimulatedXncp a = simulator.createPeer(1);
+        SimulatedXncp b = simulator.createPeer(1);
+        a.setNeedControl(true);
+        a.setFastResendCount(2);
+        a.setSendWindowSize(1024);
+        b.setReceiveWindowSize(1024);
+        if (bbr) {
+            a.setCongestionController(new BbrCongestionController());
+        }
+        simulator.connect(a, b, config);
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(0, a.sendMessage(message(i, 1000)));
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        return a.getStats().getGoodput();
+    }
+
+    @Test
+    public void testBbrKeepsGoodputUnderRandomLoss() {
+        double reno = longFatGoodput(false);
+        double bbr = longFatGoodput(true);
+        assertTrue("reno=" + reno + " bbr=" + bbr, bbr > reno * 2);
+    }
+
+    /**
+     * 在带宽受限、队列很小的链路上发送，窗口没有超过带宽时延积，丢包只来自突发把队列挤满
+     * */
+    private static FlowStats shapedTransfer(boolean pacing) {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(50);
+        config.setBandwidth(1024 * 1024);
+        config.setQueueLimit(16 * 1024);
+        XncpSimulator simulator = new XncpSimulator(9);
+        SimulatedXncp a = simulator.createPeer(1);
+        SimulatedXncp b = simulator.createPeer(1);
+        a.setFastResendCount(2);
+        a.setSendWindowSize(64);
+        a.setPacing(pacing);
+        simulator.connect(a, b, config);
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(0, a.sendMessage(message(i, 1000)));
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        return a.getStats();
+    }
+
+    @Test
+    public void testPacingAvoidsBurstLosses() {
+        FlowStats burst = shapedTransfer(false);
+        FlowStats paced = shapedTransfer(true);
+        assertTrue(burst.getDroppedDatagrams() > 0);
+        assertTrue(paced.getDroppedDatagrams() < burst.getDroppedDatagrams() / 10);
+        assertTrue(paced.getRetransmittedSegments() < burst.getRetransmittedSegments() / 10);
+        assertTrue(paced.getGoodput() >= burst.getGoodput());
+    }
+
+    private static FlowStats lossyTransfer(boolean fec) {
+        LinkConfig config = new LinkConfig();
+        config.setLatency(50);
+        config.setLoss(0.05);
+        XncpSimulator simulator = new XncpSimulator(13);
+        SimulatedXncp a = simulator.createPeer(1);
+        SimulatedXncp b = simulator.createPeer(1);
+        a.setSendWindowSize(128);
+        if (fec) {
+            a.setFec(8, 4, true);
+            b.setFec(8, 4, true);
+        }
+        simulator.connect(a, b, config);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, a.sendMessage(message(i, 1000)));
+            if (i % 4 == 0) {
+                simulator.run(10);
+            }
+        }
+        assertTrue(simulator.runUntilIdle(600000));
+        assertEquals(1000, a.getStats().getMessagesReceived());
+        if (fec) {
+            assertTrue(b.getFecRecoveredCount() > 0);
+            assertTrue(b.getFecLossPermille() > 0);
+        }
+        return a.getStats();
+    }
+
+    @Test
+    public void testFecRecoversLossesWithoutRetransmission() {
+        FlowStats arq = lossyTransfer(false);
+        FlowStats fec = lossyTransfer(true);
+        assertTrue(fec.getRetransmittedSegments() < arq.getRetransmittedSegments() / 2);
+        assertTrue(fec.getLatencyPercentile(50) < arq.getLatencyPercentile(50));
+    }
+}
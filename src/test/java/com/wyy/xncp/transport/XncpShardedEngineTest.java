@@ -0,0 +1,332 @@
+package com.wyy.xncp.transport;
+
+import com.wyy.xncp.core.Xncp;
+import com.wyy.xncp.core.XncpPayloadArena;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wyy.xncp.core.XncpTestMessages.message;
+import static com.wyy.xncp.core.XncpTestMessages.messageId;
+import static org.junit.Assert.*;
+
+public class XncpShardedEngineTest {
+
+    /**
+     * output把数据报复制一份交给另一个引擎
+     * */
+    static class LoopbackXncp extends Xncp {
+        volatile XncpShardedEngine peer;
+
+        LoopbackXncp(long conversationID, XncpShardedEngine peer) {
+            super(conversationID);
+            this.peer = peer;
+        }
+
+        @Override
+        public void output(byte[] buffer, int st, int ed) {
+            byte[] datagram = new byte[ed - st];
+            System.arraycopy(buffer, st, datagram, 0, datagram.length);
+            peer.input(datagram);
+        }
+    }
+
+    /**
+     * 一个工作线程一个handler，状态不加锁，只检查回调是不是都在自己的线程里
+     * 消息的前4个字节是序号，检查每个会话的消息是否按顺序到达
+     * */
+    static class OrderCheckHandler implements XncpShardHandler {
+        XncpShardedEngine peer;
+        final Map<Long, Integer> nextIds = new HashMap<Long, Integer>();
+        final CountDownLatch latch;
+        final AtomicInteger errors;
+        Thread thread;
+
+        OrderCheckHandler(CountDownLatch latch, AtomicInteger errors) {
+            this.latch = latch;
+            this.errors = errors;
+        }
+
+        private void checkThread(XncpShardWorker worker, long conversationID) {
+            if (thread == null) {
+                thread = Thread.currentThread();
+            }
+            if (thread != Thread.currentThread() || !worker.inWorker()
+                    || worker.getEngine().getWorker(conversationID) != worker) {
+                errors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public Xncp createSession(XncpShardWorker worker, long conversationID) {
+            checkThread(worker, conversationID);
+            LoopbackXncp session = new LoopbackXncp(conversationID, peer);
+            session.setSendWindowSize(256);
+            session.setReceiveWindowSize(256);
+            return session;
+        }
+
+        @Override
+        public void onMessage(XncpShardWorker worker, Xncp session, byte[] message) {
+            long conversationID = session.getConversationID();
+            checkThread(worker, conversationID);
+            Integer expected = nextIds.get(conversationID);
+            int id = messageId(message);
+            if (id != (expected == null ? 0 : expected)) {
+                errors.incrementAndGet();
+            }
+            nextIds.put(conversationID, id + 1);
+            latch.countDown();
+        }
+
+        @Override
+        public void onClose(XncpShardWorker worker, Xncp session) {
+            checkThread(worker, session.getConversationID());
+        }
+
+        @Override
+        public void onError(XncpShardWorker worker, Xncp session, Throwable cause) {
+            errors.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersKeepPerSessionOrder() throws Exception {
+        final int workerCount = 4;
+        final int producerCount = 4;
+        final int sessionsPerProducer = 8;
+        final int messageCount = 200;
+        int total = producerCount * sessionsPerProducer * messageCount;
+        CountDownLatch latch = new CountDownLatch(total);
+        AtomicInteger errors = new AtomicInteger();
+
+        OrderCheckHandler[] clientHandlers = new OrderCheckHandler[workerCount];
+        OrderCheckHandler[] serverHandlers = new OrderCheckHandler[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            clientHandlers[i] = new OrderCheckHandler(new CountDownLatch(0), errors);
+            serverHandlers[i] = new OrderCheckHandler(latch, errors);
+        }
+        final XncpShardedEngine client = new XncpShardedEngine(clientHandlers, 10);
+        XncpShardedEngine server = new XncpShardedEngine(serverHandlers, 10);
+        for (int i = 0; i < workerCount; i++) {
+            clientHandlers[i].peer = server;
+            serverHandlers[i].peer = client;
+        }
+
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messageCount; i++) {
+                        for (int s = 0; s < sessionsPerProducer; s++) {
+                            client.send(producer * sessionsPerProducer + s + 1, message(i, 16 + (i * 37) % 3000));
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue("timed out, " + latch.getCount() + " messages left", latch.await(20, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        int sessionCount = 0;
+        for (int i = 0; i < workerCount; i++) {
+            sessionCount += serverHandlers[i].nextIds.size();
+            for (Long conversationID : serverHandlers[i].nextIds.keySet()) {
+                assertEquals(i, conversationID % workerCount);
+                assertEquals(messageCount, (int) serverHandlers[i].nextIds.get(conversationID));
+            }
+        }
+        assertEquals(producerCount * sessionsPerProducer, sessionCount);
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void testRejectedAndClosedSessions() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        XncpShardedEngine engine = new XncpShardedEngine(2, new XncpShardHandler() {
+            @Override
+            public Xncp createSession(XncpShardWorker worker, long conversationID) {
+                if (conversationID == 7) {
+                    return null;
+                }
+                created.incrementAndGet();
+                return new LoopbackXncp(conversationID, null) {
+                    @Override
+                    public void output(byte[] buffer, int st, int ed) {
+                    }
+                };
+            }
+
+            @Override
+            public void onMessage(XncpShardWorker worker, Xncp session, byte[] message) {
+            }
+
+            @Override
+            public void onClose(XncpShardWorker worker, Xncp session) {
+                closed.incrementAndGet();
+                closeLatch.countDown();
+            }
+
+            @Override
+            public void onError(XncpShardWorker worker, Xncp session, Throwable cause) {
+                fail(cause.toString());
+            }
+        });
+
+        assertFalse(engine.input(new byte[4]));
+        engine.send(7, message(1, 10));
+        engine.send(8, message(1, 10));
+        final int[] counts = new int[2];
+        final XncpShardWorker worker7 = engine.getWorker(7);
+        final XncpShardWorker worker8 = engine.getWorker(8);
+        assertNotSame(worker7, worker8);
+        final CountDownLatch sessionsChecked = new CountDownLatch(2);
+        engine.execute(7, new Runnable() {
+            @Override
+            public void run() {
+                counts[0] = worker7.getSession(7) == null ? 0 : 1;
+                sessionsChecked.countDown();
+            }
+        });
+        engine.execute(8, new Runnable() {
+            @Override
+            public void run() {
+                counts[1] = worker8.getSession(8) == null ? 0 : 1;
+                sessionsChecked.countDown();
+            }
+        });
+        assertTrue(sessionsChecked.await(5, TimeUnit.SECONDS));
+        assertEquals(0, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(1, created.get());
+
+        engine.close(8);
+        assertTrue(closeLatch.await(5, TimeUnit.SECONDS));
+        engine.shutdown();
+        assertEquals(1, closed.get());
+        assertFalse(engine.send(8, message(2, 10)));
+    }
+
+    @Test
+    public void testCloseReleasesArenaBlocks() throws Exception {
+        final XncpPayloadArena arena = new XncpPayloadArena(16 << 20);
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        XncpShardedEngine engine = new XncpShardedEngine(1, new XncpShardHandler() {
+            @Override
+            public Xncp createSession(XncpShardWorker worker, long conversationID) {
+                LoopbackXncp session = new LoopbackXncp(conversationID, null) {
+                    @Override
+                    public void output(byte[] buffer, int st, int ed) {//对端不存在，数据一直不会被确认
+                    }
+                };
+                session.setPayloadArena(arena);
+                return session;
+            }
+
+            @Override
+            public void onMessage(XncpShardWorker worker, Xncp session, byte[] message) {
+            }
+
+            @Override
+            public void onClose(XncpShardWorker worker, Xncp session) {
+                closeLatch.countDown();
+            }
+
+            @Override
+            public void onError(XncpShardWorker worker, Xncp session, Throwable cause) {
+                fail(cause.toString());
+            }
+        });
+        for (int i = 0; i < 20; i++) {
+            assertTrue(engine.send(3, message(i, 3000)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (arena.getUsedBlocks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(arena.getUsedBlocks() > 0);
+
+        engine.close(3);
+        assertTrue(closeLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, arena.getUsedBlocks());
+        engine.shutdown();
+    }
+
+    @Test
+    public void testFailingSessionIsClosedWithoutAffectingOthers() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final CountDownLatch taskLatch = new CountDownLatch(1);
+        final AtomicInteger healthyOutputs = new AtomicInteger();
+        XncpShardedEngine engine = new XncpShardedEngine(1, new XncpShardHandler() {
+            @Override
+            public Xncp createSession(XncpShardWorker worker, final long conversationID) {
+                return new LoopbackXncp(conversationID, null) {
+                    @Override
+                    public void output(byte[] buffer, int st, int ed) {
+                        if (conversationID == 5) {
+                            throw new IllegalStateException("broken output");//在时间轮的update中抛出
+                        }
+                        healthyOutputs.incrementAndGet();
+                    }
+                };
+            }
+
+            @Override
+            public void onMessage(XncpShardWorker worker, Xncp session, byte[] message) {
+            }
+
+            @Override
+            public void onClose(XncpShardWorker worker, Xncp session) {
+                events.add("close " + session.getConversationID());
+                closeLatch.countDown();
+            }
+
+            @Override
+            public void onError(XncpShardWorker worker, Xncp session, Throwable cause) {
+                events.add("error " + (session == null ? "task" : session.getConversationID()) + " " + cause.getMessage());
+                if (session == null) {
+                    taskLatch.countDown();
+                }
+            }
+        });
+        assertTrue(engine.send(5, message(1, 10)));
+        assertTrue(closeLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("error 5 broken output", events.get(0));
+        assertEquals("close 5", events.get(1));
+
+        engine.execute(6, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException("broken task");
+            }
+        });
+        assertTrue(taskLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("error task broken task", events.get(2));
+
+        assertTrue(engine.send(6, message(2, 10)));//同一个工作线程上的其他会话不受影响
+        long deadline = System.currentTimeMillis() + 5000;
+        while (healthyOutputs.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(healthyOutputs.get() > 0);
+        assertEquals(3, events.size());
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,271 @@
+package com.wyy.xncp.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import com.wyy.xncp.core.XncpPayloadArena;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wyy.xncp.core.XncpTestMessages.message;
+import static org.junit.Assert.*;
+
+public class XncpUdpTransportTest {
+
+    private XncpEventLoopGroup group;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new XncpEventLoopGroup(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        group.shutdown();
+    }
+
+    /**
+     * 把收到的消息原样发回去
+     * */
+    static class EchoHandler implements XncpSessionHandler {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        @Override
+        public void onOpen(XncpSession session) {
+            opened.incrementAndGet();
+        }
+
+        @Override
+        public void onMessage(XncpSession session, byte[] message) {
+            session.write(message);
+        }
+
+        @Override
+        public void onClose(XncpSession session) {
+            closed.incrementAndGet();
+        }
+
+        @Override
+        public void onError(XncpSession session, Throwable cause) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * 把收到的消息记录下来
+     * */
+    static class CollectHandler implements XncpSessionHandler {
+        final List<byte[]> messages = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch latch;
+
+        CollectHandler(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onOpen(XncpSession session) {
+        }
+
+        @Override
+        public void onMessage(XncpSession session, byte[] message) {
+            messages.add(message);
+            latch.countDown();
+        }
+
+        @Override
+        public void onClose(XncpSession session) {
+        }
+
+        @Override
+        public void onError(XncpSession session, Throwable cause) {
+        }
+    }
+
+    private static int size(int i) {
+        return 1 + (i * 997) % 4000;
+    }
+
+    @Test
+    public void testEchoOverLoopback() throws Exception {
+        EchoHandler serverHandler = new EchoHandler();
+        XncpUdpServer server = new XncpUdpServer(group, serverHandler);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketAddress serverAddress = server.getLocalAddress();
+
+        int clientCount = 3;
+        int messageCount = 50;
+        List<CollectHandler> handlers = new ArrayList<CollectHandler>();
+        List<XncpUdpClient> clients = new ArrayList<XncpUdpClient>();
+        for (int c = 0; c < clientCount; c++) {
+            CollectHandler handler = new CollectHandler(messageCount);
+            XncpUdpClient client = new XncpUdpClient(group, handler);
+            XncpSession session = client.connect(serverAddress, 100 + c);
+            for (int i = 0; i < messageCount; i++) {
+                session.write(message(c * 1000 + i, size(i)));
+            }
+            handlers.add(handler);
+            clients.add(client);
+        }
+
+        for (int c = 0; c < clientCount; c++) {
+            CollectHandler handler = handlers.get(c);
+            assertTrue("client " + c + " timed out", handler.latch.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < messageCount; i++) {
+                assertArrayEquals(message(c * 1000 + i, size(i)), handler.messages.get(i));
+            }
+        }
+        assertEquals(clientCount, serverHandler.opened.get());
+
+        for (XncpUdpClient client : clients) {
+            client.close();
+        }
+        server.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (serverHandler.closed.get() < clientCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(clientCount, serverHandler.closed.get());
+        assertTrue(server.isClosed());
+    }
+
+    @Test
+    public void testSessionRejectedInOnOpen() throws Exception {
+        final AtomicInteger messages = new AtomicInteger();
+        XncpUdpServer server = new XncpUdpServer(group, new XncpSessionHandler() {
+            @Override
+            public void onOpen(XncpSession session) {
+                if (session.getConversationID() == 7) {
+                    session.close();
+                }
+            }
+
+            @Override
+            public void onMessage(XncpSession session, byte[] message) {
+                messages.incrementAndGet();
+            }
+
+            @Override
+            public void onClose(XncpSession session) {
+            }
+
+            @Override
+            public void onError(XncpSession session, Throwable cause) {
+            }
+        });
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        CollectHandler handler = new CollectHandler(1);
+        XncpUdpClient rejected = new XncpUdpClient(group, handler);
+        rejected.connect(server.getLocalAddress(), 7).write(message(1, 10));
+        XncpUdpClient accepted = new XncpUdpClient(group, handler);
+        accepted.connect(server.getLocalAddress(), 8).write(message(2, 10));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messages.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(1, messages.get());
+        rejected.close();
+        accepted.close();
+        server.close();
+    }
+
+    @Test
+    public void testFailingSessionIsClosedWithoutAffectingOthers() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        XncpUdpServer server = new XncpUdpServer(group, new XncpSessionHandler() {
+            @Override
+            public void onOpen(XncpSession session) {
+            }
+
+            @Override
+            public void onMessage(XncpSession session, byte[] message) {
+                if (session.getConversationID() == 11) {
+                    throw new IllegalStateException("broken handler");
+                }
+                session.write(message);
+            }
+
+            @Override
+            public void onClose(XncpSession session) {
+                events.add("close " + session.getConversationID());
+                closeLatch.countDown();
+            }
+
+            @Override
+            public void onError(XncpSession session, Throwable cause) {
+                events.add("error " + session.getConversationID() + " " + cause.getMessage());
+            }
+        });
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        CollectHandler handler = new CollectHandler(1);
+        XncpUdpClient failing = new XncpUdpClient(group, handler);
+        failing.connect(server.getLocalAddress(), 11).write(message(1, 10));
+        assertTrue(closeLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, events.size());
+        assertEquals("error 11 broken handler", events.get(0));
+        assertEquals("close 11", events.get(1));
+
+        XncpUdpClient healthy = new XncpUdpClient(group, handler);
+        healthy.connect(server.getLocalAddress(), 12).write(message(2, 10));
+        assertTrue(handler.latch.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(message(2, 10), handler.messages.get(0));
+        failing.close();
+        healthy.close();
+        server.close();
+    }
+
+    @Test
+    public void testCloseReleasesArenaBlocks() throws Exception {
+        final XncpPayloadArena arena = new XncpPayloadArena(16 << 20);
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getLoopbackAddress());//只收不回，数据一直不会被确认
+        XncpUdpClient client = new XncpUdpClient(group, new XncpSessionHandler() {
+            @Override
+            public void onOpen(XncpSession session) {
+                session.setPayloadArena(arena);
+            }
+
+            @Override
+            public void onMessage(XncpSession session, byte[] message) {
+            }
+
+            @Override
+            public void onClose(XncpSession session) {
+                closeLatch.countDown();
+            }
+
+            @Override
+            public void onError(XncpSession session, Throwable cause) {
+            }
+        });
+        XncpSession session = client.connect(silent.getLocalSocketAddress(), 9);
+        for (int i = 0; i < 20; i++) {
+            session.write(message(i, 3000));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (arena.getUsedBlocks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(arena.getUsedBlocks() > 0);
+
+        client.close();
+        assertTrue(closeLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, arena.getUsedBlocks());
+        silent.close();
+    }
+}
@@ -0,0 +1,105 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.XncpTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AckBenchmark
+ * 接收端积攒一大批ack再一次发出去的开销，主要看ackList：每收到一个包加一项，flush时按下标读出来
+ * 接收端开启延迟ack，ackFrequency等于一批的包数，所以每一批正好flush一次，ackList中最多有BATCH项
+ * 和真正的传输层一样，每个包都先复制到同一个接收缓冲区中再input
+ * 结果是每个包的平均时间，配合-prof gc看gc.alloc.rate.norm，收包和发ack的路径上不应该有分配(没有装箱)
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckBenchmark {
+
+    private static final int SN_OFFSET = 12;//sn在包头中的位置
+
+    @Param({"256", "2048"})
+    public int batch;
+
+    @Param({"false", "true"})
+    public boolean ackRangeMode;
+
+    private final List<byte[]> captured = new ArrayList<byte[]>();
+    private byte[][] packets;
+    private long[] packetSn;
+    private LinkedXncp receiver;
+    private byte[] receiveBuffer;
+    private byte[] datagram;//模拟socket的接收缓冲区，每个包都先复制到这里再input
+    private long base;
+    private long currentTime;
+
+    @Setup
+    public void setup() {
+        LinkedXncp sender = new LinkedXncp(1, null) {
+            @Override
+            public void output(byte[] buffer, int st, int ed) {
+                byte[] packet = new byte[ed - st];
+                System.arraycopy(buffer, st, packet, 0, packet.length);
+                captured.add(packet);
+            }
+        };
+        sender.setSendWindowSize(batch);
+        sender.input(InputBenchmark.windowPacket(1, 0));
+        byte[] message = new byte[64];
+        for (int i = 0; i < batch; i++) {
+            sender.send(message);
+        }
+        sender.update(1);
+        packets = captured.toArray(new byte[captured.size()][]);
+        packetSn = new long[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            packetSn[i] = XncpTools.decodeUint32(packets[i], SN_OFFSET);
+        }
+
+        receiver = new LinkedXncp(1, null);
+        receiver.setReceiveWindowSize(batch * 2);
+        receiver.setDelayedAck(1000, packets.length);
+        receiver.setAckRangeMode(ackRangeMode);
+        receiveBuffer = new byte[message.length];
+        datagram = new byte[(int) receiver.getMtu()];
+        base = 0;
+        currentTime = 1;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2048)
+    public int receiveAndAck() {
+        int received = 0;
+        for (int round = 0; round < 2048 / packets.length; round++) {
+            for (int i = 0; i < packets.length; i++) {
+                byte[] packet = packets[i];
+                System.arraycopy(packet, 0, datagram, 0, packet.length);
+                XncpTools.encodeUInt32(datagram, SN_OFFSET, base + packetSn[i]);
+                receiver.input(datagram, 0, packet.length);
+            }
+            while (receiver.receive(receiveBuffer) > 0) {
+                received++;
+            }
+            receiver.update(++currentTime);
+            base += packets.length;
+        }
+        return received;
+    }
+}
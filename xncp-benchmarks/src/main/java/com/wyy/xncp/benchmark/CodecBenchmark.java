@@ -0,0 +1,224 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.DataSegment;
+import com.wyy.xncp.core.SegmentHeader;
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CodecBenchmark
+ * 24字节包头的编码和解码，分别在数组、堆上的ByteBuffer和直接内存上测量
+ * 每次调用处理一个数据报中首尾相连的HEADERS个包头(和一个装满ack的数据报一样)，结果是每个包头的平均时间
+ * encode*和decodeHeader*是现在使用的整包头编解码(三次64位读写)
+ * encodeFields*和decodeFields*是原来逐个字段调用XncpTools的做法，留作对比
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int HEADERS = 64;
+    private static final int SIZE = HEADERS * XncpConsts.DATASEGMENT_HEADER_SIZE;
+
+    private DataSegment segment;
+    private byte[] array;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+    private final SegmentHeader header = new SegmentHeader();
+
+    @Setup
+    public void setup() {
+        segment = new DataSegment(0);
+        segment.setConversationID(0x12345678L);
+        segment.setCommand(XncpConsts.COMMAND_ACK);
+        segment.setFragmentID((byte) 3);
+        segment.setReceiveWindowSize(128);
+        segment.setTimeStamp(0x7fff0001L);
+        segment.setSn(0xfffffff0L);
+        segment.setUnAckID(0x10000L);
+        segment.setDataLength(0);
+        array = new byte[SIZE];
+        heapBuffer = ByteBuffer.allocate(SIZE);
+        directBuffer = ByteBuffer.allocateDirect(SIZE);
+        for (int loc = 0; loc < SIZE; loc += XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            segment.setSn(segment.getSn() + 1);
+            segment.encodeDataSegmentToBuffer(array, loc);
+            segment.encodeDataSegmentToBuffer(heapBuffer, loc);
+            segment.encodeDataSegmentToBuffer(directBuffer, loc);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeArray() {
+        int loc = 0;
+        while (loc < SIZE) {
+            loc += segment.encodeDataSegmentToBuffer(array, loc);
+        }
+        return loc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeHeapBuffer() {
+        return encode(heapBuffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeDirectBuffer() {
+        return encode(directBuffer);
+    }
+
+    private int encode(ByteBuffer buffer) {
+        int loc = 0;
+        while (loc < SIZE) {
+            loc += segment.encodeDataSegmentToBuffer(buffer, loc);
+        }
+        return loc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeFieldsArray() {
+        DataSegment segment = this.segment;
+        byte[] buffer = array;
+        int loc = 0;
+        while (loc < SIZE) {
+            XncpTools.encodeUInt32(buffer, loc, segment.getConversationID());
+            XncpTools.encodeByte(buffer, loc + 4, segment.getCommand());
+            XncpTools.encodeByte(buffer, loc + 5, segment.getFragmentID());
+            XncpTools.encodeUInt16(buffer, loc + 6, (int) segment.getReceiveWindowSize());
+            XncpTools.encodeUInt32(buffer, loc + 8, segment.getTimeStamp());
+            XncpTools.encodeUInt32(buffer, loc + 12, segment.getSn());
+            XncpTools.encodeUInt32(buffer, loc + 16, segment.getUnAckID());
+            XncpTools.encodeUInt32(buffer, loc + 20, segment.getDataLength());
+            loc += XncpConsts.DATASEGMENT_HEADER_SIZE;
+        }
+        return loc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeFieldsHeapBuffer() {
+        return encodeFields(heapBuffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public int encodeFieldsDirectBuffer() {
+        return encodeFields(directBuffer);
+    }
+
+    private int encodeFields(ByteBuffer buffer) {
+        DataSegment segment = this.segment;
+        int loc = 0;
+        while (loc < SIZE) {
+            XncpTools.encodeUInt32(buffer, loc, segment.getConversationID());
+            XncpTools.encodeByte(buffer, loc + 4, segment.getCommand());
+            XncpTools.encodeByte(buffer, loc + 5, segment.getFragmentID());
+            XncpTools.encodeUInt16(buffer, loc + 6, (int) segment.getReceiveWindowSize());
+            XncpTools.encodeUInt32(buffer, loc + 8, segment.getTimeStamp());
+            XncpTools.encodeUInt32(buffer, loc + 12, segment.getSn());
+            XncpTools.encodeUInt32(buffer, loc + 16, segment.getUnAckID());
+            XncpTools.encodeUInt32(buffer, loc + 20, segment.getDataLength());
+            loc += XncpConsts.DATASEGMENT_HEADER_SIZE;
+        }
+        return loc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeHeaderArray() {
+        long res = 0;
+        for (int loc = 0; loc < SIZE; loc += XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            header.decode(array, loc);
+            res += fold(header);
+        }
+        return res;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeHeaderHeapBuffer() {
+        return decodeHeader(heapBuffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeHeaderDirectBuffer() {
+        return decodeHeader(directBuffer);
+    }
+
+    private long decodeHeader(ByteBuffer buffer) {
+        long res = 0;
+        for (int loc = 0; loc < SIZE; loc += XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            header.decode(buffer, loc);
+            res += fold(header);
+        }
+        return res;
+    }
+
+    /**
+     * 把所有字段合成一个值，避免每个字段都交给Blackhole，那样的开销比解码本身还大
+     * */
+    private static long fold(SegmentHeader header) {
+        return header.getConversationID() ^ header.getCommand() ^ header.getFragmentID()
+                ^ header.getReceiveWindowSize() ^ header.getTimeStamp() ^ header.getSn()
+                ^ header.getUnAckID() ^ header.getDataLength();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeFieldsArray() {
+        byte[] buffer = array;
+        long res = 0;
+        for (int loc = 0; loc < SIZE; loc += XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            res += XncpTools.decodeUint32(buffer, loc) ^ XncpTools.decodeByte(buffer, loc + 4)
+                    ^ XncpTools.decodeByte(buffer, loc + 5) ^ XncpTools.decodeUInt16(buffer, loc + 6)
+                    ^ XncpTools.decodeUint32(buffer, loc + 8) ^ XncpTools.decodeUint32(buffer, loc + 12)
+                    ^ XncpTools.decodeUint32(buffer, loc + 16) ^ XncpTools.decodeUint32(buffer, loc + 20);
+        }
+        return res;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeFieldsHeapBuffer() {
+        return decodeFields(heapBuffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HEADERS)
+    public long decodeFieldsDirectBuffer() {
+        return decodeFields(directBuffer);
+    }
+
+    private static long decodeFields(ByteBuffer buffer) {
+        long res = 0;
+        for (int loc = 0; loc < SIZE; loc += XncpConsts.DATASEGMENT_HEADER_SIZE) {
+            res += XncpTools.decodeUint32(buffer, loc) ^ XncpTools.decodeByte(buffer, loc + 4)
+                    ^ XncpTools.decodeByte(buffer, loc + 5) ^ XncpTools.decodeUInt16(buffer, loc + 6)
+                    ^ XncpTools.decodeUint32(buffer, loc + 8) ^ XncpTools.decodeUint32(buffer, loc + 12)
+                    ^ XncpTools.decodeUint32(buffer, loc + 16) ^ XncpTools.decodeUint32(buffer, loc + 20);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,126 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlushBenchmark
+ * 发送端把一整个窗口的包发出去并被确认的开销：send、update(updateSend + flushSendBuffer)、
+ * 最后一个带una的控制包一次确认整个窗口
+ * 结果是整个窗口的时间，除以window就是每个包的开销，
+ * 发送窗口用以sn为下标的环形缓冲区实现，每个包的开销不应该随窗口变大而增加
+ * idleUpdate是整个窗口都在途、还没到超时重传时间时的update，应该和窗口大小无关
+ * resendWindow是整个窗口都超时重传，主要是遍历发送窗口中每个槽位的发送状态和重新写包头
+ * slab为true时发送窗口把数据复制到自己的连续内存中，见Xncp.setSendWindowSlab
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+
+    private static final int UNA_OFFSET = 16;//una在包头中的位置
+
+    @Param({"32", "256", "1024", "4096"})
+    public int window;
+
+    @Param({"100"})
+    public int messageSize;
+
+    @Param({"false", "true"})
+    public boolean slab;
+
+    private LinkedXncp sender;
+    private byte[] message;
+    private byte[] ackPacket;//una为acked的控制包，每次只改写una
+    private long acked;
+    private long currentTime;
+
+    private LinkedXncp idleSender;
+
+    @Setup
+    public void setup() {
+        message = new byte[messageSize];
+        sender = new LinkedXncp(1, null);
+        sender.setSendWindowSize(window);
+        sender.setSendWindowSlab(slab);
+        sender.input(InputBenchmark.windowPacket(1, 0));
+        ackPacket = InputBenchmark.windowPacket(1, 0);
+        acked = 0;
+        currentTime = 1;
+
+        idleSender = new LinkedXncp(2, null);
+        idleSender.setSendWindowSize(window);
+        idleSender.setSendWindowSlab(slab);
+        idleSender.input(InputBenchmark.windowPacket(2, 0));
+        for (int i = 0; i < window; i++) {
+            idleSender.send(message);
+        }
+        idleSender.update(1);
+    }
+
+    /**
+     * 每个包的rto在每次超时重传之后都会变大，所以每次调用之前都重新建一个整个窗口都在途的发送端
+     * */
+    @State(Scope.Thread)
+    public static class ResendState {
+        LinkedXncp sender;
+
+        @Setup(Level.Invocation)
+        public void setup(FlushBenchmark benchmark) {
+            sender = new LinkedXncp(3, null);
+            sender.setSendWindowSize(benchmark.window);
+            sender.setSendWindowSlab(benchmark.slab);
+            sender.input(InputBenchmark.windowPacket(3, 0));
+            for (int i = 0; i < benchmark.window; i++) {
+                sender.send(benchmark.message);
+            }
+            sender.update(1);
+        }
+    }
+
+    /**
+     * 每次调用发送并确认window个包
+     * */
+    @Benchmark
+    public long flushWindow() {
+        for (int i = 0; i < window; i++) {
+            sender.send(message);
+        }
+        sender.update(++currentTime);
+        acked += window;
+        XncpTools.encodeUInt32(ackPacket, UNA_OFFSET, acked);
+        sender.input(ackPacket);
+        return sender.getOutputPackets();
+    }
+
+    /**
+     * 时间前进到超过所有包的超时重传时间，整个窗口重传一次
+     * */
+    @Benchmark
+    public long resendWindow(ResendState state) {
+        state.sender.update(XncpConsts.RTO_MAX * 2);
+        return state.sender.getOutputPackets();
+    }
+
+    @Benchmark
+    public void idleUpdate() {
+        idleSender.update(2);//不会到超时重传的时间
+    }
+}
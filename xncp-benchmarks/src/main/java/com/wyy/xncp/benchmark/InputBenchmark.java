@@ -0,0 +1,121 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.DataSegment;
+import com.wyy.xncp.core.XncpConsts;
+import com.wyy.xncp.core.XncpTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InputBenchmark
+ * 接收端处理一批数据包的开销，包括input、移到接收队列、receive以及下一次update时发送ack
+ * 数据包预先由发送端生成，每一批只改写其中的sn，接收端可以一直复用
+ * outOfOrder为true时一批中的包是打乱的，乱序插入接收窗口的开销应该和顺序时相当
+ * 结果是每个包的平均时间，配合-prof gc可以看到每个包分配的字节数
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputBenchmark {
+
+    private static final int BATCH = 256;
+    private static final int SN_OFFSET = 12;//sn在包头中的位置
+
+    @Param({"false", "true"})
+    public boolean outOfOrder;
+
+    @Param({"1024"})
+    public int messageSize;
+
+    private final List<byte[]> captured = new ArrayList<byte[]>();
+    private byte[][] packets;
+    private long[] packetSn;
+    private LinkedXncp receiver;
+    private byte[] receiveBuffer;
+    private long base;
+    private long currentTime;
+
+    @Setup
+    public void setup() {
+        LinkedXncp sender = new LinkedXncp(1, null) {
+            @Override
+            public void output(byte[] buffer, int st, int ed) {
+                byte[] packet = new byte[ed - st];
+                System.arraycopy(buffer, st, packet, 0, packet.length);
+                captured.add(packet);
+            }
+        };
+        sender.setSendWindowSize(BATCH);
+        sender.input(windowPacket(1, 0));
+        byte[] message = new byte[messageSize];
+        for (int i = 0; i < BATCH; i++) {
+            sender.send(message);
+        }
+        sender.update(1);
+        if (outOfOrder) {
+            Collections.shuffle(captured, new Random(1));
+        }
+        packets = captured.toArray(new byte[captured.size()][]);
+        packetSn = new long[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            packetSn[i] = XncpTools.decodeUint32(packets[i], SN_OFFSET);
+        }
+
+        receiver = new LinkedXncp(1, null);
+        receiver.setReceiveWindowSize(BATCH * 2);
+        receiveBuffer = new byte[messageSize];
+        base = 0;
+        currentTime = 1;
+    }
+
+    /**
+     * 告诉对端自己的接收窗口和una的控制包
+     * */
+    static byte[] windowPacket(long conversationID, long unAckID) {
+        DataSegment segment = new DataSegment(0);
+        segment.setConversationID(conversationID);
+        segment.setCommand(XncpConsts.COMMAND_TELL_WINDOW_SIZE);
+        segment.setReceiveWindowSize(65535);
+        segment.setUnAckID(unAckID);
+        segment.setDataLength(0);
+        byte[] packet = new byte[XncpConsts.DATASEGMENT_HEADER_SIZE];
+        segment.encodeDataSegmentToBuffer(packet, 0);
+        return packet;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int inputBatch() {
+        for (int i = 0; i < packets.length; i++) {
+            byte[] packet = packets[i];
+            XncpTools.encodeUInt32(packet, SN_OFFSET, base + packetSn[i]);
+            receiver.input(packet);
+        }
+        int received = 0;
+        while (receiver.receive(receiveBuffer) > 0) {
+            received++;
+        }
+        receiver.update(++currentTime);
+        base += packets.length;
+        return received;
+    }
+}
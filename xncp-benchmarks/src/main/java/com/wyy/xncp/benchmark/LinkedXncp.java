@@ -0,0 +1,36 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.Xncp;
+
+/**
+ * LinkedXncp
+ * output交给LossyLink的Xncp，link为null时直接丢弃，用来只测量发送端
+ * */
+public class LinkedXncp extends Xncp {
+
+    private final LossyLink link;
+    private long outputPackets;
+    private long outputBytes;
+
+    public LinkedXncp(long conversationID, LossyLink link) {
+        super(conversationID);
+        this.link = link;
+    }
+
+    @Override
+    public void output(byte[] buffer, int st, int ed) {
+        outputPackets++;
+        outputBytes += ed - st;
+        if (link != null) {
+            link.send(buffer, st, ed);
+        }
+    }
+
+    public long getOutputPackets() {
+        return outputPackets;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+}
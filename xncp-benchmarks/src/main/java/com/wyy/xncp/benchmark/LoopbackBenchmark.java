@@ -0,0 +1,136 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.XncpPayloadArena;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoopbackBenchmark
+ * 两个Xncp通过内存中的LossyLink互相连接，每次调用传输1MB数据
+ * 时间是虚拟的，每一轮推进tick毫秒，所以结果反映的是协议本身的CPU开销，而不是网络的快慢
+ * 通过辅助计数器同时给出每秒的数据报个数(pps)，可以用来比较不同ack方式下的包数量：
+ * dataPackets是发送端发出的包，ackPackets是接收端发出的包
+ * 稳定状态下每个包分配的字节数用-prof gc查看
+ * arena为true时包数据放在堆外内存池中，对比的是从arena取块、复制到直接内存的额外开销
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final int TICK = 10;//ms
+    private static final int TRANSFER_BYTES = 1024 * 1024;
+    private static final int MAX_TICKS = 100000;
+
+    @Param({"0", "0.01", "0.05"})
+    public double loss;
+
+    @Param({"0", "20"})
+    public long latency;//单向延迟，ms
+
+    /**
+     * immediate 每次update都发送ack
+     * delayed 延迟ack，攒够8个或者等待20ms
+     * range 使用COMMAND_ACK_RANGE批量ack
+     * */
+    @Param({"immediate", "delayed", "range"})
+    public String ackMode;
+
+    @Param({"1024"})
+    public int messageSize;
+
+    /**
+     * true 两端共用一个XncpPayloadArena，包数据放在直接内存中
+     * */
+    @Param({"false", "true"})
+    public boolean arena;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class PacketCounters {
+        public long dataPackets;
+        public long ackPackets;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            dataPackets = 0;
+            ackPackets = 0;
+        }
+    }
+
+    private LossyLink forward;
+    private LossyLink backward;
+    private LinkedXncp sender;
+    private LinkedXncp receiver;
+    private byte[] message;
+    private byte[] receiveBuffer;
+    private long currentTime;
+
+    @Setup
+    public void setup() {
+        forward = new LossyLink(loss, latency, 1500, 1);
+        backward = new LossyLink(loss, latency, 1500, 2);
+        sender = new LinkedXncp(1, forward);
+        receiver = new LinkedXncp(1, backward);
+        sender.setSendWindowSize(256);
+        receiver.setReceiveWindowSize(256);
+        if (arena) {
+            XncpPayloadArena payloadArena = new XncpPayloadArena(64 << 20);
+            sender.setPayloadArena(payloadArena);
+            receiver.setPayloadArena(payloadArena);
+        }
+        if ("delayed".equals(ackMode)) {
+            receiver.setDelayedAck(20, 8);
+        } else if ("range".equals(ackMode)) {
+            receiver.setAckRangeMode(true);
+        }
+        message = new byte[messageSize];
+        receiveBuffer = new byte[messageSize];
+        currentTime = 0;
+    }
+
+    @Benchmark
+    public int transfer(PacketCounters counters) {
+        int total = TRANSFER_BYTES / messageSize;
+        for (int i = 0; i < total; i++) {
+            sender.send(message);
+        }
+        long dataPackets = sender.getOutputPackets();
+        long ackPackets = receiver.getOutputPackets();
+        int received = 0;
+        for (int tick = 0; tick < MAX_TICKS && (received < total || sender.getPendingSendPacketCount() > 0); tick++) {
+            currentTime += TICK;
+            forward.setCurrentTime(currentTime);
+            backward.setCurrentTime(currentTime);
+            sender.update(currentTime);
+            forward.deliver(receiver, currentTime);
+            receiver.update(currentTime);
+            backward.deliver(sender, currentTime);
+            while (receiver.receive(receiveBuffer) > 0) {
+                received++;
+            }
+        }
+        if (received != total) {
+            throw new IllegalStateException("transfer did not complete, received " + received + "/" + total);
+        }
+        counters.dataPackets += sender.getOutputPackets() - dataPackets;
+        counters.ackPackets += receiver.getOutputPackets() - ackPackets;
+        return received;
+    }
+}
@@ -0,0 +1,93 @@
+package com.wyy.xncp.benchmark;
+
+import com.wyy.xncp.core.Xncp;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * LossyLink
+ * 内存中的单向链路，按照固定的延迟把数据报交给对端，按照给定的概率随机丢包
+ * 数据报的缓冲区循环使用，链路本身在稳定状态下不分配对象，不会干扰-prof gc的结果
+ * 时间由调用者推进，同样的种子每次运行的结果都一样
+ * */
+public class LossyLink {
+
+    private static final class Packet {
+        final byte[] data;
+        int length;
+        long deliverTime;
+
+        Packet(int capacity) {
+            this.data = new byte[capacity];
+        }
+    }
+
+    private final ArrayDeque<Packet> inFlight = new ArrayDeque<Packet>();
+    private final ArrayDeque<Packet> free = new ArrayDeque<Packet>();
+    private final Random random;
+    private final double loss;
+    private final long latency;
+    private final int packetCapacity;
+    private long currentTime;
+    private long sentPackets;
+    private long droppedPackets;
+
+    /**
+     * @param loss 丢包率，0到1之间
+     * @param latency 单向延迟，单位ms
+     * @param packetCapacity 数据报的最大长度，一般是mtu
+     * */
+    public LossyLink(double loss, long latency, int packetCapacity, long seed) {
+        this.loss = loss;
+        this.latency = latency;
+        this.packetCapacity = packetCapacity;
+        this.random = new Random(seed);
+    }
+
+    public void setCurrentTime(long currentTime) {
+        this.currentTime = currentTime;
+    }
+
+    /**
+     * 发送一个数据报，buffer中[st,ed)的部分
+     * */
+    public void send(byte[] buffer, int st, int ed) {
+        sentPackets++;
+        if (loss > 0 && random.nextDouble() < loss) {
+            droppedPackets++;
+            return;
+        }
+        Packet packet = free.pollLast();
+        if (packet == null) {
+            packet = new Packet(packetCapacity);
+        }
+        packet.length = ed - st;
+        System.arraycopy(buffer, st, packet.data, 0, packet.length);
+        packet.deliverTime = currentTime + latency;
+        inFlight.addLast(packet);
+    }
+
+    /**
+     * 把到达时间不晚于currentTime的数据报交给target
+     * @return 交付的数据报个数
+     * */
+    public int deliver(Xncp target, long currentTime) {
+        int delivered = 0;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().deliverTime <= currentTime) {
+            Packet packet = inFlight.pollFirst();
+            target.input(packet.data, 0, packet.length);
+            free.addLast(packet);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+}